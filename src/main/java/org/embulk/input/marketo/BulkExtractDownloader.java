@@ -0,0 +1,342 @@
+package org.embulk.input.marketo;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.embulk.input.marketo.model.BulkExtractDownloadRange;
+import org.embulk.input.marketo.model.BulkExtractDownloadState;
+import org.embulk.input.marketo.model.BulkExtractRangeHeader;
+import org.embulk.input.marketo.rest.MarketoFileChannelResponseEntityReader;
+import org.embulk.spi.DataException;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Download a completed bulk extract file.
+ * When the file size is known the file is split into byte ranges that are downloaded concurrently
+ * into a preallocated file, every range is resumed independently when its connection is broken.
+ * The progress is reported to a {@link ProgressListener} so it can be persisted and continued by a later run,
+ * and the downloaded file is checked against the size and checksum reported by the export job.
+ * The content is written by a {@link Transfer} straight into the file channel at the position of the range.
+ */
+public class BulkExtractDownloader
+{
+    private static final Logger LOGGER = Exec.getLogger(BulkExtractDownloader.class);
+
+    // Don't split files smaller than this, the extra requests would cost more than they save
+    private static final long DEFAULT_MIN_RANGE_SIZE = 8 * 1024 * 1024;
+
+    // Report the progress of a range every time this many bytes has been written
+    private static final long PROGRESS_INTERVAL_BYTES = 4 * 1024 * 1024;
+
+    private static final String SHA256_CHECKSUM_PREFIX = "sha256:";
+
+    public interface Transfer
+    {
+        /**
+         * Write the requested range of the bulk extract file into the file channel at the position of the range start
+         * @return position of the file channel after the last written byte
+         * @throws IOException when the download is broken, the content listener has been told how far it got
+         */
+        long transfer(BulkExtractRangeHeader bulkExtractRangeHeader, FileChannel fileChannel, MarketoFileChannelResponseEntityReader.ContentListener contentListener) throws IOException;
+    }
+
+    public interface ProgressListener
+    {
+        void onProgress(BulkExtractDownloadState state);
+    }
+
+    private static final ProgressListener NO_PROGRESS_LISTENER = new ProgressListener()
+    {
+        @Override
+        public void onProgress(BulkExtractDownloadState state)
+        {
+        }
+    };
+
+    private final Transfer transfer;
+
+    private final int maxResumeTime;
+
+    private final long minRangeSize;
+
+    public BulkExtractDownloader(Transfer transfer, int maxResumeTime)
+    {
+        this(transfer, maxResumeTime, DEFAULT_MIN_RANGE_SIZE);
+    }
+
+    @VisibleForTesting
+    BulkExtractDownloader(Transfer transfer, int maxResumeTime, long minRangeSize)
+    {
+        this.transfer = transfer;
+        this.maxResumeTime = maxResumeTime;
+        this.minRangeSize = minRangeSize;
+    }
+
+    /**
+     * Download the bulk extract into the given file
+     *
+     * @param file destination file
+     * @param state export job whose file is downloaded, with the file size and checksum if they are known
+     * @param parallelism maximum number of ranges downloaded at the same time
+     * @return the downloaded file
+     */
+    public File download(File file, BulkExtractDownloadState state, int parallelism)
+    {
+        return download(file, state, parallelism, NO_PROGRESS_LISTENER);
+    }
+
+    /**
+     * Download or continue downloading the bulk extract into the given file
+     *
+     * @param file destination file, the bytes already downloaded according to the state are kept
+     * @param state progress of the download, it's updated while downloading
+     * @param parallelism maximum number of ranges downloaded at the same time
+     * @param progressListener notified every time the state changed
+     * @return the downloaded file
+     */
+    public File download(File file, BulkExtractDownloadState state, int parallelism, ProgressListener progressListener)
+    {
+        if (state.isCompleted() && file.isFile()) {
+            LOGGER.info("Bulk extract [{}] is already downloaded", state.getExportId());
+            return file;
+        }
+        if (state.isCompleted() || file.length() < getDownloadedLength(state)) {
+            // The file lost what the state says was downloaded, skipping those bytes would leave holes in it
+            LOGGER.warn("Bulk extract file [{}] is missing or shorter than its download progress, the download starts over", file);
+            state.setCompleted(false);
+            state.setRanges(new ArrayList<BulkExtractDownloadRange>());
+            if (file.exists() && !file.delete()) {
+                throw new DataException("Can't delete bulk extract file " + file);
+            }
+            progressListener.onProgress(state);
+        }
+        // Only split a download that hasn't started yet, a single stream download is continued as it is
+        if (state.getRanges().isEmpty() && file.length() == 0) {
+            int rangeCount = getRangeCount(state.getFileSize(), parallelism);
+            if (rangeCount > 1) {
+                state.setRanges(splitRanges(state.getFileSize(), rangeCount));
+                progressListener.onProgress(state);
+            }
+        }
+        if (state.getRanges().isEmpty()) {
+            downloadSingleStream(file);
+        }
+        else {
+            downloadRanges(file, state, parallelism, progressListener);
+        }
+        try {
+            verify(file, state);
+        }
+        catch (DataException e) {
+            // The downloaded content can't be trusted, the next attempt has to start over
+            state.setRanges(new ArrayList<BulkExtractDownloadRange>());
+            if (!file.delete()) {
+                LOGGER.warn("Can't delete bulk extract file [{}]", file);
+            }
+            progressListener.onProgress(state);
+            throw e;
+        }
+        state.setCompleted(true);
+        progressListener.onProgress(state);
+        return file;
+    }
+
+    private int getRangeCount(long fileSize, int parallelism)
+    {
+        if (fileSize <= 0) {
+            return 1;
+        }
+        return (int) Math.max(1, Math.min(parallelism, (fileSize + minRangeSize - 1) / minRangeSize));
+    }
+
+    private static long getDownloadedLength(BulkExtractDownloadState state)
+    {
+        long length = 0;
+        for (BulkExtractDownloadRange range : state.getRanges()) {
+            if (range.getPosition() > range.getStart()) {
+                length = Math.max(length, range.getPosition());
+            }
+        }
+        return length;
+    }
+
+    private static List<BulkExtractDownloadRange> splitRanges(long fileSize, int rangeCount)
+    {
+        List<BulkExtractDownloadRange> ranges = new ArrayList<>();
+        long rangeSize = (fileSize + rangeCount - 1) / rangeCount;
+        for (long start = 0; start < fileSize; start += rangeSize) {
+            ranges.add(new BulkExtractDownloadRange(start, Math.min(start + rangeSize, fileSize) - 1));
+        }
+        return ranges;
+    }
+
+    private void downloadSingleStream(File file)
+    {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            FileChannel fileChannel = randomAccessFile.getChannel();
+            // What has been written by a previous attempt doesn't need to be downloaded again
+            final AtomicLong position = new AtomicLong(randomAccessFile.length());
+            MarketoFileChannelResponseEntityReader.ContentListener contentListener = new MarketoFileChannelResponseEntityReader.ContentListener()
+            {
+                @Override
+                public void onContent(long newPosition)
+                {
+                    position.set(newPosition);
+                }
+            };
+            int resumeTime = 0;
+            while (resumeTime < maxResumeTime) {
+                try {
+                    transfer.transfer(new BulkExtractRangeHeader(position.get()), fileChannel, contentListener);
+                    return;
+                }
+                catch (IOException e) {
+                    LOGGER.error("Encounter exception when download bulk extract file", e);
+                    LOGGER.warn("will resume bulk extract at byte [{}]", position.get());
+                }
+                resumeTime = resumeTime + 1;
+            }
+        }
+        catch (IOException e) {
+            LOGGER.error("Encounter exception when writing bulk extract file", e);
+            throw new DataException("Can't write bulk extract file");
+        }
+        //Too many resume we still can't get the file
+        throw new DataException("Can't down load bulk extract");
+    }
+
+    private void downloadRanges(File file, final BulkExtractDownloadState state, int parallelism, final ProgressListener progressListener)
+    {
+        LOGGER.info("Download bulk extract of [{}] bytes in [{}] ranges", state.getFileSize(), state.getRanges().size());
+        ExecutorService executorService = MarketoUtils.newDaemonThreadPool("marketo-bulk-extract-download-%d", Math.max(1, Math.min(parallelism, state.getRanges().size())));
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(state.getFileSize());
+            final FileChannel fileChannel = randomAccessFile.getChannel();
+            List<Future<Void>> rangeDownloads = new ArrayList<>();
+            for (final BulkExtractDownloadRange range : state.getRanges()) {
+                if (range.isCompleted()) {
+                    continue;
+                }
+                rangeDownloads.add(executorService.submit(MarketoUtils.withExecSession(Exec.session(), new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                    {
+                        downloadRange(fileChannel, state, range, progressListener);
+                        return null;
+                    }
+                })));
+            }
+            for (Future<Void> rangeDownload : rangeDownloads) {
+                MarketoUtils.getFutureResult(rangeDownload);
+            }
+            fileChannel.force(false);
+        }
+        catch (IOException e) {
+            LOGGER.error("Encounter exception when writing bulk extract file", e);
+            throw new DataException("Can't write bulk extract file");
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * Download the rest of the inclusive byte range at the same position of the file
+     */
+    private void downloadRange(final FileChannel fileChannel, final BulkExtractDownloadState state, final BulkExtractDownloadRange range, final ProgressListener progressListener)
+    {
+        long start = range.getStart();
+        long end = range.getEnd();
+        final AtomicLong position;
+        synchronized (state) {
+            position = new AtomicLong(range.getPosition());
+        }
+        MarketoFileChannelResponseEntityReader.ContentListener contentListener = new MarketoFileChannelResponseEntityReader.ContentListener()
+        {
+            private long reportedPosition = position.get();
+
+            @Override
+            public void onContent(long newPosition) throws IOException
+            {
+                position.set(newPosition);
+                if (newPosition - reportedPosition >= PROGRESS_INTERVAL_BYTES) {
+                    // Make sure the reported bytes are on disk before they are recorded as downloaded
+                    fileChannel.force(false);
+                    reportProgress(state, range, newPosition, progressListener);
+                    reportedPosition = newPosition;
+                }
+            }
+        };
+        int resumeTime = 0;
+        while (true) {
+            try {
+                transfer.transfer(new BulkExtractRangeHeader(position.get(), end), fileChannel, contentListener);
+                if (position.get() > end) {
+                    reportProgress(state, range, position.get(), progressListener);
+                    return;
+                }
+                LOGGER.warn("Bulk extract range [{}-{}] ended early at byte [{}]", start, end, position.get());
+            }
+            catch (IOException e) {
+                LOGGER.warn("Encounter exception when download bulk extract range [{}-{}]", start, end, e);
+            }
+            resumeTime = resumeTime + 1;
+            if (resumeTime >= maxResumeTime) {
+                //Too many resume we still can't get the range
+                throw new DataException("Can't down load bulk extract range [" + start + "-" + end + "]");
+            }
+            LOGGER.warn("will resume bulk extract range [{}-{}] at byte [{}]", start, end, position.get());
+        }
+    }
+
+    private static void reportProgress(BulkExtractDownloadState state, BulkExtractDownloadRange range, long position, ProgressListener progressListener)
+    {
+        synchronized (state) {
+            range.setPosition(position);
+        }
+        progressListener.onProgress(state);
+    }
+
+    /**
+     * Check the downloaded file against the size and checksum reported by the export job
+     */
+    @VisibleForTesting
+    static void verify(File file, BulkExtractDownloadState state)
+    {
+        if (state.getFileSize() >= 0 && file.length() != state.getFileSize()) {
+            throw new DataException("Bulk extract file size mismatch, exportId: " + state.getExportId() + ", expected: " + state.getFileSize() + " bytes, downloaded: " + file.length() + " bytes");
+        }
+        String fileChecksum = state.getFileChecksum();
+        if (fileChecksum == null) {
+            return;
+        }
+        if (!fileChecksum.startsWith(SHA256_CHECKSUM_PREFIX)) {
+            LOGGER.warn("Unsupported bulk extract checksum [{}], the file is not verified", fileChecksum);
+            return;
+        }
+        String actualChecksum;
+        try {
+            actualChecksum = Files.hash(file, Hashing.sha256()).toString();
+        }
+        catch (IOException e) {
+            LOGGER.error("Can't read downloaded bulk extract file", e);
+            throw new DataException("Can't verify bulk extract file checksum");
+        }
+        if (!actualChecksum.equalsIgnoreCase(fileChecksum.substring(SHA256_CHECKSUM_PREFIX.length()))) {
+            throw new DataException("Bulk extract file checksum mismatch, exportId: " + state.getExportId() + ", expected: " + fileChecksum + ", downloaded: " + SHA256_CHECKSUM_PREFIX + actualChecksum);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.embulk.input.marketo;
+
+import com.google.common.base.Function;
+import org.embulk.input.marketo.model.BulkExtractRangeHeader;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * InputStream that read a bulk extract file directly from Marketo.
+ * The connection is opened on the first read, and when it's broken the download is resumed
+ * from the last consumed byte with a new range request.
+ */
+public class BulkExtractInputStream extends InputStream
+{
+    private static final Logger LOGGER = Exec.getLogger(BulkExtractInputStream.class);
+
+    private final Function<BulkExtractRangeHeader, InputStream> getBulkExtractFunction;
+
+    private final int maxResumeTime;
+
+    private InputStream currentStream;
+
+    private long consumedBytes = 0;
+
+    private int resumeTime = 0;
+
+    public BulkExtractInputStream(Function<BulkExtractRangeHeader, InputStream> getBulkExtractFunction, int maxResumeTime)
+    {
+        this.getBulkExtractFunction = getBulkExtractFunction;
+        this.maxResumeTime = maxResumeTime;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        byte[] buf = new byte[1];
+        int r = read(buf, 0, 1);
+        return r == -1 ? -1 : buf[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        while (true) {
+            if (currentStream == null) {
+                currentStream = getBulkExtractFunction.apply(new BulkExtractRangeHeader(consumedBytes));
+            }
+            try {
+                int r = currentStream.read(b, off, len);
+                if (r > 0) {
+                    consumedBytes = consumedBytes + r;
+                }
+                return r;
+            }
+            catch (IOException e) {
+                closeCurrentStream();
+                resumeTime = resumeTime + 1;
+                if (resumeTime >= maxResumeTime) {
+                    //Too many resume we still can't get the file
+                    throw new IOException("Can't download bulk extract after " + resumeTime + " resumes", e);
+                }
+                LOGGER.warn("will resume bulk extract at byte [{}]", consumedBytes, e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        closeCurrentStream();
+    }
+
+    private void closeCurrentStream()
+    {
+        if (currentStream != null) {
+            try {
+                currentStream.close();
+            }
+            catch (IOException e) {
+                LOGGER.warn("Exception when closing bulk extract stream", e);
+            }
+            currentStream = null;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package org.embulk.input.marketo;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.util.concurrent.SettableFuture;
+import org.embulk.input.marketo.rest.ExportJobPollingStrategy;
+import org.embulk.input.marketo.rest.MarketoRestClient;
+import org.embulk.spi.DataException;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Schedule the bulk extract jobs of a list of date ranges.
+ * Keep up to maxConcurrentJobs jobs enqueued in Marketo, watch all of them from a single polling loop
+ * and hand the completed exports over in date range order.
+ * Every job is polled on its own schedule given by the {@link ExportJobPollingStrategy}.
+ */
+public class BulkExtractJobScheduler implements Iterator<InputStream>, AutoCloseable
+{
+    private static final Logger LOGGER = Exec.getLogger(BulkExtractJobScheduler.class);
+
+    public interface ExportJobHandler
+    {
+        /**
+         * Get a running export job of the date range, creating and starting a new one if there is none to re-attach to
+         * @return export id
+         */
+        String enqueueJob(MarketoUtils.DateRange dateRange);
+
+        /**
+         * @return status of the job, null if it is unknown for now
+         */
+        ObjectNode getJobStatus(String exportId);
+
+        InputStream open(String exportId, ObjectNode jobStatus);
+    }
+
+    private final List<MarketoUtils.DateRange> dateRanges;
+
+    private final ExportJobHandler exportJobHandler;
+
+    private final int maxConcurrentJobs;
+
+    private final long pollingIntervalMillis;
+
+    private final ExportJobPollingStrategy pollingStrategy;
+
+    private final long jobTimeoutMillis;
+
+    private final List<SettableFuture<ExportJob>> completedExports;
+
+    private final ExecutorService executorService;
+
+    private int nextIndex = 0;
+
+    public BulkExtractJobScheduler(List<MarketoUtils.DateRange> dateRanges, ExportJobHandler exportJobHandler, int maxConcurrentJobs, ExportJobPollingStrategy pollingStrategy, int pollingIntervalSecond, int jobTimeoutSecond)
+    {
+        this.dateRanges = dateRanges;
+        this.exportJobHandler = exportJobHandler;
+        this.maxConcurrentJobs = maxConcurrentJobs;
+        this.pollingStrategy = pollingStrategy;
+        this.pollingIntervalMillis = pollingIntervalSecond * 1000L;
+        this.jobTimeoutMillis = jobTimeoutSecond * 1000L;
+        this.completedExports = new ArrayList<>();
+        for (int i = 0; i < dateRanges.size(); i++) {
+            completedExports.add(SettableFuture.<ExportJob>create());
+        }
+        executorService = MarketoUtils.newDaemonThreadPool("marketo-bulk-extract-scheduler-%d", 1);
+        executorService.submit(MarketoUtils.withExecSession(Exec.session(), new Callable<Void>()
+        {
+            @Override
+            public Void call()
+            {
+                runPollingLoop();
+                return null;
+            }
+        }));
+    }
+
+    private void runPollingLoop()
+    {
+        Map<Integer, ExportJob> runningJobs = new LinkedHashMap<>();
+        int nextJob = 0;
+        try {
+            while (nextJob < dateRanges.size() || !runningJobs.isEmpty()) {
+                while (runningJobs.size() < maxConcurrentJobs && nextJob < dateRanges.size()) {
+                    String exportId = exportJobHandler.enqueueJob(dateRanges.get(nextJob));
+                    LOGGER.info("Enqueued export job [{}] for [{}]", exportId, dateRanges.get(nextJob));
+                    long now = System.currentTimeMillis();
+                    ExportJob exportJob = new ExportJob(exportId, now);
+                    exportJob.nextPollTime = now + pollingStrategy.nextPollingIntervalMillis(null, pollingIntervalMillis, 0);
+                    runningJobs.put(nextJob, exportJob);
+                    nextJob++;
+                }
+                // Sleep until the next job is due to be polled
+                long nextPollTime = Long.MAX_VALUE;
+                for (ExportJob exportJob : runningJobs.values()) {
+                    nextPollTime = Math.min(nextPollTime, exportJob.nextPollTime);
+                }
+                long sleepMillis = nextPollTime - System.currentTimeMillis();
+                if (sleepMillis > 0) {
+                    Thread.sleep(sleepMillis);
+                }
+                Iterator<Map.Entry<Integer, ExportJob>> iterator = runningJobs.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    Map.Entry<Integer, ExportJob> entry = iterator.next();
+                    ExportJob exportJob = entry.getValue();
+                    long now = System.currentTimeMillis();
+                    if (exportJob.nextPollTime > now) {
+                        continue;
+                    }
+                    ObjectNode jobStatus = exportJobHandler.getJobStatus(exportJob.exportId);
+                    exportJob.pollCount++;
+                    if (MarketoRestClient.isExportJobCompleted(exportJob.exportId, jobStatus)) {
+                        pollingStrategy.recordCompletedJob(jobStatus);
+                        exportJob.jobStatus = jobStatus;
+                        completedExports.get(entry.getKey()).set(exportJob);
+                        iterator.remove();
+                    }
+                    else if (now - exportJob.enqueuedTime >= jobTimeoutMillis) {
+                        throw new DataException("Job timeout exception, exportJob: " + exportJob.exportId + ", run longer than " + jobTimeoutMillis / 1000 + " seconds");
+                    }
+                    else {
+                        exportJob.nextPollTime = now + pollingStrategy.nextPollingIntervalMillis(jobStatus, pollingIntervalMillis, exportJob.pollCount);
+                    }
+                }
+            }
+        }
+        catch (Exception e) {
+            // Fail all the exports that are not completed yet, the consumer will get the exception in order
+            for (SettableFuture<ExportJob> completedExport : completedExports) {
+                completedExport.setException(e);
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        return nextIndex < dateRanges.size();
+    }
+
+    /**
+     * Block until the export of the next date range is completed then open it
+     * @return extracted content
+     */
+    @Override
+    public InputStream next()
+    {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        ExportJob exportJob = MarketoUtils.getFutureResult(completedExports.get(nextIndex));
+        nextIndex++;
+        return exportJobHandler.open(exportJob.exportId, exportJob.jobStatus);
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close()
+    {
+        executorService.shutdownNow();
+    }
+
+    private static class ExportJob
+    {
+        private final String exportId;
+
+        private final long enqueuedTime;
+
+        private ObjectNode jobStatus;
+
+        private long nextPollTime;
+
+        private int pollCount;
+
+        public ExportJob(String exportId, long enqueuedTime)
+        {
+            this.exportId = exportId;
+            this.enqueuedTime = enqueuedTime;
+        }
+    }
+}
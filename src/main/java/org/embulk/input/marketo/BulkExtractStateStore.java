@@ -0,0 +1,153 @@
+package org.embulk.input.marketo;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.hash.Hashing;
+import org.embulk.config.ConfigException;
+import org.embulk.input.marketo.model.BulkExtractDownloadState;
+import org.embulk.spi.DataException;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keep the state and the data file of bulk extract downloads in a local directory so a run that died
+ * during a download can continue it instead of creating a new export.
+ * Entries are keyed by the export request within the subdirectory of the Marketo account, they are removed once the
+ * Marketo export file has expired.
+ */
+public class BulkExtractStateStore
+{
+    private static final Logger LOGGER = Exec.getLogger(BulkExtractStateStore.class);
+
+    // Marketo keeps the file of a completed export job for 7 days
+    private static final long EXPIRATION_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    private static final String STATE_FILE_SUFFIX = ".json";
+
+    private static final String DATA_FILE_SUFFIX = ".csv";
+
+    private final File directory;
+
+    /**
+     * @param directory shared by any number of configs, each Marketo account keeps its files in its own subdirectory
+     * as the same request to two accounts would have the same key
+     */
+    public BulkExtractStateStore(File directory, String accountId, String endPoint)
+    {
+        this.directory = new File(directory, buildKey(accountId, endPoint));
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new ConfigException("Can't create download state directory: " + this.directory);
+        }
+        removeExpired();
+    }
+
+    /**
+     * Build the key of an export request, two requests with the same parts would produce the same export
+     */
+    public static String buildKey(Object... parts)
+    {
+        return Hashing.sha1().hashString(Joiner.on('\n').useForNull("").join(parts), StandardCharsets.UTF_8).toString();
+    }
+
+    public File getDataFile(String key)
+    {
+        return new File(directory, key + DATA_FILE_SUFFIX);
+    }
+
+    private File getStateFile(String key)
+    {
+        return new File(directory, key + STATE_FILE_SUFFIX);
+    }
+
+    public Optional<BulkExtractDownloadState> load(String key)
+    {
+        File stateFile = getStateFile(key);
+        if (!stateFile.isFile()) {
+            return Optional.absent();
+        }
+        try {
+            return Optional.of(MarketoUtils.OBJECT_MAPPER.readValue(stateFile, BulkExtractDownloadState.class));
+        }
+        catch (IOException e) {
+            LOGGER.warn("Can't read download state [{}], it will be discarded", stateFile, e);
+            remove(key);
+            return Optional.absent();
+        }
+    }
+
+    public synchronized void save(String key, BulkExtractDownloadState state)
+    {
+        File stateFile = getStateFile(key);
+        File tempFile = new File(directory, key + STATE_FILE_SUFFIX + ".tmp");
+        try {
+            byte[] content;
+            synchronized (state) {
+                content = MarketoUtils.OBJECT_MAPPER.writeValueAsBytes(state);
+            }
+            Files.write(tempFile.toPath(), content);
+            Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            LOGGER.error("Can't save download state [{}]", stateFile, e);
+            throw new DataException("Can't save bulk extract download state");
+        }
+    }
+
+    public void remove(String key)
+    {
+        deleteFile(getStateFile(key));
+        deleteFile(getDataFile(key));
+    }
+
+    /**
+     * Listener that save the progress of a download under the given key
+     */
+    public BulkExtractDownloader.ProgressListener progressListener(final String key)
+    {
+        return new BulkExtractDownloader.ProgressListener()
+        {
+            @Override
+            public void onProgress(BulkExtractDownloadState state)
+            {
+                save(key, state);
+            }
+        };
+    }
+
+    private void removeExpired()
+    {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long expiredTime = System.currentTimeMillis() - EXPIRATION_MILLIS;
+        for (File file : files) {
+            if (!file.isFile() || file.lastModified() >= expiredTime) {
+                continue;
+            }
+            // The files of a download expire together with its state, a state never outlives its data file
+            String name = file.getName();
+            String key = name.indexOf('.') < 0 ? name : name.substring(0, name.indexOf('.'));
+            File stateFile = getStateFile(key);
+            if (file.equals(stateFile) || !stateFile.isFile()) {
+                LOGGER.info("Remove expired bulk extract download [{}]", key);
+                remove(key);
+                deleteFile(file);
+            }
+        }
+    }
+
+    private static void deleteFile(File file)
+    {
+        if (file.exists() && !file.delete()) {
+            LOGGER.warn("Can't delete file [{}]", file);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.embulk.input.marketo;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Function;
+import org.embulk.spi.DataException;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Iterate the leads of several groups (lists or programs), fetching up to maxConcurrentFetches groups at the same time.
+ * Each worker takes the next group id, pages through its leads and hands them over through a bounded queue,
+ * so leads of different groups are interleaved. The number of leads of each fetched group is put in groupLeadCounts.
+ */
+public class ConcurrentLeadIterator implements Iterator<ObjectNode>, AutoCloseable
+{
+    private static final Logger LOGGER = Exec.getLogger(ConcurrentLeadIterator.class);
+
+    private static final int QUEUE_CAPACITY = 1024;
+
+    // Put by a worker once there is no group left
+    private static final ObjectNode END_OF_GROUPS = JsonNodeFactory.instance.objectNode();
+
+    private final Iterator<String> groupIds;
+
+    private final Function<String, Iterable<ObjectNode>> fetchGroup;
+
+    private final Map<String, Long> groupLeadCounts;
+
+    private final BlockingQueue<ObjectNode> leads = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private final ExecutorService executorService;
+
+    private int runningWorkers;
+
+    private ObjectNode nextLead;
+
+    /**
+     * @param groupIds groups in the order they are fetched, the iterator is only used by one worker at a time
+     * @param fetchGroup leads of a group
+     * @param groupLeadCounts receive the number of leads of each group, has to be thread safe
+     */
+    public ConcurrentLeadIterator(Iterator<String> groupIds, Function<String, Iterable<ObjectNode>> fetchGroup, Map<String, Long> groupLeadCounts, int maxConcurrentFetches)
+    {
+        this.groupIds = groupIds;
+        this.fetchGroup = fetchGroup;
+        this.groupLeadCounts = groupLeadCounts;
+        this.runningWorkers = maxConcurrentFetches;
+        executorService = MarketoUtils.newDaemonThreadPool("marketo-lead-fetch-%d", maxConcurrentFetches);
+        for (int i = 0; i < maxConcurrentFetches; i++) {
+            executorService.submit(MarketoUtils.withExecSession(Exec.session(), new Callable<Void>()
+            {
+                @Override
+                public Void call() throws InterruptedException
+                {
+                    runWorker();
+                    return null;
+                }
+            }));
+        }
+    }
+
+    private void runWorker() throws InterruptedException
+    {
+        try {
+            String groupId;
+            while (failure.get() == null && (groupId = nextGroupId()) != null) {
+                long count = 0;
+                for (ObjectNode lead : fetchGroup.apply(groupId)) {
+                    leads.put(lead);
+                    count++;
+                }
+                groupLeadCounts.put(groupId, count);
+                LOGGER.debug("Fetched [{}] leads of [{}]", count, groupId);
+            }
+        }
+        catch (Throwable e) {
+            failure.compareAndSet(null, e);
+        }
+        finally {
+            // Nothing is consumed anymore once closed, the put would block the worker
+            if (!executorService.isShutdown()) {
+                leads.put(END_OF_GROUPS);
+            }
+        }
+    }
+
+    private String nextGroupId()
+    {
+        synchronized (groupIds) {
+            return groupIds.hasNext() ? groupIds.next() : null;
+        }
+    }
+
+    /**
+     * Block until a worker hands over a lead or all the workers are done
+     */
+    @Override
+    public boolean hasNext()
+    {
+        while (nextLead == null && runningWorkers > 0) {
+            ObjectNode lead;
+            try {
+                lead = leads.take();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DataException("Interrupted when waiting for leads", e);
+            }
+            if (lead == END_OF_GROUPS) {
+                runningWorkers--;
+                Throwable e = failure.get();
+                if (e instanceof RuntimeException) {
+                    throw (RuntimeException) e;
+                }
+                if (e instanceof Error) {
+                    throw (Error) e;
+                }
+                if (e != null) {
+                    throw new DataException("Failed to fetch leads", e);
+                }
+            }
+            else {
+                nextLead = lead;
+            }
+        }
+        return nextLead != null;
+    }
+
+    @Override
+    public ObjectNode next()
+    {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        ObjectNode lead = nextLead;
+        nextLead = null;
+        return lead;
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close()
+    {
+        executorService.shutdownNow();
+    }
+}
@@ -0,0 +1,491 @@
+package org.embulk.input.marketo;
+
+import org.embulk.spi.DataException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Csv tokenizer working on the raw bytes of the extracted content.
+ * Unlike {@link CsvTokenizer} the content is not decoded into lines first: delimiters, quotes and line breaks are
+ * found by scanning the bytes of a reusable buffer, and only the bytes of the columns that are read are decoded.
+ * Quote, escape, trim and max_quoted_size_limit behave as in {@link CsvTokenizer}, the quoted size is counted in bytes.
+ * It only supports a single ASCII delimiter, quote and escape character and an ASCII compatible charset,
+ * see {@link #isSupported(CsvTokenizer.PluginTask)}.
+ */
+public class CsvByteTokenizer implements CsvColumnReader
+{
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    // End of the input, or the start of the mark when nothing has to be kept
+    private static final int NONE = -1;
+
+    // Quote or escape character that is not set, it never matches a byte
+    private static final int NO_CHARACTER = 0x100;
+
+    private static final byte CR = '\r';
+
+    private static final byte LF = '\n';
+
+    private static final byte SPACE = ' ';
+
+    private final InputStream input;
+
+    private final Charset charset;
+
+    private final byte delimiter;
+
+    private final int quote;
+
+    private final int escape;
+
+    private final byte[] newline;
+
+    private final boolean trimIfNotQuoted;
+
+    private final long maxQuotedSizeLimit;
+
+    private final byte[] commentLineMarker;
+
+    private final String nullStringOrNull;
+
+    private byte[] buffer;
+
+    private int position = 0;
+
+    private int limit = 0;
+
+    // Start of the bytes that have to be kept in the buffer when it's refilled
+    private int mark = NONE;
+
+    private boolean endOfInput = false;
+
+    private byte[] quotedValue = new byte[256];
+
+    private int quotedValueLength;
+
+    private boolean recordEnded = true;
+
+    private boolean wasQuotedColumn = false;
+
+    private long lineNumber = 0;
+
+    public CsvByteTokenizer(InputStream input, CsvTokenizer.PluginTask task)
+    {
+        this(input, task.getCharset(), task.getDelimiter().charAt(0),
+                task.getQuoteChar().or(CsvTokenizer.QuoteCharacter.noQuote()).getCharacter(),
+                task.getEscapeChar().or(CsvTokenizer.EscapeCharacter.noEscape()).getCharacter(), task.getNewline().getString(),
+                task.getTrimIfNotQuoted(), task.getMaxQuotedSizeLimit(), task.getCommentLineMarker().orNull(), task.getNullString().orNull(), DEFAULT_BUFFER_SIZE);
+    }
+
+    public CsvByteTokenizer(InputStream input, Charset charset, char delimiter, char quote, char escape, String newline, boolean trimIfNotQuoted, long maxQuotedSizeLimit, String commentLineMarker, String nullStringOrNull, int bufferSize)
+    {
+        this.input = input;
+        this.charset = charset;
+        this.delimiter = (byte) delimiter;
+        this.quote = quote != CsvTokenizer.NO_QUOTE ? quote : NO_CHARACTER;
+        this.escape = escape != CsvTokenizer.NO_ESCAPE ? escape : NO_CHARACTER;
+        this.newline = newline.getBytes(charset);
+        this.trimIfNotQuoted = trimIfNotQuoted;
+        this.maxQuotedSizeLimit = maxQuotedSizeLimit;
+        this.commentLineMarker = commentLineMarker != null ? commentLineMarker.getBytes(charset) : null;
+        this.nullStringOrNull = nullStringOrNull;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * @return true if the csv options can be handled on bytes, otherwise {@link CsvTokenizer} has to be used
+     */
+    public static boolean isSupported(CsvTokenizer.PluginTask task)
+    {
+        Charset charset = task.getCharset();
+        return (charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII) || charset.equals(StandardCharsets.ISO_8859_1))
+                && task.getDelimiter().length() == 1 && isAscii(task.getDelimiter().charAt(0))
+                && isAscii(task.getQuoteChar().or(CsvTokenizer.QuoteCharacter.noQuote()).getCharacter())
+                && isAscii(task.getEscapeChar().or(CsvTokenizer.EscapeCharacter.noEscape()).getCharacter());
+    }
+
+    private static boolean isAscii(char c)
+    {
+        return c < 0x80;
+    }
+
+    @Override
+    public long getCurrentLineNumber()
+    {
+        return lineNumber;
+    }
+
+    @Override
+    public boolean nextRecord()
+    {
+        if (!recordEnded) {
+            throw new CsvTokenizer.InvalidFormatException("Too many columns");
+        }
+        while (true) {
+            int b = peek();
+            if (b == NONE) {
+                return false;
+            }
+            lineNumber++;
+            if (b == CR || b == LF) {
+                // empty line
+                skipLineBreak();
+            }
+            else if (commentLineMarker != null && startsWithCommentLineMarker()) {
+                skipLine();
+            }
+            else {
+                recordEnded = false;
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNextColumn()
+    {
+        return !recordEnded;
+    }
+
+    @Override
+    public String nextColumn()
+    {
+        if (!hasNextColumn()) {
+            throw new CsvTokenizer.InvalidFormatException("Too few columns");
+        }
+        wasQuotedColumn = false;
+        if (trimIfNotQuoted) {
+            while (peek() == SPACE) {
+                position++;
+            }
+        }
+        if (peek() == quote) {
+            position++;
+            wasQuotedColumn = true;
+            readQuotedValue();
+            skipAfterQuotedValue();
+            return new String(quotedValue, 0, quotedValueLength, charset);
+        }
+        return readValue();
+    }
+
+    @Override
+    public String nextColumnOrNull()
+    {
+        String v = nextColumn();
+        if (nullStringOrNull == null) {
+            if (v.isEmpty() && !wasQuotedColumn) {
+                return null;
+            }
+            return v;
+        }
+        return v.equals(nullStringOrNull) ? null : v;
+    }
+
+    public boolean wasQuotedColumn()
+    {
+        return wasQuotedColumn;
+    }
+
+    /**
+     * Scan the remaining columns of the record without decoding them, quoted values are still checked
+     */
+    @Override
+    public void skipRemainingColumns()
+    {
+        while (!recordEnded) {
+            if (trimIfNotQuoted) {
+                while (peek() == SPACE) {
+                    position++;
+                }
+            }
+            if (peek() == quote) {
+                position++;
+                readQuotedValue();
+                skipAfterQuotedValue();
+            }
+            else {
+                skipValue();
+            }
+        }
+    }
+
+    private void skipValue()
+    {
+        while (true) {
+            if (position >= limit && !fill()) {
+                recordEnded = true;
+                return;
+            }
+            byte b = buffer[position];
+            if (b == delimiter) {
+                position++;
+                return;
+            }
+            if (b == LF || b == CR) {
+                skipLineBreak();
+                recordEnded = true;
+                return;
+            }
+            position++;
+        }
+    }
+
+    private String readValue()
+    {
+        mark = position;
+        while (true) {
+            if (position >= limit && !fill()) {
+                recordEnded = true;
+                return takeValue(position);
+            }
+            byte b = buffer[position];
+            if (b == delimiter) {
+                String value = takeValue(position);
+                position++;
+                return value;
+            }
+            if (b == LF || b == CR) {
+                String value = takeValue(position);
+                skipLineBreak();
+                recordEnded = true;
+                return value;
+            }
+            position++;
+        }
+    }
+
+    private String takeValue(int end)
+    {
+        int start = mark;
+        mark = NONE;
+        if (trimIfNotQuoted) {
+            while (end > start && buffer[end - 1] == SPACE) {
+                end--;
+            }
+        }
+        return new String(buffer, start, end - start, charset);
+    }
+
+    /**
+     * Read the quoted value into the quoted value buffer, the position is left after the closing quote
+     */
+    private void readQuotedValue()
+    {
+        quotedValueLength = 0;
+        int runStart = position;
+        while (true) {
+            if (position >= limit) {
+                appendQuotedValue(runStart, position);
+                if (!fill()) {
+                    throw new CsvTokenizer.InvalidValueException("Unexpected end of line during parsing a quoted value");
+                }
+                runStart = position;
+                continue;
+            }
+            byte b = buffer[position];
+            if (b == quote) {
+                appendQuotedValue(runStart, position);
+                position++;
+                if (peek() == quote) {
+                    // escaped quote
+                    appendQuotedValue(b);
+                    position++;
+                    runStart = position;
+                    continue;
+                }
+                return;
+            }
+            else if (b == escape) {
+                appendQuotedValue(runStart, position);
+                position++;
+                int next = peek();
+                if (next == quote || next == escape) {
+                    appendQuotedValue((byte) next);
+                    position++;
+                    runStart = position;
+                }
+                else {
+                    // not an escape sequence, keep the escape character
+                    appendQuotedValue(b);
+                    runStart = position;
+                }
+            }
+            else if (b == LF || b == CR) {
+                // multi-line quoted value
+                appendQuotedValue(runStart, position);
+                skipLineBreak();
+                lineNumber++;
+                appendQuotedValue(newline, 0, newline.length);
+                runStart = position;
+            }
+            else {
+                position++;
+                if (position - runStart + quotedValueLength > maxQuotedSizeLimit) {
+                    throw new CsvTokenizer.QuotedSizeLimitExceededException("The size of the quoted value exceeds the limit size (" + maxQuotedSizeLimit + ")");
+                }
+            }
+        }
+    }
+
+    private void skipAfterQuotedValue()
+    {
+        while (true) {
+            int b = peek();
+            if (b == NONE) {
+                recordEnded = true;
+                return;
+            }
+            if (b == delimiter) {
+                position++;
+                return;
+            }
+            if (b == LF || b == CR) {
+                skipLineBreak();
+                recordEnded = true;
+                return;
+            }
+            if (b != SPACE) {
+                throw new CsvTokenizer.InvalidValueException(String.format("Unexpected extra character '%c' after a value quoted by '%c'", (char) b, (char) quote));
+            }
+            position++;
+        }
+    }
+
+    private void appendQuotedValue(int start, int end)
+    {
+        appendQuotedValue(buffer, start, end - start);
+    }
+
+    private void appendQuotedValue(byte b)
+    {
+        if (quotedValueLength + 1 > maxQuotedSizeLimit) {
+            throw new CsvTokenizer.QuotedSizeLimitExceededException("The size of the quoted value exceeds the limit size (" + maxQuotedSizeLimit + ")");
+        }
+        if (quotedValueLength == quotedValue.length) {
+            quotedValue = Arrays.copyOf(quotedValue, quotedValue.length * 2);
+        }
+        quotedValue[quotedValueLength++] = b;
+    }
+
+    private void appendQuotedValue(byte[] bytes, int offset, int length)
+    {
+        if (length == 0) {
+            return;
+        }
+        if (quotedValueLength + length > maxQuotedSizeLimit) {
+            throw new CsvTokenizer.QuotedSizeLimitExceededException("The size of the quoted value exceeds the limit size (" + maxQuotedSizeLimit + ")");
+        }
+        if (quotedValueLength + length > quotedValue.length) {
+            quotedValue = Arrays.copyOf(quotedValue, Math.max(quotedValue.length * 2, quotedValueLength + length));
+        }
+        System.arraycopy(bytes, offset, quotedValue, quotedValueLength, length);
+        quotedValueLength += length;
+    }
+
+    private boolean startsWithCommentLineMarker()
+    {
+        while (limit - position < commentLineMarker.length) {
+            if (!fill()) {
+                return false;
+            }
+        }
+        for (int i = 0; i < commentLineMarker.length; i++) {
+            if (buffer[position + i] != commentLineMarker[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skipLine()
+    {
+        while (true) {
+            int b = peek();
+            if (b == NONE) {
+                return;
+            }
+            if (b == LF || b == CR) {
+                skipLineBreak();
+                return;
+            }
+            position++;
+        }
+    }
+
+    /**
+     * Skip a LF, CR or CRLF line break at the current position
+     */
+    private void skipLineBreak()
+    {
+        byte b = buffer[position++];
+        if (b == CR && peek() == LF) {
+            position++;
+        }
+    }
+
+    /**
+     * @return the unsigned byte at the current position without consuming it, NONE at the end of the input
+     */
+    private int peek()
+    {
+        if (position >= limit && !fill()) {
+            return NONE;
+        }
+        return buffer[position] & 0xff;
+    }
+
+    /**
+     * Read more bytes into the buffer, the bytes from the mark or the current position are kept
+     * @return false at the end of the input
+     */
+    private boolean fill()
+    {
+        if (endOfInput) {
+            return false;
+        }
+        int keep = mark != NONE ? mark : position;
+        if (keep > 0) {
+            System.arraycopy(buffer, keep, buffer, 0, limit - keep);
+            limit -= keep;
+            position -= keep;
+            if (mark != NONE) {
+                mark -= keep;
+            }
+        }
+        if (limit == buffer.length) {
+            // A single value is larger than the buffer
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        try {
+            int read = 0;
+            while (read == 0) {
+                read = input.read(buffer, limit, buffer.length - limit);
+            }
+            if (read < 0) {
+                endOfInput = true;
+                return false;
+            }
+            limit += read;
+            return true;
+        }
+        catch (IOException e) {
+            throw new DataException("Can't read extracted csv content", e);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        try {
+            input.close();
+        }
+        catch (IOException e) {
+            throw new DataException("Can't close extracted csv content", e);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.embulk.input.marketo;
+
+/**
+ * Read a csv content record by record and column by column
+ */
+public interface CsvColumnReader extends AutoCloseable
+{
+    /**
+     * Move to the next record, skipping empty and comment lines
+     * @return false if there is no more record
+     */
+    boolean nextRecord();
+
+    boolean hasNextColumn();
+
+    String nextColumn();
+
+    /**
+     * Same as {@link #nextColumn()} but return null for the null string or a non quoted empty value
+     */
+    String nextColumnOrNull();
+
+    /**
+     * Move to the end of the current record without returning the values of its remaining columns
+     */
+    void skipRemainingColumns();
+
+    long getCurrentLineNumber();
+
+    @Override
+    void close();
+}
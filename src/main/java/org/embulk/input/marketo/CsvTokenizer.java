@@ -19,7 +19,7 @@ import java.util.List;
 /**
  * Created by tai.khuu on 9/15/17.
  */
-public class CsvTokenizer
+public class CsvTokenizer implements CsvColumnReader
 {
     static enum RecordState
     {
@@ -464,6 +464,20 @@ public class CsvTokenizer
         return wasQuotedColumn;
     }
 
+    @Override
+    public void skipRemainingColumns()
+    {
+        while (hasNextColumn()) {
+            nextColumn();
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        input.close();
+    }
+
     private char nextChar()
     {
         Preconditions.checkState(line != null, "nextColumn is called after end of file");
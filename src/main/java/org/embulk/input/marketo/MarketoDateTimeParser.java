@@ -0,0 +1,155 @@
+package org.embulk.input.marketo;
+
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+/**
+ * Parse the date times of Marketo bulk extracts into epoch milliseconds.
+ * Values in the fixed yyyy-MM-dd'T'HH:mm:ssZ layout are parsed by hand, the offset can be Z, +HH, +HHmm or +HH:mm.
+ * Anything else (dates, fractional seconds...) falls back to the ISO parser, dates without offset are in UTC.
+ * The last parsed value is remembered since consecutive records often share the same second.
+ * Instances are not thread safe.
+ */
+public class MarketoDateTimeParser
+{
+    private static final DateTimeFormatter ISO_PARSER = ISODateTimeFormat.dateTimeParser().withZoneUTC();
+
+    private static final int DATE_TIME_LENGTH = "yyyy-MM-ddTHH:mm:ss".length();
+
+    private static final long MILLIS_PER_SECOND = 1000L;
+
+    private static final long SECONDS_PER_DAY = 86400L;
+
+    private String lastValue;
+
+    private long lastMillis;
+
+    /**
+     * @throws IllegalArgumentException if the value is not an ISO date time
+     */
+    public long parseMillis(String value)
+    {
+        if (lastValue != null && lastValue.equals(value)) {
+            return lastMillis;
+        }
+        long millis = parseFixedFormat(value);
+        if (millis == Long.MIN_VALUE) {
+            millis = ISO_PARSER.parseMillis(value);
+        }
+        lastValue = value;
+        lastMillis = millis;
+        return millis;
+    }
+
+    /**
+     * @return Long.MIN_VALUE if the value is not in the fixed layout
+     */
+    private static long parseFixedFormat(String value)
+    {
+        int length = value.length();
+        if (length <= DATE_TIME_LENGTH
+                || value.charAt(4) != '-' || value.charAt(7) != '-' || value.charAt(10) != 'T'
+                || value.charAt(13) != ':' || value.charAt(16) != ':') {
+            return Long.MIN_VALUE;
+        }
+        int year = digits(value, 0, 4);
+        int month = digits(value, 5, 2);
+        int day = digits(value, 8, 2);
+        int hour = digits(value, 11, 2);
+        int minute = digits(value, 14, 2);
+        int second = digits(value, 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            return Long.MIN_VALUE;
+        }
+        int offsetSeconds = parseOffsetSeconds(value, DATE_TIME_LENGTH);
+        if (offsetSeconds == Integer.MIN_VALUE) {
+            return Long.MIN_VALUE;
+        }
+        long epochSecond = epochDay(year, month, day) * SECONDS_PER_DAY + hour * 3600 + minute * 60 + second - offsetSeconds;
+        return epochSecond * MILLIS_PER_SECOND;
+    }
+
+    /**
+     * @return offset in seconds, Integer.MIN_VALUE if the rest of the value is not an offset
+     */
+    private static int parseOffsetSeconds(String value, int start)
+    {
+        int length = value.length() - start;
+        char sign = value.charAt(start);
+        if (sign == 'Z') {
+            return length == 1 ? 0 : Integer.MIN_VALUE;
+        }
+        if (sign != '+' && sign != '-') {
+            return Integer.MIN_VALUE;
+        }
+        int hours;
+        int minutes;
+        if (length == 3) {
+            hours = digits(value, start + 1, 2);
+            minutes = 0;
+        }
+        else if (length == 5) {
+            hours = digits(value, start + 1, 2);
+            minutes = digits(value, start + 3, 2);
+        }
+        else if (length == 6 && value.charAt(start + 3) == ':') {
+            hours = digits(value, start + 1, 2);
+            minutes = digits(value, start + 4, 2);
+        }
+        else {
+            return Integer.MIN_VALUE;
+        }
+        if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59) {
+            return Integer.MIN_VALUE;
+        }
+        int offset = hours * 3600 + minutes * 60;
+        return sign == '-' ? -offset : offset;
+    }
+
+    /**
+     * @return the number written with count digits at start, -1 if a character is not a digit
+     */
+    private static int digits(String value, int start, int count)
+    {
+        int n = 0;
+        for (int i = start; i < start + count; i++) {
+            int d = value.charAt(i) - '0';
+            if (d < 0 || d > 9) {
+                return -1;
+            }
+            n = n * 10 + d;
+        }
+        return n;
+    }
+
+    private static int daysInMonth(int year, int month)
+    {
+        switch (month) {
+            case 2:
+                boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+                return leap ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    /**
+     * @return days since 1970-01-01 of a proleptic Gregorian date
+     */
+    private static long epochDay(int year, int month, int day)
+    {
+        // Count years from March so the leap day is the last day of the year
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
@@ -0,0 +1,121 @@
+package org.embulk.input.marketo;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.embulk.spi.json.JsonParseException;
+import org.msgpack.value.StringValue;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parse json values of extracted csv files, like the activity attributes, into MessagePack values.
+ * Values are built straight from the tokens of Jackson's streaming parser, without an intermediate tree.
+ * Object keys repeat on every record so their MessagePack strings are cached, up to MAX_CACHED_KEYS keys.
+ * Instances are not thread safe.
+ */
+public class MarketoJsonValueParser
+{
+    private static final int MAX_CACHED_KEYS = 1024;
+
+    private final JsonFactory factory = new JsonFactory();
+
+    private final Map<String, StringValue> keys = new HashMap<>();
+
+    /**
+     * @throws JsonParseException if the value is not a single json value
+     */
+    public Value parse(String json)
+    {
+        try (JsonParser parser = factory.createParser(json)) {
+            JsonToken token = parser.nextToken();
+            if (token == null) {
+                throw new JsonParseException("Unable to parse empty string");
+            }
+            Value value = readValue(parser, token);
+            if (parser.nextToken() != null) {
+                throw new JsonParseException("Unable to parse json with trailing data: " + json);
+            }
+            return value;
+        }
+        catch (IOException e) {
+            throw new JsonParseException("Failed to parse JSON: " + json, e);
+        }
+    }
+
+    private Value readValue(JsonParser parser, JsonToken token) throws IOException
+    {
+        switch (token) {
+            case VALUE_NULL:
+                return ValueFactory.newNil();
+            case VALUE_TRUE:
+                return ValueFactory.newBoolean(true);
+            case VALUE_FALSE:
+                return ValueFactory.newBoolean(false);
+            case VALUE_NUMBER_INT:
+                if (parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER) {
+                    return ValueFactory.newInteger(parser.getBigIntegerValue());
+                }
+                return ValueFactory.newInteger(parser.getLongValue());
+            case VALUE_NUMBER_FLOAT:
+                return ValueFactory.newFloat(parser.getDoubleValue());
+            case VALUE_STRING:
+                return ValueFactory.newString(parser.getText());
+            case START_ARRAY:
+                return readArray(parser);
+            case START_OBJECT:
+                return readObject(parser);
+            default:
+                throw new JsonParseException("Unexpected token " + token + " at " + parser.getTokenLocation());
+        }
+    }
+
+    private Value readArray(JsonParser parser) throws IOException
+    {
+        List<Value> elements = new ArrayList<>();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (token == null) {
+                throw new JsonParseException("Unexpected end of JSON at " + parser.getTokenLocation());
+            }
+            elements.add(readValue(parser, token));
+        }
+        return ValueFactory.newArray(elements.toArray(new Value[elements.size()]), true);
+    }
+
+    private Value readObject(JsonParser parser) throws IOException
+    {
+        List<Value> keyValues = new ArrayList<>();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_OBJECT) {
+            if (token != JsonToken.FIELD_NAME) {
+                throw new JsonParseException("Unexpected token " + token + " at " + parser.getTokenLocation());
+            }
+            keyValues.add(getKey(parser.getCurrentName()));
+            token = parser.nextToken();
+            if (token == null) {
+                throw new JsonParseException("Unexpected end of JSON at " + parser.getTokenLocation());
+            }
+            keyValues.add(readValue(parser, token));
+        }
+        return ValueFactory.newMap(keyValues.toArray(new Value[keyValues.size()]), true);
+    }
+
+    private StringValue getKey(String name)
+    {
+        StringValue key = keys.get(name);
+        if (key == null) {
+            key = ValueFactory.newString(name);
+            if (keys.size() < MAX_CACHED_KEYS) {
+                keys.put(name, key);
+            }
+        }
+        return key;
+    }
+}
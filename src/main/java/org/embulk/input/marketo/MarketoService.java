@@ -1,11 +1,15 @@
 package org.embulk.input.marketo;
 
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.embulk.input.marketo.model.ActivityExtractFilter;
 import org.embulk.input.marketo.model.MarketoField;
 
 import java.io.File;
+import java.io.InputStream;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by tai.khuu on 9/6/17.
@@ -20,11 +24,34 @@ public interface MarketoService
 
     File extractLead(Date startTime, Date endTime, List<String> extractedFields, String filterField, int pollingTimeIntervalSecond, int bulkJobTimeoutSecond);
 
-    File extractAllActivity(Date startTime, Date endTime, int pollingTimeIntervalSecond, int bulkJobTimeoutSecond);
+    File extractAllActivity(Date startTime, Date endTime, ActivityExtractFilter activityExtractFilter, int pollingTimeIntervalSecond, int bulkJobTimeoutSecond);
 
-    Iterable<ObjectNode> getAllListLead(List<String> extractFields);
+    InputStream streamLead(Date startTime, Date endTime, List<String> extractedFields, String filterField, int pollingTimeIntervalSecond, int bulkJobTimeoutSecond);
 
-    Iterable<ObjectNode> getAllProgramLead(List<String> extractFields);
+    InputStream streamAllActivity(Date startTime, Date endTime, ActivityExtractFilter activityExtractFilter, int pollingTimeIntervalSecond, int bulkJobTimeoutSecond);
+
+    BulkExtractJobScheduler scheduleLeadExtract(List<MarketoUtils.DateRange> dateRanges, List<String> extractedFields, String filterField, int maxConcurrentJobs, int pollingTimeIntervalSecond, int bulkJobTimeoutSecond, boolean streamDownload);
+
+    BulkExtractJobScheduler scheduleActivityExtract(List<MarketoUtils.DateRange> dateRanges, ActivityExtractFilter activityExtractFilter, int maxConcurrentJobs, int pollingTimeIntervalSecond, int bulkJobTimeoutSecond, boolean streamDownload);
+
+    Iterable<String> getListIds();
+
+    /**
+     * @param readAheadPages number of program pages requested at the same time ahead of the page being consumed
+     */
+    Iterable<String> getProgramIds(int readAheadPages);
+
+    /**
+     * Fetch the leads of several lists at the same time
+     * @param listLeadCounts receive the number of leads of each list
+     */
+    ConcurrentLeadIterator getLeadsByLists(Iterator<String> listIds, List<String> extractFields, Map<String, Long> listLeadCounts, int maxConcurrentFetches);
+
+    /**
+     * Fetch the leads of several programs at the same time
+     * @param programLeadCounts receive the number of leads of each program
+     */
+    ConcurrentLeadIterator getLeadsByPrograms(Iterator<String> programIds, List<String> extractFields, Map<String, Long> programLeadCounts, int maxConcurrentFetches);
 
     Iterable<ObjectNode> getCampaign();
 }
@@ -2,23 +2,35 @@ package org.embulk.input.marketo;
 
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Function;
+import com.google.common.base.Optional;
 import com.google.common.collect.Iterables;
 import org.apache.commons.lang3.StringUtils;
+import org.embulk.input.marketo.model.ActivityExtractFilter;
+import org.embulk.input.marketo.model.BulkExtractDownloadState;
 import org.embulk.input.marketo.model.BulkExtractRangeHeader;
 import org.embulk.input.marketo.model.MarketoField;
+import org.embulk.input.marketo.rest.MarketoFileChannelResponseEntityReader;
 import org.embulk.input.marketo.rest.MarketoRestClient;
 import org.embulk.input.marketo.rest.RecordPagingIterable;
 import org.embulk.spi.DataException;
 import org.embulk.spi.Exec;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
 import org.slf4j.Logger;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by tai.khuu on 9/6/17.
@@ -29,146 +41,508 @@ public class MarketoServiceImpl implements MarketoService
 
     private static final String DEFAULT_FILE_FORMAT = "csv";
 
-    private static final int BUF_SIZE = 0x1000;
-
     private static final int MAX_RESUME_TIME = 50;
 
+    // Marketo keeps the file of a completed export job for 7 days, the margin leaves time to download it
+    private static final long EXPORT_FILE_USABLE_MILLIS = TimeUnit.DAYS.toMillis(7) - TimeUnit.HOURS.toMillis(6);
+
+    private static final DateTimeFormatter ISO_DATETIME_FORMAT = ISODateTimeFormat.dateTimeParser();
+
+    private static final Function<ObjectNode, String> GET_ID_FUNCTION = new Function<ObjectNode, String>()
+    {
+        @Override
+        public String apply(ObjectNode input)
+        {
+            return input.get("id").asText();
+        }
+    };
+
     private MarketoRestClient marketoRestClient;
 
+    private int downloadParallelism;
+
+    private Optional<BulkExtractStateStore> stateStore;
+
     public MarketoServiceImpl(MarketoRestClient marketoRestClient)
+    {
+        this(marketoRestClient, 1, Optional.<BulkExtractStateStore>absent());
+    }
+
+    /**
+     * @param downloadParallelism maximum number of byte ranges of a bulk extract file downloaded at the same time
+     * @param stateStore where bulk extract downloads are kept so they can be continued by a later run
+     */
+    public MarketoServiceImpl(MarketoRestClient marketoRestClient, int downloadParallelism, Optional<BulkExtractStateStore> stateStore)
     {
         this.marketoRestClient = marketoRestClient;
+        this.downloadParallelism = downloadParallelism;
+        this.stateStore = stateStore;
     }
 
     @Override
     public File extractLead(final Date startTime, Date endTime, List<String> extractedFields, String filterField, int pollingTimeIntervalSecond, final int bulkJobTimeoutSecond)
     {
-        final String exportID = marketoRestClient.createLeadBulkExtract(startTime, endTime, extractedFields, filterField);
-        marketoRestClient.startLeadBulkExtract(exportID);
-        try {
-            marketoRestClient.waitLeadExportJobComplete(exportID, pollingTimeIntervalSecond, bulkJobTimeoutSecond);
+        return extract(new LeadBulkExtract(extractedFields, filterField), startTime, endTime, pollingTimeIntervalSecond, bulkJobTimeoutSecond);
+    }
+
+    @Override
+    public InputStream streamLead(Date startTime, Date endTime, List<String> extractedFields, String filterField, int pollingTimeIntervalSecond, int bulkJobTimeoutSecond)
+    {
+        return stream(new LeadBulkExtract(extractedFields, filterField), startTime, endTime, pollingTimeIntervalSecond, bulkJobTimeoutSecond);
+    }
+
+    @Override
+    public BulkExtractJobScheduler scheduleLeadExtract(List<MarketoUtils.DateRange> dateRanges, List<String> extractedFields, String filterField, int maxConcurrentJobs, int pollingTimeIntervalSecond, int bulkJobTimeoutSecond, boolean streamDownload)
+    {
+        return schedule(new LeadBulkExtract(extractedFields, filterField), dateRanges, maxConcurrentJobs, pollingTimeIntervalSecond, bulkJobTimeoutSecond, streamDownload);
+    }
+
+    @Override
+    public File extractAllActivity(Date startTime, Date endTime, ActivityExtractFilter activityExtractFilter, int pollingTimeIntervalSecond, int bulkJobTimeoutSecond)
+    {
+        return extract(new ActivityBulkExtract(activityExtractFilter), startTime, endTime, pollingTimeIntervalSecond, bulkJobTimeoutSecond);
+    }
+
+    @Override
+    public InputStream streamAllActivity(Date startTime, Date endTime, ActivityExtractFilter activityExtractFilter, int pollingTimeIntervalSecond, int bulkJobTimeoutSecond)
+    {
+        return stream(new ActivityBulkExtract(activityExtractFilter), startTime, endTime, pollingTimeIntervalSecond, bulkJobTimeoutSecond);
+    }
+
+    @Override
+    public BulkExtractJobScheduler scheduleActivityExtract(List<MarketoUtils.DateRange> dateRanges, ActivityExtractFilter activityExtractFilter, int maxConcurrentJobs, int pollingTimeIntervalSecond, int bulkJobTimeoutSecond, boolean streamDownload)
+    {
+        return schedule(new ActivityBulkExtract(activityExtractFilter), dateRanges, maxConcurrentJobs, pollingTimeIntervalSecond, bulkJobTimeoutSecond, streamDownload);
+    }
+
+    private File extract(BulkExtract bulkExtract, Date startTime, Date endTime, int pollingTimeIntervalSecond, int bulkJobTimeoutSecond)
+    {
+        if (stateStore.isPresent()) {
+            String key = bulkExtract.buildKey(startTime, endTime);
+            BulkExtractDownloadState state = attachOrEnqueue(bulkExtract, key, startTime, endTime);
+            if (state.getFileSize() < 0) {
+                state.setJobStatus(waitExtract(bulkExtract, state.getExportId(), pollingTimeIntervalSecond, bulkJobTimeoutSecond));
+                stateStore.get().save(key, state);
+            }
+            return downloadBulkExtract(bulkExtract, state, key);
         }
-        catch (InterruptedException e) {
-            LOGGER.error("Exception when waiting for export job id: {}", exportID, e);
-            throw new DataException("Error when wait for bulk extract");
+        String exportID = bulkExtract.create(startTime, endTime);
+        bulkExtract.start(exportID);
+        ObjectNode jobStatus = waitExtract(bulkExtract, exportID, pollingTimeIntervalSecond, bulkJobTimeoutSecond);
+        return downloadBulkExtract(bulkExtract, exportID, jobStatus);
+    }
+
+    private InputStream stream(BulkExtract bulkExtract, Date startTime, Date endTime, int pollingTimeIntervalSecond, int bulkJobTimeoutSecond)
+    {
+        String exportID;
+        if (stateStore.isPresent()) {
+            exportID = attachOrEnqueue(bulkExtract, bulkExtract.buildKey(startTime, endTime), startTime, endTime).getExportId();
+        }
+        else {
+            exportID = bulkExtract.create(startTime, endTime);
+            bulkExtract.start(exportID);
         }
-        return downloadBulkExtract(new Function<BulkExtractRangeHeader, InputStream>()
+        waitExtract(bulkExtract, exportID, pollingTimeIntervalSecond, bulkJobTimeoutSecond);
+        return new BulkExtractInputStream(bulkExtract.getResultFunction(exportID), MAX_RESUME_TIME);
+    }
+
+    private BulkExtractJobScheduler schedule(final BulkExtract bulkExtract, List<MarketoUtils.DateRange> dateRanges, int maxConcurrentJobs, int pollingTimeIntervalSecond, int bulkJobTimeoutSecond, final boolean streamDownload)
+    {
+        // Export id to state key of the jobs enqueued by the scheduler, only used with a state store
+        final Map<String, String> exportKeys = new ConcurrentHashMap<>();
+        return new BulkExtractJobScheduler(dateRanges, new BulkExtractJobScheduler.ExportJobHandler()
         {
             @Override
-            public InputStream apply(BulkExtractRangeHeader bulkExtractRangeHeader)
+            public String enqueueJob(MarketoUtils.DateRange dateRange)
             {
-                return marketoRestClient.getLeadBulkExtractResult(exportID, bulkExtractRangeHeader);
+                Date startTime = dateRange.fromDate.toDate();
+                Date endTime = dateRange.toDate.toDate();
+                if (stateStore.isPresent()) {
+                    String key = bulkExtract.buildKey(startTime, endTime);
+                    String exportID = attachOrEnqueue(bulkExtract, key, startTime, endTime).getExportId();
+                    exportKeys.put(exportID, key);
+                    return exportID;
+                }
+                String exportID = bulkExtract.create(startTime, endTime);
+                bulkExtract.start(exportID);
+                return exportID;
             }
-        });
+
+            @Override
+            public ObjectNode getJobStatus(String exportId)
+            {
+                return bulkExtract.getStatus(exportId);
+            }
+
+            @Override
+            public InputStream open(String exportId, ObjectNode jobStatus)
+            {
+                if (streamDownload) {
+                    return new BulkExtractInputStream(bulkExtract.getResultFunction(exportId), MAX_RESUME_TIME);
+                }
+                File extractedFile;
+                String key = exportKeys.get(exportId);
+                if (key != null) {
+                    BulkExtractDownloadState state = stateStore.get().load(key).or(new BulkExtractDownloadState(exportId));
+                    if (state.getFileSize() < 0) {
+                        state.setJobStatus(jobStatus);
+                        stateStore.get().save(key, state);
+                    }
+                    extractedFile = downloadBulkExtract(bulkExtract, state, key);
+                }
+                else {
+                    extractedFile = downloadBulkExtract(bulkExtract, exportId, jobStatus);
+                }
+                try {
+                    return new FileInputStream(extractedFile);
+                }
+                catch (FileNotFoundException e) {
+                    LOGGER.error("Downloaded bulk extract file not found", e);
+                    throw new DataException("Can't read downloaded bulk extract file");
+                }
+            }
+        }, maxConcurrentJobs, marketoRestClient.getExportJobPollingStrategy(), pollingTimeIntervalSecond, bulkJobTimeoutSecond);
     }
 
-    private long saveExtractedFile(InputStream extractResult, File tempFile) throws DownloadBulkExtractException
+    /**
+     * Re-attach to the export job saved for the request if it can still be used, otherwise create and start a new one.
+     * The export id is saved before waiting for the job, so a run that timed out or failed can pick it up again.
+     */
+    private BulkExtractDownloadState attachOrEnqueue(BulkExtract bulkExtract, String key, Date startTime, Date endTime)
     {
-        long total = 0;
-        try (OutputStream fileOuputStream = new FileOutputStream(tempFile, true)) {
-            byte[] buf = new byte[BUF_SIZE];
-            while (true) {
-                int r = extractResult.read(buf);
-                if (r == -1) {
-                    break;
+        BulkExtractStateStore store = stateStore.get();
+        Optional<BulkExtractDownloadState> savedState = store.load(key);
+        if (savedState.isPresent()) {
+            BulkExtractDownloadState state = savedState.get();
+            if (state.getFileSize() >= 0) {
+                // What is left to download has to come from Marketo
+                boolean downloaded = state.isCompleted() && store.getDataFile(key).isFile();
+                if (downloaded || !isExportFileExpired(state.getFinishedAt())) {
+                    LOGGER.info("Continue the download of {} export [{}]", bulkExtract.getName(), state.getExportId());
+                    return state;
                 }
-                fileOuputStream.write(buf, 0, r);
-                total += r;
+                LOGGER.info("The file of {} export [{}] has expired, a new export will be created", bulkExtract.getName(), state.getExportId());
             }
+            else if (attach(bulkExtract, state.getExportId())) {
+                LOGGER.info("Re-attach to {} export [{}]", bulkExtract.getName(), state.getExportId());
+                return state;
+            }
+        }
+        // Discard whatever an unusable previous job left behind for this request
+        store.remove(key);
+        String exportID = bulkExtract.create(startTime, endTime);
+        bulkExtract.start(exportID);
+        BulkExtractDownloadState state = new BulkExtractDownloadState(exportID);
+        store.save(key, state);
+        return state;
+    }
+
+    private boolean attach(BulkExtract bulkExtract, String exportID)
+    {
+        ObjectNode jobStatus;
+        try {
+            jobStatus = bulkExtract.getStatus(exportID);
+        }
+        catch (DataException e) {
+            LOGGER.warn("Can't get the status of {} export [{}], a new export will be created", bulkExtract.getName(), exportID, e);
+            return false;
         }
-        catch (IOException e) {
-            LOGGER.error("Encounter exception when download bulk extract file", e);
-            throw new DownloadBulkExtractException("Encounter exception when download bulk extract file", e, total);
+        if (jobStatus == null) {
+            LOGGER.warn("Can't get the status of {} export [{}], a new export will be created", bulkExtract.getName(), exportID);
+            return false;
+        }
+        String status = jobStatus.get("status").asText();
+        switch (status) {
+            case "Created":
+                bulkExtract.start(exportID);
+                return true;
+            case "Queued":
+            case "Processing":
+                return true;
+            case "Completed":
+                if (isExportFileExpired(jobStatus.hasNonNull("finishedAt") ? jobStatus.get("finishedAt").asText() : null)) {
+                    LOGGER.info("The file of {} export [{}] has expired, a new export will be created", bulkExtract.getName(), exportID);
+                    return false;
+                }
+                return true;
+            default:
+                LOGGER.info("{} export [{}] is [{}], a new export will be created", bulkExtract.getName(), exportID, status);
+                return false;
         }
-        return total;
     }
 
-    @Override
-    public File extractAllActivity(Date startTime, Date endTime, int pollingTimeIntervalSecond, int bulkJobTimeoutSecond)
+    /**
+     * @param finishedAt finish time of the export job, the file is assumed to be there if it's unknown
+     */
+    private static boolean isExportFileExpired(String finishedAt)
+    {
+        if (finishedAt == null) {
+            return false;
+        }
+        try {
+            return System.currentTimeMillis() - ISO_DATETIME_FORMAT.parseMillis(finishedAt) > EXPORT_FILE_USABLE_MILLIS;
+        }
+        catch (IllegalArgumentException e) {
+            LOGGER.warn("Can't parse export job finish time [{}]", finishedAt);
+            return false;
+        }
+    }
+
+    private ObjectNode waitExtract(BulkExtract bulkExtract, String exportID, int pollingTimeIntervalSecond, int bulkJobTimeoutSecond)
     {
-        final String exportID = marketoRestClient.createActivityExtract(startTime, endTime);
-        marketoRestClient.startActitvityBulkExtract(exportID);
         try {
-            marketoRestClient.waitActitvityExportJobComplete(exportID, pollingTimeIntervalSecond, bulkJobTimeoutSecond);
+            return bulkExtract.waitComplete(exportID, pollingTimeIntervalSecond, bulkJobTimeoutSecond);
         }
         catch (InterruptedException e) {
             LOGGER.error("Exception when waiting for export job id: {}", exportID, e);
             throw new DataException("Error when wait for bulk extract");
         }
-        return downloadBulkExtract(new Function<BulkExtractRangeHeader, InputStream>()
+    }
+
+    private File downloadBulkExtract(BulkExtract bulkExtract, String exportID, ObjectNode jobStatus)
+    {
+        final File tempFile = Exec.getTempFileSpace().createTempFile(DEFAULT_FILE_FORMAT);
+        BulkExtractDownloadState state = new BulkExtractDownloadState(exportID);
+        state.setJobStatus(jobStatus);
+        return new BulkExtractDownloader(bulkExtract.getTransfer(exportID), MAX_RESUME_TIME).download(tempFile, state, downloadParallelism);
+    }
+
+    private File downloadBulkExtract(BulkExtract bulkExtract, BulkExtractDownloadState state, String key)
+    {
+        BulkExtractStateStore store = stateStore.get();
+        return new BulkExtractDownloader(bulkExtract.getTransfer(state.getExportId()), MAX_RESUME_TIME).download(store.getDataFile(key), state, downloadParallelism, store.progressListener(key));
+    }
+
+    /**
+     * Rest calls of a bulk extract target
+     */
+    private abstract class BulkExtract
+    {
+        abstract String getName();
+
+        /**
+         * Key of the export request in the state store
+         */
+        abstract String buildKey(Date startTime, Date endTime);
+
+        abstract String create(Date startTime, Date endTime);
+
+        abstract void start(String exportID);
+
+        abstract ObjectNode getStatus(String exportID);
+
+        abstract ObjectNode waitComplete(String exportID, int pollingTimeIntervalSecond, int bulkJobTimeoutSecond) throws InterruptedException;
+
+        abstract InputStream getResult(String exportID, BulkExtractRangeHeader bulkExtractRangeHeader);
+
+        abstract long download(String exportID, BulkExtractRangeHeader bulkExtractRangeHeader, FileChannel fileChannel, MarketoFileChannelResponseEntityReader.ContentListener contentListener) throws IOException;
+
+        BulkExtractDownloader.Transfer getTransfer(final String exportID)
         {
-            @Override
-            public InputStream apply(BulkExtractRangeHeader bulkExtractRangeHeader)
+            return new BulkExtractDownloader.Transfer()
             {
-                return marketoRestClient.getActivitiesBulkExtractResult(exportID, bulkExtractRangeHeader);
-            }
-        });
+                @Override
+                public long transfer(BulkExtractRangeHeader bulkExtractRangeHeader, FileChannel fileChannel, MarketoFileChannelResponseEntityReader.ContentListener contentListener) throws IOException
+                {
+                    return download(exportID, bulkExtractRangeHeader, fileChannel, contentListener);
+                }
+            };
+        }
+
+        Function<BulkExtractRangeHeader, InputStream> getResultFunction(final String exportID)
+        {
+            return new Function<BulkExtractRangeHeader, InputStream>()
+            {
+                @Override
+                public InputStream apply(BulkExtractRangeHeader bulkExtractRangeHeader)
+                {
+                    return getResult(exportID, bulkExtractRangeHeader);
+                }
+            };
+        }
     }
-    private File downloadBulkExtract(Function<BulkExtractRangeHeader, InputStream> getBulkExtractfunction)
+
+    private class LeadBulkExtract extends BulkExtract
     {
-        final File tempFile = Exec.getTempFileSpace().createTempFile(DEFAULT_FILE_FORMAT);
-        long startByte = 0;
-        int resumeTime = 0;
-        while (resumeTime < MAX_RESUME_TIME) {
-            BulkExtractRangeHeader bulkExtractRangeHeader = new BulkExtractRangeHeader(startByte);
-            InputStream bulkExtractResult = getBulkExtractfunction.apply(bulkExtractRangeHeader);
-            try {
-                saveExtractedFile(bulkExtractResult, tempFile);
-                return tempFile;
-            }
-            catch (DownloadBulkExtractException e) {
-                startByte = startByte + e.getByteWritten();
-                LOGGER.warn("will resume activity bulk extract at byte [{}]", startByte);
-            }
-            resumeTime = resumeTime + 1;
+        private final List<String> extractedFields;
+
+        private final String filterField;
+
+        LeadBulkExtract(List<String> extractedFields, String filterField)
+        {
+            this.extractedFields = extractedFields;
+            this.filterField = filterField;
+        }
+
+        @Override
+        String getName()
+        {
+            return "lead";
+        }
+
+        @Override
+        String buildKey(Date startTime, Date endTime)
+        {
+            return BulkExtractStateStore.buildKey(getName(), startTime.getTime(), endTime.getTime(), extractedFields, filterField);
+        }
+
+        @Override
+        String create(Date startTime, Date endTime)
+        {
+            return marketoRestClient.createLeadBulkExtract(startTime, endTime, extractedFields, filterField);
+        }
+
+        @Override
+        void start(String exportID)
+        {
+            marketoRestClient.startLeadBulkExtract(exportID);
+        }
+
+        @Override
+        ObjectNode getStatus(String exportID)
+        {
+            return marketoRestClient.getLeadExportJobStatus(exportID);
+        }
+
+        @Override
+        ObjectNode waitComplete(String exportID, int pollingTimeIntervalSecond, int bulkJobTimeoutSecond) throws InterruptedException
+        {
+            return marketoRestClient.waitLeadExportJobComplete(exportID, pollingTimeIntervalSecond, bulkJobTimeoutSecond);
+        }
+
+        @Override
+        InputStream getResult(String exportID, BulkExtractRangeHeader bulkExtractRangeHeader)
+        {
+            return marketoRestClient.getLeadBulkExtractResult(exportID, bulkExtractRangeHeader);
+        }
+
+        @Override
+        long download(String exportID, BulkExtractRangeHeader bulkExtractRangeHeader, FileChannel fileChannel, MarketoFileChannelResponseEntityReader.ContentListener contentListener) throws IOException
+        {
+            return marketoRestClient.downloadLeadBulkExtract(exportID, bulkExtractRangeHeader, fileChannel, contentListener);
         }
-        //Too many resume we still can't get the file
-        throw new DataException("Can't down load bulk extract");
     }
+
+    private class ActivityBulkExtract extends BulkExtract
+    {
+        private final ActivityExtractFilter activityExtractFilter;
+
+        ActivityBulkExtract(ActivityExtractFilter activityExtractFilter)
+        {
+            this.activityExtractFilter = activityExtractFilter;
+        }
+
+        @Override
+        String getName()
+        {
+            return "activity";
+        }
+
+        @Override
+        String buildKey(Date startTime, Date endTime)
+        {
+            return BulkExtractStateStore.buildKey(getName(), startTime.getTime(), endTime.getTime(), activityExtractFilter);
+        }
+
+        @Override
+        String create(Date startTime, Date endTime)
+        {
+            return marketoRestClient.createActivityExtract(startTime, endTime, activityExtractFilter);
+        }
+
+        @Override
+        void start(String exportID)
+        {
+            marketoRestClient.startActitvityBulkExtract(exportID);
+        }
+
+        @Override
+        ObjectNode getStatus(String exportID)
+        {
+            return marketoRestClient.getActivityExportJobStatus(exportID);
+        }
+
+        @Override
+        ObjectNode waitComplete(String exportID, int pollingTimeIntervalSecond, int bulkJobTimeoutSecond) throws InterruptedException
+        {
+            return marketoRestClient.waitActitvityExportJobComplete(exportID, pollingTimeIntervalSecond, bulkJobTimeoutSecond);
+        }
+
+        @Override
+        InputStream getResult(String exportID, BulkExtractRangeHeader bulkExtractRangeHeader)
+        {
+            return marketoRestClient.getActivitiesBulkExtractResult(exportID, bulkExtractRangeHeader);
+        }
+
+        @Override
+        long download(String exportID, BulkExtractRangeHeader bulkExtractRangeHeader, FileChannel fileChannel, MarketoFileChannelResponseEntityReader.ContentListener contentListener) throws IOException
+        {
+            return marketoRestClient.downloadActivitiesBulkExtract(exportID, bulkExtractRangeHeader, fileChannel, contentListener);
+        }
+    }
+
     @Override
-    public Iterable<ObjectNode> getAllListLead(List<String> fieldNames)
+    public Iterable<String> getListIds()
+    {
+        return Iterables.transform(marketoRestClient.getLists(), GET_ID_FUNCTION);
+    }
+
+    @Override
+    public ConcurrentLeadIterator getLeadsByLists(Iterator<String> listIds, List<String> fieldNames, Map<String, Long> listLeadCounts, int maxConcurrentFetches)
     {
-        RecordPagingIterable<ObjectNode> lists = marketoRestClient.getLists();
         final String fieldNameString = StringUtils.join(fieldNames, ",");
-        return MarketoUtils.flatMap(lists, new Function<ObjectNode, Iterable<ObjectNode>>()
+        return new ConcurrentLeadIterator(listIds, new Function<String, Iterable<ObjectNode>>()
         {
             @Override
-            public Iterable<ObjectNode> apply(ObjectNode input)
+            public Iterable<ObjectNode> apply(String id)
             {
-                final String id = input.get("id").asText();
-                return Iterables.transform(marketoRestClient.getLeadsByList(id, fieldNameString), new Function<ObjectNode, ObjectNode>()
-                {
-                    @Override
-                    public ObjectNode apply(ObjectNode input)
-                    {
-                        input.put(MarketoUtils.LIST_ID_COLUMN_NAME, id);
-                        return input;
-                    }
-                });
+                return getLeadsByList(id, fieldNameString);
+            }
+        }, listLeadCounts, maxConcurrentFetches);
+    }
+
+    private Iterable<ObjectNode> getLeadsByList(final String id, String fieldNameString)
+    {
+        return Iterables.transform(marketoRestClient.getLeadsByList(id, fieldNameString), new Function<ObjectNode, ObjectNode>()
+        {
+            @Override
+            public ObjectNode apply(ObjectNode input)
+            {
+                input.put(MarketoUtils.LIST_ID_COLUMN_NAME, id);
+                return input;
             }
         });
     }
 
     @Override
-    public Iterable<ObjectNode> getAllProgramLead(List<String> fieldNames)
+    public Iterable<String> getProgramIds(int readAheadPages)
+    {
+        return Iterables.transform(marketoRestClient.getPrograms(readAheadPages), GET_ID_FUNCTION);
+    }
+
+    @Override
+    public ConcurrentLeadIterator getLeadsByPrograms(Iterator<String> programIds, List<String> fieldNames, Map<String, Long> programLeadCounts, int maxConcurrentFetches)
     {
-        RecordPagingIterable<ObjectNode> lists = marketoRestClient.getPrograms();
         final String fieldNameString = StringUtils.join(fieldNames, ",");
-        return MarketoUtils.flatMap(lists, new Function<ObjectNode, Iterable<ObjectNode>>()
+        return new ConcurrentLeadIterator(programIds, new Function<String, Iterable<ObjectNode>>()
         {
             @Override
-            public Iterable<ObjectNode> apply(ObjectNode input)
+            public Iterable<ObjectNode> apply(String id)
             {
-                final String id = input.get("id").asText();
-                return Iterables.transform(marketoRestClient.getLeadsByProgram(id, fieldNameString), new Function<ObjectNode, ObjectNode>()
-                {
-                    @Override
-                    public ObjectNode apply(ObjectNode input)
-                    {
-                        input.put(MarketoUtils.PROGRAM_ID_COLUMN_NAME, id);
-                        return input;
-                    }
-                });
+                return getLeadsByProgram(id, fieldNameString);
+            }
+        }, programLeadCounts, maxConcurrentFetches);
+    }
+
+    private Iterable<ObjectNode> getLeadsByProgram(final String id, String fieldNameString)
+    {
+        return Iterables.transform(marketoRestClient.getLeadsByProgram(id, fieldNameString), new Function<ObjectNode, ObjectNode>()
+        {
+            @Override
+            public ObjectNode apply(ObjectNode input)
+            {
+                input.put(MarketoUtils.PROGRAM_ID_COLUMN_NAME, id);
+                return input;
             }
         });
     }
@@ -200,26 +574,4 @@ public class MarketoServiceImpl implements MarketoService
         columns.add(new MarketoField(MarketoUtils.LIST_ID_COLUMN_NAME, MarketoField.MarketoDataType.STRING));
         return columns;
     }
-
-    private static class DownloadBulkExtractException extends Exception
-    {
-        private final long byteWritten;
-
-        public DownloadBulkExtractException(String message, Throwable cause, long byteWritten)
-        {
-            super(message, cause);
-            this.byteWritten = byteWritten;
-        }
-
-        public DownloadBulkExtractException(Throwable cause, long byteWritten)
-        {
-            super(cause);
-            this.byteWritten = byteWritten;
-        }
-
-        public long getByteWritten()
-        {
-            return byteWritten;
-        }
-    }
 }
@@ -4,6 +4,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Function;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.embulk.base.restclient.ServiceResponseMapper;
 import org.embulk.base.restclient.jackson.JacksonServiceRecord;
 import org.embulk.base.restclient.jackson.JacksonServiceResponseMapper;
@@ -11,7 +12,10 @@ import org.embulk.base.restclient.jackson.JacksonTopLevelValueLocator;
 import org.embulk.base.restclient.record.ServiceRecord;
 import org.embulk.base.restclient.record.ValueLocator;
 import org.embulk.input.marketo.model.MarketoField;
+import org.embulk.spi.DataException;
 import org.embulk.spi.Exec;
+import org.embulk.spi.ExecAction;
+import org.embulk.spi.ExecSession;
 import org.embulk.spi.util.RetryExecutor;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
@@ -23,6 +27,12 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 
 /**
  * Created by tai.khuu on 9/18/17.
@@ -81,6 +91,66 @@ public class MarketoUtils
         return extractedFields;
     }
 
+    /**
+     * Select the fields matching one of the included patterns (all fields when there is none) and none of the excluded ones.
+     * Patterns are globs where * match any characters and ? a single character. Required fields are always kept.
+     * @param columns
+     * @param includedFields
+     * @param excludedFields
+     * @param requiredFields
+     * @return selected fields in their original order
+     */
+    public static List<MarketoField> selectFields(List<MarketoField> columns, List<String> includedFields, List<String> excludedFields, Set<String> requiredFields)
+    {
+        List<Pattern> includedPatterns = compileGlobs(includedFields);
+        List<Pattern> excludedPatterns = compileGlobs(excludedFields);
+        List<MarketoField> selectedFields = new ArrayList<>();
+        for (MarketoField column : columns) {
+            String name = column.getName();
+            boolean selected = (includedPatterns.isEmpty() || matchesAny(includedPatterns, name)) && !matchesAny(excludedPatterns, name);
+            if (selected || requiredFields.contains(name)) {
+                selectedFields.add(column);
+            }
+        }
+        return selectedFields;
+    }
+
+    private static List<Pattern> compileGlobs(List<String> globs)
+    {
+        List<Pattern> patterns = new ArrayList<>();
+        for (String glob : globs) {
+            StringBuilder regex = new StringBuilder();
+            StringBuilder literal = new StringBuilder();
+            for (char c : glob.toCharArray()) {
+                if (c == '*' || c == '?') {
+                    if (literal.length() > 0) {
+                        regex.append(Pattern.quote(literal.toString()));
+                        literal.setLength(0);
+                    }
+                    regex.append(c == '*' ? ".*" : ".");
+                }
+                else {
+                    literal.append(c);
+                }
+            }
+            if (literal.length() > 0) {
+                regex.append(Pattern.quote(literal.toString()));
+            }
+            patterns.add(Pattern.compile(regex.toString()));
+        }
+        return patterns;
+    }
+
+    private static boolean matchesAny(List<Pattern> patterns, String name)
+    {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static String buildColumnName(String prefix, String columnName)
     {
         return prefix + "_" + columnName;
@@ -167,6 +237,71 @@ public class MarketoUtils
             LOGGER.info("Giving up execution on exception", lastException);
         }
     }
+
+    /**
+     * Create a fixed thread pool of daemon threads, threads name will be formatted with nameFormat
+     * @param nameFormat
+     * @param threads
+     * @return ExecutorService
+     */
+    public static ExecutorService newDaemonThreadPool(String nameFormat, int threads)
+    {
+        return Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build());
+    }
+
+    /**
+     * Exec utilities (temp file space, logger...) are bound to the thread that run the Embulk task,
+     * so callable that are submitted to other threads have to run within the task's session.
+     * @param session
+     * @param callable
+     * @return callable that run within the session
+     */
+    public static <T> Callable<T> withExecSession(final ExecSession session, final Callable<T> callable)
+    {
+        return new Callable<T>()
+        {
+            @Override
+            public T call() throws Exception
+            {
+                return Exec.doWith(session, new ExecAction<T>()
+                {
+                    @Override
+                    public T run() throws Exception
+                    {
+                        return callable.call();
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Wait for the future and rethrow the original exception that the background task failed with
+     * @param future
+     * @return result of the future
+     */
+    public static <T> T getFutureResult(Future<T> future)
+    {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataException("Interrupted when waiting for background task", e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            // Exec.doWith wrap the exception one more time
+            while (cause instanceof ExecutionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new DataException(cause);
+        }
+    }
+
     public static <T, R> Iterable<R> flatMap(final Iterable<T> iterable, final Function<T, Iterable<R>> function)
     {
         final Iterator<T> iterator = iterable.iterator();
@@ -0,0 +1,429 @@
+package org.embulk.input.marketo;
+
+import com.google.common.base.Function;
+import org.embulk.spi.DataException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Read an extracted csv file by tokenizing chunks of it on an executor, records are still returned in file order.
+ * The file is cut into chunks of about chunkSize bytes at record boundaries: a light scan of the bytes follows
+ * the quoting the same way {@link CsvByteTokenizer} does, so quoted values spanning several lines are never cut.
+ * Each chunk is tokenized by its own {@link CsvByteTokenizer}, at most maxParsingChunks chunks are kept in memory.
+ * Comment lines are not supported since a quote inside them would mislead the scan.
+ */
+public class ParallelCsvReader implements CsvColumnReader
+{
+    private static final long DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    // Quote or escape character that is not set, it never matches a byte
+    private static final int NO_CHARACTER = 0x100;
+
+    private final FileChannel channel;
+
+    private final ExecutorService executor;
+
+    private final long chunkSize;
+
+    private final int maxParsingChunks;
+
+    private final Function<InputStream, CsvByteTokenizer> tokenizerFactory;
+
+    private final RecordBoundaryScanner scanner;
+
+    private final Deque<Future<ParsedChunk>> parsingChunks = new ArrayDeque<>();
+
+    private long nextChunkStart = 0;
+
+    private ParsedChunk currentChunk;
+
+    private int currentRecord = -1;
+
+    private int currentColumn;
+
+    // Lines of the chunks before the current one
+    private long previousLines = 0;
+
+    public ParallelCsvReader(FileChannel channel, final CsvTokenizer.PluginTask task, ExecutorService executor, int maxParsingChunks)
+    {
+        this(channel, executor, DEFAULT_CHUNK_SIZE, maxParsingChunks, task.getDelimiter().charAt(0),
+                task.getQuoteChar().or(CsvTokenizer.QuoteCharacter.noQuote()).getCharacter(),
+                task.getEscapeChar().or(CsvTokenizer.EscapeCharacter.noEscape()).getCharacter(), task.getTrimIfNotQuoted(),
+                new Function<InputStream, CsvByteTokenizer>()
+                {
+                    @Override
+                    public CsvByteTokenizer apply(InputStream input)
+                    {
+                        return new CsvByteTokenizer(input, task);
+                    }
+                });
+    }
+
+    public ParallelCsvReader(FileChannel channel, ExecutorService executor, long chunkSize, int maxParsingChunks, char delimiter, char quote, char escape, boolean trimIfNotQuoted, Function<InputStream, CsvByteTokenizer> tokenizerFactory)
+    {
+        this.channel = channel;
+        this.executor = executor;
+        this.chunkSize = chunkSize;
+        this.maxParsingChunks = maxParsingChunks;
+        this.tokenizerFactory = tokenizerFactory;
+        this.scanner = new RecordBoundaryScanner(channel, delimiter, quote != CsvTokenizer.NO_QUOTE ? quote : NO_CHARACTER,
+                escape != CsvTokenizer.NO_ESCAPE ? escape : NO_CHARACTER, trimIfNotQuoted);
+    }
+
+    /**
+     * @return true if the csv options allow to cut the file at record boundaries
+     */
+    public static boolean isSupported(CsvTokenizer.PluginTask task)
+    {
+        return CsvByteTokenizer.isSupported(task) && !task.getCommentLineMarker().isPresent();
+    }
+
+    @Override
+    public boolean nextRecord()
+    {
+        while (currentChunk == null || currentRecord + 1 >= currentChunk.records.size()) {
+            if (currentChunk != null) {
+                previousLines += currentChunk.lines;
+            }
+            submitChunks();
+            Future<ParsedChunk> next = parsingChunks.poll();
+            if (next == null) {
+                currentChunk = null;
+                return false;
+            }
+            currentChunk = MarketoUtils.getFutureResult(next);
+            currentRecord = -1;
+            submitChunks();
+        }
+        currentRecord++;
+        currentColumn = 0;
+        return true;
+    }
+
+    private void submitChunks()
+    {
+        try {
+            long size = channel.size();
+            while (parsingChunks.size() < maxParsingChunks && nextChunkStart < size) {
+                final long start = nextChunkStart;
+                final long end = scanner.nextBoundary(Math.min(start + chunkSize, size), size);
+                nextChunkStart = end;
+                parsingChunks.add(executor.submit(new Callable<ParsedChunk>()
+                {
+                    @Override
+                    public ParsedChunk call()
+                    {
+                        return parseChunk(start, end);
+                    }
+                }));
+            }
+        }
+        catch (IOException e) {
+            throw new DataException("Can't read extracted csv file", e);
+        }
+    }
+
+    private ParsedChunk parseChunk(long start, long end)
+    {
+        ParsedChunk chunk = new ParsedChunk();
+        CsvByteTokenizer tokenizer = tokenizerFactory.apply(new ChannelRangeInputStream(channel, start, end));
+        List<String> values = new ArrayList<>();
+        // The header line keeps empty values as they are, like CsvColumnReader.nextColumn
+        boolean header = start == 0;
+        while (tokenizer.nextRecord()) {
+            values.clear();
+            while (tokenizer.hasNextColumn()) {
+                values.add(header ? tokenizer.nextColumn() : tokenizer.nextColumnOrNull());
+            }
+            header = false;
+            chunk.add(values.toArray(new String[values.size()]), tokenizer.getCurrentLineNumber());
+        }
+        chunk.lines = tokenizer.getCurrentLineNumber();
+        return chunk;
+    }
+
+    @Override
+    public boolean hasNextColumn()
+    {
+        return currentChunk != null && currentRecord >= 0 && currentColumn < currentChunk.records.get(currentRecord).length;
+    }
+
+    @Override
+    public String nextColumn()
+    {
+        if (!hasNextColumn()) {
+            throw new CsvTokenizer.InvalidFormatException("Too few columns");
+        }
+        return currentChunk.records.get(currentRecord)[currentColumn++];
+    }
+
+    @Override
+    public String nextColumnOrNull()
+    {
+        return nextColumn();
+    }
+
+    @Override
+    public void skipRemainingColumns()
+    {
+        if (hasNextColumn()) {
+            currentColumn = currentChunk.records.get(currentRecord).length;
+        }
+    }
+
+    @Override
+    public long getCurrentLineNumber()
+    {
+        if (currentChunk == null || currentRecord < 0) {
+            return previousLines;
+        }
+        return previousLines + currentChunk.lineNumbers[currentRecord];
+    }
+
+    @Override
+    public void close()
+    {
+        for (Future<ParsedChunk> future : parsingChunks) {
+            future.cancel(true);
+        }
+        parsingChunks.clear();
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            throw new DataException("Can't close extracted csv file", e);
+        }
+    }
+
+    private static class ParsedChunk
+    {
+        private final List<String[]> records = new ArrayList<>();
+
+        // Line number of each record in the chunk
+        private long[] lineNumbers = new long[1024];
+
+        private long lines;
+
+        private void add(String[] record, long lineNumber)
+        {
+            if (records.size() == lineNumbers.length) {
+                lineNumbers = Arrays.copyOf(lineNumbers, lineNumbers.length * 2);
+            }
+            lineNumbers[records.size()] = lineNumber;
+            records.add(record);
+        }
+    }
+
+    /**
+     * Find record boundaries by following the quoting of the values, without decoding them.
+     * The file is scanned once from the start, boundaries have to be requested in increasing order.
+     */
+    private static class RecordBoundaryScanner
+    {
+        private static final int VALUE_START = 0;
+        private static final int UNQUOTED = 1;
+        private static final int QUOTED = 2;
+        // A quote was read in a quoted value, it's either the closing quote or the first of a doubled quote
+        private static final int QUOTE_IN_QUOTED = 3;
+        // An escape character was read in a quoted value
+        private static final int ESCAPE_IN_QUOTED = 4;
+        private static final int AFTER_QUOTED = 5;
+        // A CR ended the record, it may be followed by a LF
+        private static final int AFTER_CR = 6;
+
+        private final FileChannel channel;
+
+        private final int delimiter;
+
+        private final int quote;
+
+        private final int escape;
+
+        private final boolean trimIfNotQuoted;
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        // File position of the start of the buffer
+        private long bufferPosition = 0;
+
+        private int state = VALUE_START;
+
+        private RecordBoundaryScanner(FileChannel channel, int delimiter, int quote, int escape, boolean trimIfNotQuoted)
+        {
+            this.channel = channel;
+            this.delimiter = delimiter;
+            this.quote = quote;
+            this.escape = escape;
+            this.trimIfNotQuoted = trimIfNotQuoted;
+            buffer.limit(0);
+        }
+
+        /**
+         * @return position of the first record start at or after target, size if there is none
+         */
+        private long nextBoundary(long target, long size) throws IOException
+        {
+            while (true) {
+                if (!buffer.hasRemaining()) {
+                    bufferPosition += buffer.limit();
+                    buffer.clear();
+                    int read = bufferPosition < size ? channel.read(buffer, bufferPosition) : -1;
+                    buffer.flip();
+                    if (read <= 0) {
+                        return size;
+                    }
+                }
+                long position = bufferPosition + buffer.position();
+                if (state == AFTER_CR) {
+                    if (buffer.get(buffer.position()) == '\n') {
+                        buffer.get();
+                        position++;
+                    }
+                    state = VALUE_START;
+                    if (position >= target) {
+                        return position;
+                    }
+                    continue;
+                }
+                if (position >= target && state == VALUE_START && position > 0 && isRecordStart(position)) {
+                    return position;
+                }
+                next(buffer.get() & 0xff);
+            }
+        }
+
+        private boolean isRecordStart(long position) throws IOException
+        {
+            // A value start is a record start only after a line break, not after a delimiter
+            int index = buffer.position() - 1;
+            byte previous;
+            if (index >= 0) {
+                previous = buffer.get(index);
+            }
+            else {
+                ByteBuffer one = ByteBuffer.allocate(1);
+                channel.read(one, position - 1);
+                previous = one.get(0);
+            }
+            return previous == '\n' || previous == '\r';
+        }
+
+        private void next(int b)
+        {
+            switch (state) {
+                case VALUE_START:
+                    if (b == quote) {
+                        state = QUOTED;
+                    }
+                    else if (b == '\r') {
+                        state = AFTER_CR;
+                    }
+                    else if (b != delimiter && b != '\n' && !(trimIfNotQuoted && b == ' ')) {
+                        state = UNQUOTED;
+                    }
+                    break;
+                case UNQUOTED:
+                case AFTER_QUOTED:
+                    endOfValue(b);
+                    break;
+                case QUOTED:
+                    if (b == quote) {
+                        state = QUOTE_IN_QUOTED;
+                    }
+                    else if (b == escape) {
+                        state = ESCAPE_IN_QUOTED;
+                    }
+                    break;
+                case QUOTE_IN_QUOTED:
+                    if (b == quote) {
+                        // doubled quote
+                        state = QUOTED;
+                    }
+                    else {
+                        state = AFTER_QUOTED;
+                        endOfValue(b);
+                    }
+                    break;
+                case ESCAPE_IN_QUOTED:
+                    if (b == quote || b == escape) {
+                        state = QUOTED;
+                    }
+                    else {
+                        // not an escape sequence, the byte is part of the quoted value
+                        state = QUOTED;
+                        next(b);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected state " + state);
+            }
+        }
+
+        private void endOfValue(int b)
+        {
+            if (b == delimiter || b == '\n') {
+                state = VALUE_START;
+            }
+            else if (b == '\r') {
+                state = AFTER_CR;
+            }
+        }
+    }
+
+    /**
+     * Read a range of the file with positional reads, so chunks can be read concurrently from the same channel
+     */
+    private static class ChannelRangeInputStream extends InputStream
+    {
+        private final FileChannel channel;
+
+        private long position;
+
+        private final long end;
+
+        private ChannelRangeInputStream(FileChannel channel, long start, long end)
+        {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (position >= end) {
+                return -1;
+            }
+            int length = (int) Math.min(len, end - position);
+            int read = channel.read(ByteBuffer.wrap(b, off, length), position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close()
+        {
+            // the channel is shared by all chunks
+        }
+    }
+}
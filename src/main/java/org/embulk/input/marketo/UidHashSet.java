@@ -0,0 +1,164 @@
+package org.embulk.input.marketo;
+
+import com.google.common.io.BaseEncoding;
+import org.embulk.config.ConfigException;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Set of record uids kept as 64 bits hashes, used to skip the records already imported at the latest fetch time.
+ * Uids are only hashed, never stored: a set takes 16 bytes per uid in memory and it's written in the config diff
+ * as the base64 of the sorted hashes, 8 bytes per uid.
+ * The chance of two uids sharing a hash is around n^2 / 2^65, negligible for the number of records of one second.
+ */
+public class UidHashSet
+{
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // 0 marks an empty slot of the table, uids never hash to it
+    private static final long EMPTY = 0;
+
+    private long[] table = new long[16];
+
+    private int size = 0;
+
+    public static UidHashSet decode(String encoded)
+    {
+        UidHashSet set = new UidHashSet();
+        if (encoded == null || encoded.isEmpty()) {
+            return set;
+        }
+        byte[] bytes;
+        try {
+            bytes = BaseEncoding.base64().decode(encoded);
+        }
+        catch (IllegalArgumentException e) {
+            throw new ConfigException("Invalid latest_uid_hashes", e);
+        }
+        if (bytes.length % 8 != 0) {
+            throw new ConfigException("Invalid latest_uid_hashes");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            set.addHash(buffer.getLong());
+        }
+        return set;
+    }
+
+    /**
+     * 64 bits FNV-1a hash of the uid chars with a final mix, a null uid is hashed as an empty one
+     */
+    public static long hash(String uid)
+    {
+        long h = FNV_OFFSET_BASIS;
+        if (uid != null) {
+            for (int i = 0; i < uid.length(); i++) {
+                h ^= uid.charAt(i);
+                h *= FNV_PRIME;
+            }
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h != EMPTY ? h : 1;
+    }
+
+    public boolean contains(String uid)
+    {
+        return table[indexOf(hash(uid))] != EMPTY;
+    }
+
+    public void add(String uid)
+    {
+        addHash(hash(uid));
+    }
+
+    public void addAll(UidHashSet other)
+    {
+        for (long h : other.table) {
+            if (h != EMPTY) {
+                addHash(h);
+            }
+        }
+    }
+
+    public void clear()
+    {
+        if (size > 0) {
+            Arrays.fill(table, EMPTY);
+            size = 0;
+        }
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * @return base64 of the sorted hashes
+     */
+    public String encode()
+    {
+        long[] hashes = new long[size];
+        int i = 0;
+        for (long h : table) {
+            if (h != EMPTY) {
+                hashes[i++] = h;
+            }
+        }
+        Arrays.sort(hashes);
+        ByteBuffer buffer = ByteBuffer.allocate(size * 8);
+        for (long h : hashes) {
+            buffer.putLong(h);
+        }
+        return BaseEncoding.base64().encode(buffer.array());
+    }
+
+    private void addHash(long h)
+    {
+        int index = indexOf(h);
+        if (table[index] == EMPTY) {
+            table[index] = h;
+            size++;
+            if (size * 2 > table.length) {
+                resize();
+            }
+        }
+    }
+
+    /**
+     * @return slot of the hash, or the empty slot where it would be added
+     */
+    private int indexOf(long h)
+    {
+        int mask = table.length - 1;
+        int index = (int) h & mask;
+        while (table[index] != EMPTY && table[index] != h) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private void resize()
+    {
+        long[] old = table;
+        table = new long[old.length * 2];
+        size = 0;
+        for (long h : old) {
+            if (h != EMPTY) {
+                addHash(h);
+            }
+        }
+    }
+}
@@ -4,8 +4,13 @@ import com.google.common.base.Optional;
 import org.embulk.base.restclient.ServiceResponseMapper;
 import org.embulk.base.restclient.jackson.JacksonServiceResponseMapper;
 import org.embulk.base.restclient.record.ValueLocator;
+import org.embulk.config.Config;
+import org.embulk.config.ConfigDefault;
+import org.embulk.config.ConfigException;
+import org.embulk.input.marketo.BulkExtractJobScheduler;
 import org.embulk.input.marketo.MarketoService;
 import org.embulk.input.marketo.MarketoUtils;
+import org.embulk.input.marketo.model.ActivityExtractFilter;
 import org.embulk.spi.DataException;
 import org.embulk.spi.Exec;
 import org.embulk.spi.type.Types;
@@ -15,6 +20,7 @@ import org.slf4j.Logger;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
+import java.util.List;
 
 /**
  * Created by tai.khuu on 9/18/17.
@@ -25,7 +31,24 @@ public class ActivityBulkExtractInputPlugin extends MarketoBaseBulkExtractInputP
     public static final String INCREMENTAL_COLUMN = "activityDate";
     public static final String UID_COLUMN = "marketoGUID";
 
-    public interface PluginTask extends MarketoBaseBulkExtractInputPlugin.PluginTask {}
+    public interface PluginTask extends MarketoBaseBulkExtractInputPlugin.PluginTask
+    {
+        @Config("activity_type_ids")
+        @ConfigDefault("[]")
+        List<Integer> getActivityTypeIds();
+
+        @Config("primary_attribute_value_ids")
+        @ConfigDefault("[]")
+        List<Integer> getPrimaryAttributeValueIds();
+
+        @Config("primary_attribute_values")
+        @ConfigDefault("[]")
+        List<String> getPrimaryAttributeValues();
+
+        @Config("attributes_as_string")
+        @ConfigDefault("false")
+        Boolean getAttributesAsString();
+    }
 
     @Override
     public void validateInputTask(PluginTask task)
@@ -33,13 +56,28 @@ public class ActivityBulkExtractInputPlugin extends MarketoBaseBulkExtractInputP
         task.setIncrementalColumn(Optional.of(INCREMENTAL_COLUMN));
         task.setUidColumn(Optional.of(UID_COLUMN));
         super.validateInputTask(task);
+        boolean primaryAttributeFilter = !task.getPrimaryAttributeValueIds().isEmpty() || !task.getPrimaryAttributeValues().isEmpty();
+        if (primaryAttributeFilter && task.getActivityTypeIds().isEmpty()) {
+            throw new ConfigException("activity_type_ids is required to filter by primary attribute");
+        }
+        if (!task.getPrimaryAttributeValueIds().isEmpty() && !task.getPrimaryAttributeValues().isEmpty()) {
+            throw new ConfigException("primary_attribute_value_ids and primary_attribute_values can't be used together");
+        }
+    }
+
+    private static ActivityExtractFilter getActivityExtractFilter(PluginTask task)
+    {
+        return new ActivityExtractFilter(task.getActivityTypeIds(), task.getPrimaryAttributeValueIds(), task.getPrimaryAttributeValues());
     }
 
     @Override
     protected InputStream getExtractedStream(MarketoService service, PluginTask task, DateTime fromDate, DateTime toDate)
     {
+        if (task.getStreamBulkExtract()) {
+            return service.streamAllActivity(fromDate.toDate(), toDate.toDate(), getActivityExtractFilter(task), task.getPollingIntervalSecond(), task.getBulkJobTimeoutSecond());
+        }
         try {
-            return new FileInputStream(service.extractAllActivity(fromDate.toDate(), toDate.toDate(), task.getPollingIntervalSecond(), task.getBulkJobTimeoutSecond()));
+            return new FileInputStream(service.extractAllActivity(fromDate.toDate(), toDate.toDate(), getActivityExtractFilter(task), task.getPollingIntervalSecond(), task.getBulkJobTimeoutSecond()));
         }
         catch (FileNotFoundException e) {
             LOGGER.error("Exception when trying to extract activity", e);
@@ -47,6 +85,12 @@ public class ActivityBulkExtractInputPlugin extends MarketoBaseBulkExtractInputP
         }
     }
 
+    @Override
+    protected BulkExtractJobScheduler scheduleExtract(MarketoService service, PluginTask task, List<MarketoUtils.DateRange> dateRanges)
+    {
+        return service.scheduleActivityExtract(dateRanges, getActivityExtractFilter(task), task.getMaxConcurrentExportJobs(), task.getPollingIntervalSecond(), task.getBulkJobTimeoutSecond(), task.getStreamBulkExtract());
+    }
+
     @Override
     public ServiceResponseMapper<? extends ValueLocator> buildServiceResponseMapper(PluginTask task)
     {
@@ -58,7 +102,7 @@ public class ActivityBulkExtractInputPlugin extends MarketoBaseBulkExtractInputP
                 .add("campaignId", Types.STRING)
                 .add("primaryAttributeValueId", Types.STRING)
                 .add("primaryAttributeValue", Types.STRING)
-                .add("attributes", Types.JSON);
+                .add("attributes", task.getAttributesAsString() ? Types.STRING : Types.JSON);
         return builder.build();
     }
 }
@@ -0,0 +1,305 @@
+package org.embulk.input.marketo.delegate;
+
+import com.google.common.base.Function;
+import org.embulk.input.marketo.CsvColumnReader;
+import org.embulk.input.marketo.CsvTokenizer;
+import org.embulk.input.marketo.MarketoDateTimeParser;
+import org.embulk.input.marketo.MarketoJsonValueParser;
+import org.embulk.spi.Column;
+import org.embulk.spi.ColumnVisitor;
+import org.embulk.spi.DataException;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.Schema;
+import org.embulk.spi.time.Timestamp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Import the records of an extracted csv file straight into the page builder.
+ * The csv columns are bound to the schema columns once from the header line, then every value is written
+ * with the setter of its column type, without building an intermediate record for each row.
+ */
+class CsvRecordImporter
+{
+    private static final String NULL_VALUE = "null";
+
+    private final CsvColumnReader csvReader;
+
+    private final List<String> headers;
+
+    // Values of the current record, reused for every record
+    private final String[] values;
+
+    // Setter of each csv column, null if the column is not in the schema
+    private final ColumnSetter[] setters;
+
+    private final List<Column> missingColumns;
+
+    // Date time parser of each csv column, created on first use. Each column has its own parser so the last value
+    // memo is shared by the incremental filter and the timestamp setter of the same column
+    private final MarketoDateTimeParser[] dateTimeParsers;
+
+    private final MarketoJsonValueParser jsonParser = new MarketoJsonValueParser();
+
+    private int eagerColumnCount;
+
+    // Number of columns of the current record that have been read, -1 before the first record
+    private int readColumnCount = -1;
+
+    // All the columns of the current record have been read
+    private boolean recordCompleted = false;
+
+    /**
+     * @param csvReader extracted csv, the header line is read right away
+     * @param schema schema of the imported records
+     * @param schemaColumnName name of the schema column of a csv column
+     */
+    CsvRecordImporter(CsvColumnReader csvReader, Schema schema, Function<String, String> schemaColumnName)
+    {
+        this.csvReader = csvReader;
+        headers = new ArrayList<>();
+        if (csvReader.nextRecord()) {
+            while (csvReader.hasNextColumn()) {
+                headers.add(csvReader.nextColumn());
+            }
+        }
+        Map<String, Column> schemaColumns = new HashMap<>();
+        for (Column column : schema.getColumns()) {
+            schemaColumns.put(column.getName(), column);
+        }
+        values = new String[headers.size()];
+        eagerColumnCount = values.length;
+        dateTimeParsers = new MarketoDateTimeParser[headers.size()];
+        setters = new ColumnSetter[headers.size()];
+        Set<Column> boundColumns = new HashSet<>();
+        for (int i = 0; i < headers.size(); i++) {
+            Column column = schemaColumns.get(schemaColumnName.apply(headers.get(i)));
+            if (column != null) {
+                setters[i] = newColumnSetter(column, i);
+                boundColumns.add(column);
+            }
+        }
+        missingColumns = new ArrayList<>();
+        for (Column column : schema.getColumns()) {
+            if (!boundColumns.contains(column)) {
+                missingColumns.add(column);
+            }
+        }
+    }
+
+    /**
+     * @return position of the csv column, -1 if the file doesn't have it
+     */
+    int indexOf(String header)
+    {
+        return headers.indexOf(header);
+    }
+
+    /**
+     * Only tokenize the first columns of a record until it's imported, so records skipped by the incremental filter
+     * don't pay for decoding all their values
+     * @param eagerColumnCount number of columns read by {@link #nextRecord()}
+     */
+    void setEagerColumnCount(int eagerColumnCount)
+    {
+        this.eagerColumnCount = Math.min(eagerColumnCount, values.length);
+    }
+
+    /**
+     * Read the next record, the values of the eager columns are available through {@link #getValue(int)} until the next call
+     * @return false at the end of the file
+     */
+    boolean nextRecord()
+    {
+        if (readColumnCount >= 0 && !recordCompleted) {
+            // The previous record was not imported
+            csvReader.skipRemainingColumns();
+        }
+        if (!csvReader.nextRecord()) {
+            readColumnCount = -1;
+            return false;
+        }
+        readColumnCount = 0;
+        recordCompleted = false;
+        readColumns(eagerColumnCount);
+        return true;
+    }
+
+    /**
+     * Read the columns of the current record up to count
+     */
+    private void readColumns(int count)
+    {
+        try {
+            while (readColumnCount < count && csvReader.hasNextColumn()) {
+                values[readColumnCount] = csvReader.nextColumnOrNull();
+                readColumnCount++;
+            }
+        }
+        catch (CsvTokenizer.InvalidValueException ex) {
+            throw new DataException("Encounter exception when parse csv file. Please check to see if you are using the correct" +
+                    "quote or escape character.", ex);
+        }
+        if (count < values.length && readColumnCount == count) {
+            return;
+        }
+        if (csvReader.hasNextColumn()) {
+            throw new DataException("Too many columns in csv line " + csvReader.getCurrentLineNumber());
+        }
+        // Missing trailing columns are null
+        Arrays.fill(values, readColumnCount, values.length, null);
+        recordCompleted = true;
+    }
+
+    String getValue(int index)
+    {
+        return values[index];
+    }
+
+    /**
+     * @return epoch milliseconds of the date time value at index in the current record
+     */
+    long getDateTimeMillis(int index)
+    {
+        return getDateTimeParser(index).parseMillis(values[index]);
+    }
+
+    private MarketoDateTimeParser getDateTimeParser(int index)
+    {
+        if (dateTimeParsers[index] == null) {
+            dateTimeParsers[index] = new MarketoDateTimeParser();
+        }
+        return dateTimeParsers[index];
+    }
+
+    /**
+     * Add the current record to the page builder
+     */
+    void importRecord(PageBuilder pageBuilder)
+    {
+        if (!recordCompleted) {
+            readColumns(values.length);
+        }
+        for (int i = 0; i < setters.length; i++) {
+            ColumnSetter setter = setters[i];
+            if (setter == null) {
+                continue;
+            }
+            String value = values[i];
+            if (value == null || value.equals(NULL_VALUE)) {
+                pageBuilder.setNull(setter.column);
+            }
+            else {
+                setter.set(pageBuilder, value);
+            }
+        }
+        for (Column column : missingColumns) {
+            pageBuilder.setNull(column);
+        }
+        pageBuilder.addRecord();
+    }
+
+    private ColumnSetter newColumnSetter(final Column column, final int index)
+    {
+        final ColumnSetter[] setter = new ColumnSetter[1];
+        column.visit(new ColumnVisitor()
+        {
+            @Override
+            public void booleanColumn(Column column)
+            {
+                setter[0] = new ColumnSetter(column)
+                {
+                    @Override
+                    void set(PageBuilder pageBuilder, String value)
+                    {
+                        pageBuilder.setBoolean(column, Boolean.parseBoolean(value));
+                    }
+                };
+            }
+
+            @Override
+            public void longColumn(Column column)
+            {
+                setter[0] = new ColumnSetter(column)
+                {
+                    @Override
+                    void set(PageBuilder pageBuilder, String value)
+                    {
+                        pageBuilder.setLong(column, Long.parseLong(value));
+                    }
+                };
+            }
+
+            @Override
+            public void doubleColumn(Column column)
+            {
+                setter[0] = new ColumnSetter(column)
+                {
+                    @Override
+                    void set(PageBuilder pageBuilder, String value)
+                    {
+                        pageBuilder.setDouble(column, Double.parseDouble(value));
+                    }
+                };
+            }
+
+            @Override
+            public void stringColumn(Column column)
+            {
+                setter[0] = new ColumnSetter(column)
+                {
+                    @Override
+                    void set(PageBuilder pageBuilder, String value)
+                    {
+                        pageBuilder.setString(column, value);
+                    }
+                };
+            }
+
+            @Override
+            public void timestampColumn(Column column)
+            {
+                setter[0] = new ColumnSetter(column)
+                {
+                    @Override
+                    void set(PageBuilder pageBuilder, String value)
+                    {
+                        pageBuilder.setTimestamp(column, Timestamp.ofEpochMilli(getDateTimeParser(index).parseMillis(value)));
+                    }
+                };
+            }
+
+            @Override
+            public void jsonColumn(Column column)
+            {
+                setter[0] = new ColumnSetter(column)
+                {
+                    @Override
+                    void set(PageBuilder pageBuilder, String value)
+                    {
+                        pageBuilder.setJson(column, jsonParser.parse(value));
+                    }
+                };
+            }
+        });
+        return setter[0];
+    }
+
+    private abstract static class ColumnSetter
+    {
+        protected final Column column;
+
+        ColumnSetter(Column column)
+        {
+            this.column = column;
+        }
+
+        abstract void set(PageBuilder pageBuilder, String value);
+    }
+}
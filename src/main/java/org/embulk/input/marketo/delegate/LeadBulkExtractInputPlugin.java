@@ -5,6 +5,8 @@ import org.embulk.base.restclient.ServiceResponseMapper;
 import org.embulk.base.restclient.record.ValueLocator;
 import org.embulk.config.Config;
 import org.embulk.config.ConfigDefault;
+import org.embulk.config.ConfigException;
+import org.embulk.input.marketo.BulkExtractJobScheduler;
 import org.embulk.input.marketo.MarketoService;
 import org.embulk.input.marketo.MarketoServiceImpl;
 import org.embulk.input.marketo.MarketoUtils;
@@ -18,7 +20,9 @@ import org.slf4j.Logger;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Created by tai.khuu on 9/18/17.
@@ -34,6 +38,14 @@ public class LeadBulkExtractInputPlugin extends MarketoBaseBulkExtractInputPlugi
         @Config("use_updated_at")
         @ConfigDefault("false")
         boolean getUseUpdatedAt();
+
+        @Config("included_fields")
+        @ConfigDefault("[]")
+        List<String> getIncludedFields();
+
+        @Config("excluded_fields")
+        @ConfigDefault("[]")
+        List<String> getExcludedFields();
     }
 
     @Override
@@ -48,8 +60,11 @@ public class LeadBulkExtractInputPlugin extends MarketoBaseBulkExtractInputPlugi
     @Override
     protected InputStream getExtractedStream(MarketoService service, PluginTask task, DateTime fromDate, DateTime toDate)
     {
+        List<String> fieldNames = task.getExtractedFields();
+        if (task.getStreamBulkExtract()) {
+            return service.streamLead(fromDate.toDate(), toDate.toDate(), fieldNames, task.getIncrementalColumn().orNull(), task.getPollingIntervalSecond(), task.getBulkJobTimeoutSecond());
+        }
         try {
-            List<String> fieldNames = task.getExtractedFields();
             return new FileInputStream(service.extractLead(fromDate.toDate(), toDate.toDate(), fieldNames, task.getIncrementalColumn().orNull(), task.getPollingIntervalSecond(), task.getBulkJobTimeoutSecond()));
         }
         catch (FileNotFoundException e) {
@@ -58,12 +73,31 @@ public class LeadBulkExtractInputPlugin extends MarketoBaseBulkExtractInputPlugi
         }
     }
 
+    @Override
+    protected BulkExtractJobScheduler scheduleExtract(MarketoService service, PluginTask task, List<MarketoUtils.DateRange> dateRanges)
+    {
+        return service.scheduleLeadExtract(dateRanges, task.getExtractedFields(), task.getIncrementalColumn().orNull(), task.getMaxConcurrentExportJobs(), task.getPollingIntervalSecond(), task.getBulkJobTimeoutSecond(), task.getStreamBulkExtract());
+    }
+
+    @Override
+    protected String getSchemaColumnName(PluginTask task, String csvColumnName)
+    {
+        return MarketoUtils.buildColumnName(task.getSchemaColumnPrefix(), csvColumnName);
+    }
+
     @Override
     public ServiceResponseMapper<? extends ValueLocator> buildServiceResponseMapper(PluginTask task)
     {
         try (MarketoRestClient marketoRestClient = createMarketoRestClient(task)) {
             MarketoService marketoService = new MarketoServiceImpl(marketoRestClient);
-            List<MarketoField> columns = marketoService.describeLead();
+            // Only the selected fields are exported, the incremental and uid columns are needed to filter the records
+            Set<String> requiredFields = new HashSet<>();
+            requiredFields.add(task.getUseUpdatedAt() ? UPDATED_AT : task.getIncrementalColumn().orNull());
+            requiredFields.add(task.getUidColumn().orNull());
+            List<MarketoField> columns = MarketoUtils.selectFields(marketoService.describeLead(), task.getIncludedFields(), task.getExcludedFields(), requiredFields);
+            if (columns.isEmpty()) {
+                throw new ConfigException("No lead field is selected by included_fields and excluded_fields");
+            }
             task.setExtractedFields(MarketoUtils.getFieldNameFromMarketoFields(columns));
             return MarketoUtils.buildDynamicResponseMapper(task.getSchemaColumnPrefix(), columns);
         }
@@ -1,9 +1,10 @@
 package org.embulk.input.marketo.delegate;
 
-import com.google.common.collect.FluentIterable;
 import org.embulk.base.restclient.ServiceResponseMapper;
-import org.embulk.base.restclient.record.ServiceRecord;
 import org.embulk.base.restclient.record.ValueLocator;
+import org.embulk.config.Config;
+import org.embulk.config.ConfigDefault;
+import org.embulk.input.marketo.ConcurrentLeadIterator;
 import org.embulk.input.marketo.MarketoService;
 import org.embulk.input.marketo.MarketoServiceImpl;
 import org.embulk.input.marketo.MarketoUtils;
@@ -12,24 +13,51 @@ import org.embulk.input.marketo.rest.MarketoRestClient;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by tai.khuu on 9/18/17.
  */
-public class LeadWithListInputPlugin extends MarketoBaseInputPluginDelegate<LeadWithListInputPlugin.PluginTask>
+public class LeadWithListInputPlugin extends MarketoBaseLeadGroupInputPlugin<LeadWithListInputPlugin.PluginTask>
 {
-    public interface PluginTask extends MarketoBaseInputPluginDelegate.PluginTask
+    private static final String LIST_LEAD_COUNTS = "list_lead_counts";
+
+    public interface PluginTask extends MarketoBaseLeadGroupInputPlugin.PluginTask
     {
+        @Config("list_lead_counts")
+        @ConfigDefault("{}")
+        Map<String, Long> getListLeadCounts();
     }
 
     public LeadWithListInputPlugin()
     {
     }
 
+    /**
+     * Largest lists of the previous run first, so they don't end up being fetched alone at the end
+     */
+    @Override
+    protected Iterable<String> getGroupIds(MarketoService marketoService, PluginTask task)
+    {
+        return sortByLeadCount(marketoService.getListIds(), task.getListLeadCounts());
+    }
+
+    @Override
+    protected ConcurrentLeadIterator getLeads(MarketoService marketoService, PluginTask task, Iterator<String> groupIds, Map<String, Long> groupLeadCounts)
+    {
+        return marketoService.getLeadsByLists(groupIds, task.getExtractedFields(), groupLeadCounts, task.getMaxConcurrentFetches());
+    }
+
+    @Override
+    protected String getGroupLeadCountsName()
+    {
+        return LIST_LEAD_COUNTS;
+    }
+
     @Override
-    protected Iterator<ServiceRecord> getServiceRecords(MarketoService marketoService, PluginTask task)
+    protected Map<String, Long> getPreviousGroupLeadCounts(PluginTask task)
     {
-        return FluentIterable.from(marketoService.getAllListLead(task.getExtractedFields())).transform(MarketoUtils.TRANSFORM_OBJECT_TO_JACKSON_SERVICE_RECORD_FUNCTION).iterator();
+        return task.getListLeadCounts();
     }
 
     @Override
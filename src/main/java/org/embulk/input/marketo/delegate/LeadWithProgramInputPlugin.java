@@ -1,9 +1,10 @@
 package org.embulk.input.marketo.delegate;
 
-import com.google.common.collect.FluentIterable;
 import org.embulk.base.restclient.ServiceResponseMapper;
-import org.embulk.base.restclient.record.ServiceRecord;
 import org.embulk.base.restclient.record.ValueLocator;
+import org.embulk.config.Config;
+import org.embulk.config.ConfigDefault;
+import org.embulk.input.marketo.ConcurrentLeadIterator;
 import org.embulk.input.marketo.MarketoService;
 import org.embulk.input.marketo.MarketoServiceImpl;
 import org.embulk.input.marketo.MarketoUtils;
@@ -12,22 +13,47 @@ import org.embulk.input.marketo.rest.MarketoRestClient;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by tai.khuu on 9/18/17.
  */
-public class LeadWithProgramInputPlugin extends MarketoBaseInputPluginDelegate<LeadWithProgramInputPlugin.PluginTask>
+public class LeadWithProgramInputPlugin extends MarketoBaseLeadGroupInputPlugin<LeadWithProgramInputPlugin.PluginTask>
 {
-    public interface PluginTask extends MarketoBaseInputPluginDelegate.PluginTask
+    private static final String PROGRAM_LEAD_COUNTS = "program_lead_counts";
+
+    public interface PluginTask extends MarketoBaseLeadGroupInputPlugin.PluginTask
+    {
+        @Config("program_lead_counts")
+        @ConfigDefault("{}")
+        Map<String, Long> getProgramLeadCounts();
+    }
+
+    /**
+     * Programs are fetched in listing order, the next program pages are requested while the leads are fetched
+     */
+    @Override
+    protected Iterable<String> getGroupIds(MarketoService marketoService, PluginTask task)
+    {
+        return marketoService.getProgramIds(task.getMaxConcurrentFetches());
+    }
+
+    @Override
+    protected ConcurrentLeadIterator getLeads(MarketoService marketoService, PluginTask task, Iterator<String> groupIds, Map<String, Long> groupLeadCounts)
+    {
+        return marketoService.getLeadsByPrograms(groupIds, task.getExtractedFields(), groupLeadCounts, task.getMaxConcurrentFetches());
+    }
+
+    @Override
+    protected String getGroupLeadCountsName()
     {
+        return PROGRAM_LEAD_COUNTS;
     }
 
     @Override
-    protected Iterator<ServiceRecord> getServiceRecords(MarketoService marketoService, PluginTask task)
+    protected Map<String, Long> getPreviousGroupLeadCounts(PluginTask task)
     {
-        List<String> fieldNames = task.getExtractedFields();
-        return FluentIterable.from(marketoService.getAllProgramLead(fieldNames)).
-                transform(MarketoUtils.TRANSFORM_OBJECT_TO_JACKSON_SERVICE_RECORD_FUNCTION).iterator();
+        return task.getProgramLeadCounts();
     }
 
     @Override
@@ -1,24 +1,28 @@
 package org.embulk.input.marketo.delegate;
 
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Optional;
-import com.google.common.collect.Iterators;
-import org.embulk.base.restclient.jackson.JacksonServiceRecord;
-import org.embulk.base.restclient.jackson.JacksonServiceValue;
+import org.embulk.base.restclient.ServiceDataSplitter;
 import org.embulk.base.restclient.record.RecordImporter;
 import org.embulk.base.restclient.record.ServiceRecord;
-import org.embulk.base.restclient.record.ValueLocator;
 import org.embulk.config.Config;
 import org.embulk.config.ConfigDefault;
 import org.embulk.config.ConfigDiff;
 import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigInject;
 import org.embulk.config.TaskReport;
+import org.embulk.input.marketo.BulkExtractJobScheduler;
+import org.embulk.input.marketo.BulkExtractStateStore;
+import org.embulk.input.marketo.CsvByteTokenizer;
+import org.embulk.input.marketo.CsvColumnReader;
 import org.embulk.input.marketo.CsvTokenizer;
 import org.embulk.input.marketo.MarketoService;
 import org.embulk.input.marketo.MarketoServiceImpl;
 import org.embulk.input.marketo.MarketoUtils;
+import org.embulk.input.marketo.ParallelCsvReader;
+import org.embulk.input.marketo.UidHashSet;
+import org.embulk.input.marketo.rest.ExportJobPollingStrategy;
 import org.embulk.input.marketo.rest.MarketoRestClient;
 import org.embulk.spi.BufferAllocator;
 import org.embulk.spi.Column;
@@ -29,26 +33,25 @@ import org.embulk.spi.PageBuilder;
 import org.embulk.spi.Schema;
 import org.embulk.spi.json.JsonParser;
 import org.embulk.spi.time.Timestamp;
-import org.embulk.spi.time.TimestampParser;
 import org.embulk.spi.util.InputStreamFileInput;
 import org.embulk.spi.util.LineDecoder;
 import org.joda.time.DateTime;
-import org.joda.time.format.DateTimeFormatter;
-import org.joda.time.format.ISODateTimeFormat;
-import org.msgpack.value.Value;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.InputStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Created by tai.khuu on 9/18/17.
@@ -59,14 +62,21 @@ public abstract class MarketoBaseBulkExtractInputPlugin<T extends MarketoBaseBul
 
     private static final String LATEST_UID_LIST = "latest_uids";
 
-    private static final DateTimeFormatter ISO_DATETIME_FORMAT = ISODateTimeFormat.dateTimeParser();
+    private static final String LATEST_UID_HASHES = "latest_uid_hashes";
 
     private static final String FROM_DATE = "from_date";
 
     private static final int MARKETO_MAX_RANGE_EXTRACT = 30;
 
+    // Marketo allow 10 queued export jobs per account
+    private static final int MAX_QUEUED_EXPORT_JOBS = 10;
+
     private static final String IMPORTED = "imported";
 
+    private static final String EXPORT_RECORDS_PER_SECOND = "export_records_per_second";
+
+    private static final String EXPORT_PROCESSING_SECOND = "export_processing_second";
+
     public interface PluginTask extends MarketoBaseInputPluginDelegate.PluginTask, CsvTokenizer.PluginTask
     {
         @Config("from_date")
@@ -95,10 +105,15 @@ public abstract class MarketoBaseBulkExtractInputPlugin<T extends MarketoBaseBul
         @ConfigDefault("true")
         Boolean getIncremental();
 
+        // Kept to read the config diff of older versions, uids are now saved as hashes in latest_uid_hashes
         @Config("latest_uids")
         @ConfigDefault("[]")
         Set<String> getPreviousUids();
 
+        @Config("latest_uid_hashes")
+        @ConfigDefault("null")
+        Optional<String> getPreviousUidHashes();
+
         @Config("to_date")
         @ConfigDefault("null")
         Optional<Date> getToDate();
@@ -115,6 +130,34 @@ public abstract class MarketoBaseBulkExtractInputPlugin<T extends MarketoBaseBul
         @ConfigDefault("null")
         Optional<String> getUidColumn();
         void setUidColumn(Optional<String> uidColumn);
+
+        @Config("max_task_count")
+        @ConfigDefault("1")
+        Integer getMaxTaskCount();
+
+        @Config("pipeline_bulk_extract")
+        @ConfigDefault("false")
+        Boolean getPipelineBulkExtract();
+
+        @Config("max_concurrent_export_jobs")
+        @ConfigDefault("1")
+        Integer getMaxConcurrentExportJobs();
+
+        @Config("stream_bulk_extract")
+        @ConfigDefault("false")
+        Boolean getStreamBulkExtract();
+
+        @Config("download_parallelism")
+        @ConfigDefault("1")
+        Integer getDownloadParallelism();
+
+        @Config("download_state_directory")
+        @ConfigDefault("null")
+        Optional<String> getDownloadStateDirectory();
+
+        @Config("parallel_parse_threads")
+        @ConfigDefault("1")
+        Integer getParallelParseThreads();
     }
 
     @Override
@@ -127,6 +170,9 @@ public abstract class MarketoBaseBulkExtractInputPlugin<T extends MarketoBaseBul
         if (task.getFromDate().getTime() >= task.getJobStartTime().getMillis()) {
             throw new ConfigException("From date can't not be in future");
         }
+        if (task.getMaxConcurrentExportJobs() < 1 || task.getMaxConcurrentExportJobs() > MAX_QUEUED_EXPORT_JOBS) {
+            throw new ConfigException("max_concurrent_export_jobs must be between 1 and " + MAX_QUEUED_EXPORT_JOBS);
+        }
         //Calculate to date
         DateTime toDate = getToDate(task);
         task.setToDate(Optional.of(toDate.toDate()));
@@ -149,7 +195,7 @@ public abstract class MarketoBaseBulkExtractInputPlugin<T extends MarketoBaseBul
     {
         ConfigDiff configDiff = super.buildConfigDiff(task, schema, taskCount, taskReports);
         Long currentLatestFetchTime = 0L;
-        Set latestUIds = new HashSet();
+        UidHashSet latestUIds = new UidHashSet();
         String incrementalColumn = task.getIncrementalColumn().orNull();
         int imported = 0;
         if (incrementalColumn != null && task.getIncremental()) {
@@ -161,10 +207,10 @@ public abstract class MarketoBaseBulkExtractInputPlugin<T extends MarketoBaseBul
                 }
                 if (currentLatestFetchTime < latestFetchTime) {
                     currentLatestFetchTime = latestFetchTime;
-                    latestUIds = taskReport.get(Set.class, LATEST_UID_LIST);
+                    latestUIds = UidHashSet.decode(taskReport.get(String.class, LATEST_UID_HASHES));
                 }
                 else if (currentLatestFetchTime.equals(latestFetchTime)) {
-                    latestUIds.addAll(taskReport.get(Set.class, LATEST_UID_LIST));
+                    latestUIds.addAll(UidHashSet.decode(taskReport.get(String.class, LATEST_UID_HASHES)));
                 }
                 if (taskReport.has(IMPORTED)) {
                     imported = imported + taskReport.get(Integer.class, IMPORTED);
@@ -180,11 +226,31 @@ public abstract class MarketoBaseBulkExtractInputPlugin<T extends MarketoBaseBul
                 configDiff.set(FROM_DATE, df.format(new DateTime(currentLatestFetchTime).plusSeconds(1).toDate()));
             }
             configDiff.set(LATEST_FETCH_TIME, currentLatestFetchTime);
-            configDiff.set(LATEST_UID_LIST, latestUIds);
+            configDiff.set(LATEST_UID_HASHES, latestUIds.encode());
+            // Uids of older versions are replaced by their hashes
+            configDiff.set(LATEST_UID_LIST, Collections.emptyList());
         }
+        // Carry the learned export processing rate over to the next run, it's used to schedule the status polling
+        setAverage(configDiff, EXPORT_RECORDS_PER_SECOND, taskReports);
+        setAverage(configDiff, EXPORT_PROCESSING_SECOND, taskReports);
         return configDiff;
     }
 
+    private static void setAverage(ConfigDiff configDiff, String key, List<TaskReport> taskReports)
+    {
+        double sum = 0;
+        int count = 0;
+        for (TaskReport taskReport : taskReports) {
+            if (taskReport.has(key)) {
+                sum = sum + taskReport.get(Double.class, key);
+                count++;
+            }
+        }
+        if (count > 0) {
+            configDiff.set(key, sum / count);
+        }
+    }
+
     @Override
     public TaskReport ingestServiceData(final T task, RecordImporter recordImporter, int taskIndex, PageBuilder pageBuilder)
     {
@@ -195,67 +261,93 @@ public abstract class MarketoBaseBulkExtractInputPlugin<T extends MarketoBaseBul
             return importMockPreviewData(pageBuilder);
         }
         else {
-            try (LineDecoderIterator decoderIterator = getLineDecoderIterator(task)) {
-                Iterator<Map<String, String>> csvRecords = Iterators.concat(Iterators.transform(decoderIterator, new Function<LineDecoder, Iterator<Map<String, String>>>()
-                {
-                    @Override
-                    public Iterator<Map<String, String>> apply(LineDecoder input)
-                    {
-                        return new CsvRecordIterator(input, task);
-                    }
-                }));
+            try (CsvReaderIterator csvReaderIterator = getCsvReaderIterator(task, taskIndex)) {
                 Long latestFetchTime = task.getLatestFetchTime().or(0L);
                 long currentTimestamp = latestFetchTime;
-                Set<String> latestUids = task.getPreviousUids();
-                //Keep the preview code here when we can enable real preview
-                if (Exec.isPreview()) {
-                    csvRecords = Iterators.limit(csvRecords, PREVIEW_RECORD_LIMIT);
+                UidHashSet latestUids = UidHashSet.decode(task.getPreviousUidHashes().orNull());
+                for (String previousUid : task.getPreviousUids()) {
+                    latestUids.add(previousUid);
                 }
                 int imported = 0;
-                while (csvRecords.hasNext()) {
-                    Map<String, String> csvRecord = csvRecords.next();
+                while (csvReaderIterator.hasNext()) {
+                    CsvRecordImporter csvRecordImporter = newCsvRecordImporter(task, csvReaderIterator.next(), pageBuilder.getSchema());
+                    int incrementalColumnIndex = csvRecordImporter.indexOf(incrementalColumn);
+                    int uidColumnIndex = csvRecordImporter.indexOf(uidColumn);
                     if (task.getIncremental()) {
-                        String incrementalTimeStamp = csvRecord.get(incrementalColumn);
-                        long timestamp = ISO_DATETIME_FORMAT.parseDateTime(incrementalTimeStamp).getMillis();
-                        //Ignore records that have timestamp smaller or equal with latestFetchTime
-                        if (latestFetchTime >= timestamp) {
-                            continue;
-                        }
-                        if (!csvRecord.containsKey(incrementalColumn)) {
+                        if (incrementalColumnIndex < 0) {
                             throw new DataException("Extracted record doesn't have incremental column " + incrementalColumn);
                         }
-                        if (uidColumn != null) {
-                            String uid = csvRecord.get(uidColumn);
-                            if (latestUids.contains(uid)) {
-                                //Duplicate value
+                        // Other columns are only read for the records that pass the incremental filter
+                        csvRecordImporter.setEagerColumnCount(Math.max(incrementalColumnIndex, uidColumnIndex) + 1);
+                    }
+                    while (csvRecordImporter.nextRecord()) {
+                        if (task.getIncremental()) {
+                            long timestamp = csvRecordImporter.getDateTimeMillis(incrementalColumnIndex);
+                            //Ignore records that have timestamp smaller or equal with latestFetchTime
+                            if (latestFetchTime >= timestamp) {
                                 continue;
                             }
-                        }
-                        if (currentTimestamp < timestamp) {
-                            currentTimestamp = timestamp;
-                            //switch timestamp
-                            latestUids.clear();
-                        }
-                        else if (currentTimestamp == timestamp) {
-                            //timestamp is equal
-                            if (uidColumn != null) {
-                                String uid = csvRecord.get(uidColumn);
-                                latestUids.add(uid);
+                            if (uidColumnIndex >= 0) {
+                                String uid = csvRecordImporter.getValue(uidColumnIndex);
+                                if (latestUids.contains(uid)) {
+                                    //Duplicate value
+                                    continue;
+                                }
+                            }
+                            if (currentTimestamp < timestamp) {
+                                currentTimestamp = timestamp;
+                                //switch timestamp
+                                latestUids.clear();
+                            }
+                            else if (currentTimestamp == timestamp) {
+                                //timestamp is equal
+                                if (uidColumnIndex >= 0) {
+                                    String uid = csvRecordImporter.getValue(uidColumnIndex);
+                                    latestUids.add(uid);
+                                }
                             }
                         }
+                        csvRecordImporter.importRecord(pageBuilder);
+                        imported = imported + 1;
                     }
-                    ObjectNode objectNode = MarketoUtils.OBJECT_MAPPER.valueToTree(csvRecord);
-                    recordImporter.importRecord(new AllStringJacksonServiceRecord(objectNode), pageBuilder);
-                    imported = imported + 1;
                 }
                 taskReport.set(LATEST_FETCH_TIME, currentTimestamp);
-                taskReport.set(LATEST_UID_LIST, latestUids);
+                taskReport.set(LATEST_UID_HASHES, latestUids.encode());
                 taskReport.set(IMPORTED, imported);
+                ExportJobPollingStrategy pollingStrategy = csvReaderIterator.getExportJobPollingStrategy();
+                if (pollingStrategy != null) {
+                    if (pollingStrategy.getRecordsPerSecond().isPresent()) {
+                        taskReport.set(EXPORT_RECORDS_PER_SECOND, pollingStrategy.getRecordsPerSecond().get());
+                    }
+                    if (pollingStrategy.getProcessingSeconds().isPresent()) {
+                        taskReport.set(EXPORT_PROCESSING_SECOND, pollingStrategy.getProcessingSeconds().get());
+                    }
+                }
                 return taskReport;
             }
         }
     }
 
+    private CsvRecordImporter newCsvRecordImporter(final T task, CsvColumnReader csvReader, Schema schema)
+    {
+        return new CsvRecordImporter(csvReader, schema, new Function<String, String>()
+        {
+            @Override
+            public String apply(String csvColumnName)
+            {
+                return getSchemaColumnName(task, csvColumnName);
+            }
+        });
+    }
+
+    /**
+     * @return name of the schema column the extracted csv column is imported into
+     */
+    protected String getSchemaColumnName(T task, String csvColumnName)
+    {
+        return csvColumnName;
+    }
+
     /**
      * This method should be removed when we allow skip preview phase
      * @param pageBuilder
@@ -310,93 +402,90 @@ public abstract class MarketoBaseBulkExtractInputPlugin<T extends MarketoBaseBul
         return Exec.newTaskReport();
     }
 
-    private LineDecoderIterator getLineDecoderIterator(T task)
+    private CsvReaderIterator getCsvReaderIterator(T task, int taskIndex)
     {
-        List<MarketoUtils.DateRange> dateRanges = MarketoUtils.sliceRange(new DateTime(task.getFromDate()), new DateTime(task.getToDate().orNull()), MARKETO_MAX_RANGE_EXTRACT);
-        final Iterator<MarketoUtils.DateRange> iterator = dateRanges.iterator();
-        return new LineDecoderIterator(iterator, task);
+        List<MarketoUtils.DateRange> dateRanges = getTaskDateRanges(task, taskIndex);
+        return new CsvReaderIterator(dateRanges, task);
     }
 
-    @Override
-    protected final Iterator<ServiceRecord> getServiceRecords(MarketoService marketoService, T task)
+    private static List<MarketoUtils.DateRange> getDateRanges(PluginTask task)
     {
-        throw new UnsupportedOperationException();
+        return MarketoUtils.sliceRange(new DateTime(task.getFromDate()), new DateTime(task.getToDate().orNull()), MARKETO_MAX_RANGE_EXTRACT);
     }
 
-    protected abstract InputStream getExtractedStream(MarketoService service, T task, DateTime fromDate, DateTime toDate);
-
-    private static class AllStringJacksonServiceRecord extends JacksonServiceRecord
+    private static int getTaskCount(PluginTask task, int numberOfRanges)
     {
-        public AllStringJacksonServiceRecord(ObjectNode record)
-        {
-            super(record);
-        }
-
-        @Override
-        public JacksonServiceValue getValue(ValueLocator locator)
-        {
-            // We know that this thing only contain text.
-            JacksonServiceValue value = super.getValue(locator);
-            return new StringConverterJacksonServiceRecord(value.stringValue());
-        }
+        return Math.max(1, Math.min(task.getMaxTaskCount(), numberOfRanges));
     }
 
-    private static class StringConverterJacksonServiceRecord extends JacksonServiceValue
+    /**
+     * Date ranges are distributed to tasks in round robin so every task get a similar amount of days.
+     * When the plugin run in a single task the whole from_date..to_date window belong to it regardless of the index.
+     * @param task
+     * @param taskIndex
+     * @return date ranges that the task at taskIndex have to extract
+     */
+    @VisibleForTesting
+    protected List<MarketoUtils.DateRange> getTaskDateRanges(T task, int taskIndex)
     {
-        private String textValue;
-
-        public StringConverterJacksonServiceRecord(String textValue)
-        {
-            super(null);
-            this.textValue = textValue;
+        List<MarketoUtils.DateRange> dateRanges = getDateRanges(task);
+        int taskCount = getTaskCount(task, dateRanges.size());
+        if (taskCount == 1) {
+            return dateRanges;
         }
-
-        @Override
-        public boolean isNull()
-        {
-            return textValue == null || textValue.equals("null");
+        List<MarketoUtils.DateRange> taskDateRanges = new ArrayList<>();
+        for (int i = taskIndex; i < dateRanges.size(); i += taskCount) {
+            taskDateRanges.add(dateRanges.get(i));
         }
+        return taskDateRanges;
+    }
 
-        @Override
-        public boolean booleanValue()
-        {
-            return Boolean.parseBoolean(textValue);
-        }
+    @Override
+    public ServiceDataSplitter<T> buildServiceDataSplitter(T task)
+    {
+        return new DateRangeServiceDataSplitter<>();
+    }
 
-        @Override
-        public double doubleValue()
-        {
-            return Double.parseDouble(textValue);
-        }
+    @Override
+    protected final Iterator<ServiceRecord> getServiceRecords(MarketoService marketoService, T task)
+    {
+        throw new UnsupportedOperationException();
+    }
 
-        @Override
-        public Value jsonValue(JsonParser jsonParser)
-        {
-            return jsonParser.parse(textValue);
-        }
+    protected abstract InputStream getExtractedStream(MarketoService service, T task, DateTime fromDate, DateTime toDate);
 
-        @Override
-        public long longValue()
-        {
-            return Long.parseLong(textValue);
-        }
+    protected abstract BulkExtractJobScheduler scheduleExtract(MarketoService service, T task, List<MarketoUtils.DateRange> dateRanges);
 
+    /**
+     * Split the bulk extract date ranges across Embulk tasks, up to max_task_count tasks.
+     * Each task extract its own share of ranges, see {@link #getTaskDateRanges(PluginTask, int)}
+     */
+    private static class DateRangeServiceDataSplitter<T extends PluginTask> implements ServiceDataSplitter<T>
+    {
         @Override
-        public String stringValue()
+        public int numberToSplitWithHintingInTask(T task)
         {
-            return textValue;
+            return getTaskCount(task, getDateRanges(task).size());
         }
 
         @Override
-        public Timestamp timestampValue(TimestampParser timestampParser)
+        public void hintInPerTask(T task, Schema schema, int taskIndex)
         {
-            return timestampParser.parse(textValue);
         }
     }
 
-    private final class LineDecoderIterator implements Iterator<LineDecoder>, AutoCloseable
+    /**
+     * Iterate through the extracted file of each date range.
+     * Files are tokenized on their raw bytes by a {@link CsvByteTokenizer} when the csv options allow it.
+     * When parallel_parse_threads is more than 1, downloaded files are tokenized in chunks by a {@link ParallelCsvReader}.
+     * When max_concurrent_export_jobs is more than 1, export jobs are created and polled by a {@link BulkExtractJobScheduler},
+     * the limit applies to each task.
+     * In pipeline mode the extract of the next date range (create, enqueue, wait and download) is run in
+     * background while the current one is being imported.
+     */
+    private final class CsvReaderIterator implements Iterator<CsvColumnReader>, AutoCloseable
     {
-        private LineDecoder currentLineDecoder;
+        private CsvColumnReader currentCsvReader;
 
         private Iterator<MarketoUtils.DateRange> dateRangeIterator;
 
@@ -404,19 +493,55 @@ public abstract class MarketoBaseBulkExtractInputPlugin<T extends MarketoBaseBul
 
         private MarketoRestClient marketoRestClient;
         private T task;
-        public LineDecoderIterator(Iterator<MarketoUtils.DateRange> dateRangeIterator, T task)
+
+        private BulkExtractJobScheduler jobScheduler;
+
+        private ExecutorService executorService;
+
+        private ExecutorService parseExecutorService;
+
+        private Future<InputStream> nextExtractedStream;
+
+        public CsvReaderIterator(List<MarketoUtils.DateRange> dateRanges, T task)
         {
             marketoRestClient = createMarketoRestClient(task);
-            marketoService = new MarketoServiceImpl(marketoRestClient);
-            this.dateRangeIterator = dateRangeIterator;
+            Optional<BulkExtractStateStore> stateStore = Optional.absent();
+            if (task.getDownloadStateDirectory().isPresent()) {
+                stateStore = Optional.of(new BulkExtractStateStore(new File(task.getDownloadStateDirectory().get()), task.getAccountId(), MarketoUtils.getEndPoint(task.getAccountId())));
+            }
+            marketoService = new MarketoServiceImpl(marketoRestClient, task.getDownloadParallelism(), stateStore);
+            this.dateRangeIterator = dateRanges.iterator();
             this.task = task;
+            if (task.getMaxConcurrentExportJobs() > 1) {
+                jobScheduler = scheduleExtract(marketoService, task, dateRanges);
+            }
+            if (task.getPipelineBulkExtract()) {
+                executorService = MarketoUtils.newDaemonThreadPool("marketo-bulk-extract-%d", 1);
+            }
+            if (task.getParallelParseThreads() > 1) {
+                parseExecutorService = MarketoUtils.newDaemonThreadPool("marketo-csv-parse-%d", task.getParallelParseThreads());
+            }
+        }
+
+        public ExportJobPollingStrategy getExportJobPollingStrategy()
+        {
+            return marketoRestClient.getExportJobPollingStrategy();
         }
 
         @Override
         public void close()
         {
-            if (currentLineDecoder != null) {
-                currentLineDecoder.close();
+            if (executorService != null) {
+                executorService.shutdownNow();
+            }
+            if (currentCsvReader != null) {
+                currentCsvReader.close();
+            }
+            if (parseExecutorService != null) {
+                parseExecutorService.shutdownNow();
+            }
+            if (jobScheduler != null) {
+                jobScheduler.close();
             }
             if (marketoRestClient != null) {
                 marketoRestClient.close();
@@ -426,94 +551,79 @@ public abstract class MarketoBaseBulkExtractInputPlugin<T extends MarketoBaseBul
         @Override
         public boolean hasNext()
         {
-            return dateRangeIterator.hasNext();
+            return nextExtractedStream != null || hasNextExtract();
         }
 
         @Override
-        public LineDecoder next()
+        public CsvColumnReader next()
         {
             if (hasNext()) {
-                MarketoUtils.DateRange next = dateRangeIterator.next();
-                InputStream extractedStream = getExtractedStream(marketoService, task, next.fromDate, next.toDate);
-                currentLineDecoder = new LineDecoder(new InputStreamFileInput(task.getBufferAllocator(), extractedStream), task);
-                return currentLineDecoder;
+                InputStream extractedStream;
+                if (executorService == null) {
+                    extractedStream = nextExtract();
+                }
+                else {
+                    if (nextExtractedStream == null) {
+                        nextExtractedStream = submitNextExtract();
+                    }
+                    extractedStream = MarketoUtils.getFutureResult(nextExtractedStream);
+                    nextExtractedStream = hasNextExtract() ? submitNextExtract() : null;
+                }
+                if (currentCsvReader != null) {
+                    currentCsvReader.close();
+                }
+                currentCsvReader = openCsvReader(extractedStream);
+                return currentCsvReader;
             }
             throw new NoSuchElementException();
         }
 
-        @Override
-        public void remove()
-        {
-            throw new UnsupportedOperationException("Removed are not supported");
-        }
-    }
-
-    private class CsvRecordIterator implements Iterator<Map<String, String>>
-    {
-        private CsvTokenizer tokenizer;
-
-        private List<String> headers;
-
-        private Map<String, String> currentCsvRecord;
-        public CsvRecordIterator(LineDecoder lineDecoder, T task)
+        private CsvColumnReader openCsvReader(InputStream extractedStream)
         {
-            tokenizer = new CsvTokenizer(lineDecoder, task);
+            // Downloaded files can be cut in chunks that are tokenized in parallel, streamed extracts are read as they arrive
+            if (parseExecutorService != null && extractedStream instanceof FileInputStream && ParallelCsvReader.isSupported(task)) {
+                return new ParallelCsvReader(((FileInputStream) extractedStream).getChannel(), task, parseExecutorService, task.getParallelParseThreads() * 2);
+            }
+            if (CsvByteTokenizer.isSupported(task)) {
+                return new CsvByteTokenizer(extractedStream, task);
+            }
+            CsvTokenizer tokenizer = new CsvTokenizer(new LineDecoder(new InputStreamFileInput(task.getBufferAllocator(), extractedStream), task), task);
             if (!tokenizer.nextFile()) {
                 throw new DataException("Can't read extract input stream");
             }
-            headers = new ArrayList<>();
-            tokenizer.nextRecord();
-            while (tokenizer.hasNextColumn()) {
-                headers.add(tokenizer.nextColumn());
-            }
+            return tokenizer;
         }
 
-        @Override
-        public boolean hasNext()
+        private boolean hasNextExtract()
         {
-            if (currentCsvRecord == null) {
-                currentCsvRecord = getNextCSVRecord();
+            return jobScheduler != null ? jobScheduler.hasNext() : dateRangeIterator.hasNext();
+        }
+
+        private InputStream nextExtract()
+        {
+            if (jobScheduler != null) {
+                return jobScheduler.next();
             }
-            return currentCsvRecord != null;
+            MarketoUtils.DateRange next = dateRangeIterator.next();
+            return getExtractedStream(marketoService, task, next.fromDate, next.toDate);
         }
 
-        @Override
-        public Map<String, String> next()
+        private Future<InputStream> submitNextExtract()
         {
-            try {
-                if (hasNext()) {
-                    return currentCsvRecord;
+            return executorService.submit(MarketoUtils.withExecSession(Exec.session(), new Callable<InputStream>()
+            {
+                @Override
+                public InputStream call()
+                {
+                    return nextExtract();
                 }
-            }
-            finally {
-                currentCsvRecord = null;
-            }
-            throw new NoSuchElementException();
+            }));
         }
 
         @Override
         public void remove()
         {
-            throw new UnsupportedOperationException();
-        }
-        private Map<String, String> getNextCSVRecord()
-        {
-            if (!tokenizer.nextRecord()) {
-                return null;
-            }
-            Map<String, String> kvMap = new HashMap<>();
-            try {
-                int i = 0;
-                while (tokenizer.hasNextColumn()) {
-                    kvMap.put(headers.get(i), tokenizer.nextColumnOrNull());
-                    i++;
-                }
-            }
-            catch (CsvTokenizer.InvalidValueException ex) {
-                throw new DataException("Encounter exception when parse csv file. Please check to see if you are using the correct" +
-                        "quote or escape character.", ex);
-            }
-            return kvMap;
+            throw new UnsupportedOperationException("Removed are not supported");
         }
     }
 }
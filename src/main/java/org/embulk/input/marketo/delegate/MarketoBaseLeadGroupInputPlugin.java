@@ -0,0 +1,241 @@
+package org.embulk.input.marketo.delegate;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import org.embulk.base.restclient.ServiceDataSplitter;
+import org.embulk.base.restclient.record.RecordImporter;
+import org.embulk.base.restclient.record.ServiceRecord;
+import org.embulk.config.Config;
+import org.embulk.config.ConfigDefault;
+import org.embulk.config.ConfigDiff;
+import org.embulk.config.ConfigException;
+import org.embulk.config.TaskReport;
+import org.embulk.input.marketo.ConcurrentLeadIterator;
+import org.embulk.input.marketo.MarketoService;
+import org.embulk.input.marketo.MarketoServiceImpl;
+import org.embulk.input.marketo.MarketoUtils;
+import org.embulk.input.marketo.rest.MarketoRestClient;
+import org.embulk.spi.Exec;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.Schema;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Base of the targets that import the leads of every group (list or program), the leads of up to
+ * max_concurrent_fetches groups are fetched at the same time.
+ * With max_task_count above 1 the groups are listed once at transaction time and split across the tasks,
+ * balanced by the number of leads of each group remembered from the previous run.
+ */
+public abstract class MarketoBaseLeadGroupInputPlugin<T extends MarketoBaseLeadGroupInputPlugin.PluginTask> extends MarketoBaseInputPluginDelegate<T>
+{
+    private static final Logger LOGGER = Exec.getLogger(MarketoBaseLeadGroupInputPlugin.class);
+
+    // Marketo allow 10 concurrent API calls per account
+    private static final int MAX_CONCURRENT_FETCHES = 10;
+
+    public interface PluginTask extends MarketoBaseInputPluginDelegate.PluginTask
+    {
+        @Config("max_concurrent_fetches")
+        @ConfigDefault("1")
+        Integer getMaxConcurrentFetches();
+
+        @Config("max_task_count")
+        @ConfigDefault("1")
+        Integer getMaxTaskCount();
+
+        // Group ids fetched by each task, empty when the groups are not split
+        @Config("task_group_ids")
+        @ConfigDefault("[]")
+        List<List<String>> getTaskGroupIds();
+
+        void setTaskGroupIds(List<List<String>> taskGroupIds);
+    }
+
+    @Override
+    public void validateInputTask(T task)
+    {
+        super.validateInputTask(task);
+        if (task.getMaxConcurrentFetches() < 1 || task.getMaxConcurrentFetches() > MAX_CONCURRENT_FETCHES) {
+            throw new ConfigException("max_concurrent_fetches must be between 1 and " + MAX_CONCURRENT_FETCHES);
+        }
+        if (task.getMaxTaskCount() < 1) {
+            throw new ConfigException("max_task_count must be at least 1");
+        }
+    }
+
+    @Override
+    public TaskReport ingestServiceData(T task, RecordImporter recordImporter, int taskIndex, PageBuilder pageBuilder)
+    {
+        Map<String, Long> groupLeadCounts = new ConcurrentHashMap<>();
+        try (MarketoRestClient marketoRestClient = createMarketoRestClient(task)) {
+            MarketoService marketoService = new MarketoServiceImpl(marketoRestClient);
+            Iterator<String> groupIds;
+            if (task.getTaskGroupIds().isEmpty()) {
+                groupIds = getGroupIds(marketoService, task).iterator();
+            }
+            else {
+                groupIds = task.getTaskGroupIds().get(taskIndex).iterator();
+            }
+            // The fetching threads are stopped before the client is closed
+            try (ConcurrentLeadIterator leads = getLeads(marketoService, task, groupIds, groupLeadCounts)) {
+                importRecords(Iterators.transform(leads, MarketoUtils.TRANSFORM_OBJECT_TO_JACKSON_SERVICE_RECORD_FUNCTION), recordImporter, pageBuilder);
+            }
+        }
+        TaskReport taskReport = Exec.newTaskReport();
+        taskReport.set(getGroupLeadCountsName(), groupLeadCounts);
+        return taskReport;
+    }
+
+    @Override
+    protected final Iterator<ServiceRecord> getServiceRecords(MarketoService marketoService, T task)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Remember the number of leads of each group, it orders and balances the groups of the next run
+     */
+    @Override
+    public ConfigDiff buildConfigDiff(T task, Schema schema, int taskCount, List<TaskReport> taskReports)
+    {
+        ConfigDiff configDiff = super.buildConfigDiff(task, schema, taskCount, taskReports);
+        Map<String, Long> groupLeadCounts = new HashMap<>();
+        for (TaskReport taskReport : taskReports) {
+            if (!taskReport.has(getGroupLeadCountsName())) {
+                continue;
+            }
+            TaskReport counts = taskReport.getNested(getGroupLeadCountsName());
+            for (String groupId : counts.getAttributeNames()) {
+                groupLeadCounts.put(groupId, counts.get(Long.class, groupId));
+            }
+        }
+        configDiff.set(getGroupLeadCountsName(), groupLeadCounts);
+        return configDiff;
+    }
+
+    @Override
+    public ServiceDataSplitter<T> buildServiceDataSplitter(T task)
+    {
+        return new GroupServiceDataSplitter();
+    }
+
+    /**
+     * @return ids of all the groups, in the order they are fetched when the groups are not split
+     */
+    protected abstract Iterable<String> getGroupIds(MarketoService marketoService, T task);
+
+    /**
+     * @param groupLeadCounts receive the number of leads of each fetched group
+     */
+    protected abstract ConcurrentLeadIterator getLeads(MarketoService marketoService, T task, Iterator<String> groupIds, Map<String, Long> groupLeadCounts);
+
+    /**
+     * @return name of the config option and task report entry holding the number of leads of each group
+     */
+    protected abstract String getGroupLeadCountsName();
+
+    protected abstract Map<String, Long> getPreviousGroupLeadCounts(T task);
+
+    /**
+     * Sort the groups by descending number of leads, groups without a known count first since they may be large
+     */
+    protected static List<String> sortByLeadCount(Iterable<String> groupIds, final Map<String, Long> groupLeadCounts)
+    {
+        List<String> sortedIds = Lists.newArrayList(groupIds);
+        Collections.sort(sortedIds, new Comparator<String>()
+        {
+            @Override
+            public int compare(String id1, String id2)
+            {
+                Long count1 = groupLeadCounts.get(id1);
+                Long count2 = groupLeadCounts.get(id2);
+                long c1 = count1 != null ? count1 : Long.MAX_VALUE;
+                long c2 = count2 != null ? count2 : Long.MAX_VALUE;
+                return c1 < c2 ? 1 : (c1 == c2 ? 0 : -1);
+            }
+        });
+        return sortedIds;
+    }
+
+    /**
+     * Split the groups in at most maxTaskCount partitions of about the same number of leads: largest groups first,
+     * each one goes to the partition with the fewest leads. A group without a known count weights the average count.
+     */
+    @VisibleForTesting
+    static List<List<String>> partitionGroups(List<String> groupIds, Map<String, Long> groupLeadCounts, int maxTaskCount)
+    {
+        int taskCount = Math.min(maxTaskCount, groupIds.size());
+        List<List<String>> partitions = new ArrayList<>();
+        if (taskCount <= 1) {
+            if (!groupIds.isEmpty()) {
+                partitions.add(sortByLeadCount(groupIds, groupLeadCounts));
+            }
+            return partitions;
+        }
+        long knownTotal = 0;
+        int knownGroups = 0;
+        for (String groupId : groupIds) {
+            Long count = groupLeadCounts.get(groupId);
+            if (count != null) {
+                knownTotal += count;
+                knownGroups++;
+            }
+        }
+        Map<String, Long> groupWeights = new HashMap<>();
+        long unknownWeight = knownGroups > 0 ? Math.max(1, knownTotal / knownGroups) : 1;
+        for (String groupId : groupIds) {
+            Long count = groupLeadCounts.get(groupId);
+            groupWeights.put(groupId, count != null ? count : unknownWeight);
+        }
+        long[] partitionLeads = new long[taskCount];
+        for (int i = 0; i < taskCount; i++) {
+            partitions.add(new ArrayList<String>());
+        }
+        for (String groupId : sortByLeadCount(groupIds, groupWeights)) {
+            int lightest = 0;
+            for (int i = 1; i < taskCount; i++) {
+                if (partitionLeads[i] < partitionLeads[lightest]) {
+                    lightest = i;
+                }
+            }
+            partitionLeads[lightest] += groupWeights.get(groupId);
+            partitions.get(lightest).add(groupId);
+        }
+        return partitions;
+    }
+
+    private class GroupServiceDataSplitter implements ServiceDataSplitter<T>
+    {
+        @Override
+        public int numberToSplitWithHintingInTask(T task)
+        {
+            if (task.getMaxTaskCount() <= 1) {
+                task.setTaskGroupIds(Collections.<List<String>>emptyList());
+                return 1;
+            }
+            List<String> groupIds;
+            try (MarketoRestClient marketoRestClient = createMarketoRestClient(task)) {
+                groupIds = Lists.newArrayList(getGroupIds(new MarketoServiceImpl(marketoRestClient), task));
+            }
+            List<List<String>> taskGroupIds = partitionGroups(groupIds, getPreviousGroupLeadCounts(task), task.getMaxTaskCount());
+            LOGGER.info("Split [{}] groups into [{}] tasks", groupIds.size(), taskGroupIds.size());
+            task.setTaskGroupIds(taskGroupIds);
+            return Math.max(1, taskGroupIds.size());
+        }
+
+        @Override
+        public void hintInPerTask(T task, Schema schema, int taskIndex)
+        {
+        }
+    }
+}
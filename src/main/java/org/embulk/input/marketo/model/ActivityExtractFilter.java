@@ -0,0 +1,68 @@
+package org.embulk.input.marketo.model;
+
+import org.embulk.input.marketo.model.filter.MarketoFilter;
+import org.embulk.input.marketo.model.filter.ValueListFilter;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optional filters of an activity bulk extract, in addition to the createdAt range.
+ * Empty lists are not sent. Marketo only accept primary attribute filters together with activityTypeIds.
+ */
+public class ActivityExtractFilter
+{
+    public static final ActivityExtractFilter NONE = new ActivityExtractFilter(Collections.<Integer>emptyList(), Collections.<Integer>emptyList(), Collections.<String>emptyList());
+
+    private final List<Integer> activityTypeIds;
+
+    private final List<Integer> primaryAttributeValueIds;
+
+    private final List<String> primaryAttributeValues;
+
+    public ActivityExtractFilter(List<Integer> activityTypeIds, List<Integer> primaryAttributeValueIds, List<String> primaryAttributeValues)
+    {
+        this.activityTypeIds = activityTypeIds;
+        this.primaryAttributeValueIds = primaryAttributeValueIds;
+        this.primaryAttributeValues = primaryAttributeValues;
+    }
+
+    public List<Integer> getActivityTypeIds()
+    {
+        return activityTypeIds;
+    }
+
+    public List<Integer> getPrimaryAttributeValueIds()
+    {
+        return primaryAttributeValueIds;
+    }
+
+    public List<String> getPrimaryAttributeValues()
+    {
+        return primaryAttributeValues;
+    }
+
+    public void addTo(Map<String, MarketoFilter> filterMap)
+    {
+        if (!activityTypeIds.isEmpty()) {
+            filterMap.put("activityTypeIds", new ValueListFilter<>(activityTypeIds));
+        }
+        if (!primaryAttributeValueIds.isEmpty()) {
+            filterMap.put("primaryAttributeValueIds", new ValueListFilter<>(primaryAttributeValueIds));
+        }
+        if (!primaryAttributeValues.isEmpty()) {
+            filterMap.put("primaryAttributeValues", new ValueListFilter<>(primaryAttributeValues));
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ActivityExtractFilter{" +
+                "activityTypeIds=" + activityTypeIds +
+                ", primaryAttributeValueIds=" + primaryAttributeValueIds +
+                ", primaryAttributeValues=" + primaryAttributeValues +
+                '}';
+    }
+}
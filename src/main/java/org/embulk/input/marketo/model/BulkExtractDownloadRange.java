@@ -0,0 +1,66 @@
+package org.embulk.input.marketo.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Inclusive byte range of a bulk extract file and the position it has been downloaded up to
+ */
+public class BulkExtractDownloadRange
+{
+    @JsonProperty("start")
+    private long start;
+
+    @JsonProperty("end")
+    private long end;
+
+    @JsonProperty("position")
+    private long position;
+
+    public BulkExtractDownloadRange()
+    {
+    }
+
+    public BulkExtractDownloadRange(long start, long end)
+    {
+        this.start = start;
+        this.end = end;
+        this.position = start;
+    }
+
+    public long getStart()
+    {
+        return start;
+    }
+
+    public void setStart(long start)
+    {
+        this.start = start;
+    }
+
+    public long getEnd()
+    {
+        return end;
+    }
+
+    public void setEnd(long end)
+    {
+        this.end = end;
+    }
+
+    public long getPosition()
+    {
+        return position;
+    }
+
+    public void setPosition(long position)
+    {
+        this.position = position;
+    }
+
+    @JsonIgnore
+    public boolean isCompleted()
+    {
+        return position > end;
+    }
+}
@@ -0,0 +1,124 @@
+package org.embulk.input.marketo.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Progress of a bulk extract download, persisted so a restarted run can continue it
+ */
+public class BulkExtractDownloadState
+{
+    @JsonProperty("export_id")
+    private String exportId;
+
+    @JsonProperty("file_size")
+    private long fileSize = -1;
+
+    @JsonProperty("file_checksum")
+    private String fileChecksum;
+
+    @JsonProperty("ranges")
+    private List<BulkExtractDownloadRange> ranges = new ArrayList<>();
+
+    @JsonProperty("completed")
+    private boolean completed;
+
+    // When the export job finished, Marketo keeps its file for 7 days from then
+    @JsonProperty("finished_at")
+    private String finishedAt;
+
+    public BulkExtractDownloadState()
+    {
+    }
+
+    public BulkExtractDownloadState(String exportId)
+    {
+        this.exportId = exportId;
+    }
+
+    /**
+     * Record the file size, checksum and finish time of a completed export job
+     *
+     * @param jobStatus result of the export job status endpoint, can be null if unknown
+     */
+    @JsonIgnore
+    public void setJobStatus(ObjectNode jobStatus)
+    {
+        if (jobStatus == null) {
+            return;
+        }
+        if (jobStatus.hasNonNull("fileSize")) {
+            fileSize = jobStatus.get("fileSize").asLong(-1);
+        }
+        if (jobStatus.hasNonNull("fileChecksum")) {
+            fileChecksum = jobStatus.get("fileChecksum").asText();
+        }
+        if (jobStatus.hasNonNull("finishedAt")) {
+            finishedAt = jobStatus.get("finishedAt").asText();
+        }
+    }
+
+    public String getExportId()
+    {
+        return exportId;
+    }
+
+    public void setExportId(String exportId)
+    {
+        this.exportId = exportId;
+    }
+
+    public long getFileSize()
+    {
+        return fileSize;
+    }
+
+    public void setFileSize(long fileSize)
+    {
+        this.fileSize = fileSize;
+    }
+
+    public String getFileChecksum()
+    {
+        return fileChecksum;
+    }
+
+    public void setFileChecksum(String fileChecksum)
+    {
+        this.fileChecksum = fileChecksum;
+    }
+
+    public String getFinishedAt()
+    {
+        return finishedAt;
+    }
+
+    public void setFinishedAt(String finishedAt)
+    {
+        this.finishedAt = finishedAt;
+    }
+
+    public List<BulkExtractDownloadRange> getRanges()
+    {
+        return ranges;
+    }
+
+    public void setRanges(List<BulkExtractDownloadRange> ranges)
+    {
+        this.ranges = ranges;
+    }
+
+    public boolean isCompleted()
+    {
+        return completed;
+    }
+
+    public void setCompleted(boolean completed)
+    {
+        this.completed = completed;
+    }
+}
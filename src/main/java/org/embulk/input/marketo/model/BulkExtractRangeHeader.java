@@ -19,6 +19,19 @@ public class BulkExtractRangeHeader
         this.end = end;
     }
 
+    public long getStart()
+    {
+        return start;
+    }
+
+    /**
+     * @return inclusive last byte of the range, null if the range is open ended
+     */
+    public Long getEnd()
+    {
+        return end;
+    }
+
     public String toRangeHeaderValue()
     {
         return "bytes=" + start + "-" + (end != null ? end : "");
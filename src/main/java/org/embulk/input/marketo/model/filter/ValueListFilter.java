@@ -0,0 +1,30 @@
+package org.embulk.input.marketo.model.filter;
+
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import java.util.List;
+
+/**
+ * Filter that is written as a plain JSON array of values, like activityTypeIds
+ */
+public class ValueListFilter<T> implements MarketoFilter
+{
+    private final List<T> values;
+
+    public ValueListFilter(List<T> values)
+    {
+        this.values = values;
+    }
+
+    @JsonValue
+    public List<T> getValues()
+    {
+        return values;
+    }
+
+    @Override
+    public String toString()
+    {
+        return values.toString();
+    }
+}
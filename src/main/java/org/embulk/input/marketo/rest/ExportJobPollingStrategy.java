@@ -0,0 +1,144 @@
+package org.embulk.input.marketo.rest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Optional;
+import org.embulk.spi.Exec;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.slf4j.Logger;
+
+/**
+ * Decide how long to wait before polling the status of an export job again.
+ * While a job is processing, its completion time is estimated from the processing rate of the jobs seen before
+ * (carried over from previous runs through the config diff), the status is polled sparsely until shortly before
+ * the estimated completion and then densely.
+ * Without an estimate the interval is doubled from the minimum after every poll.
+ * The interval always stays between the minimum and the maximum polling interval.
+ */
+public class ExportJobPollingStrategy
+{
+    private static final Logger LOGGER = Exec.getLogger(ExportJobPollingStrategy.class);
+
+    private static final DateTimeFormatter ISO_DATETIME_FORMAT = ISODateTimeFormat.dateTimeParser();
+
+    // Weight of the latest completed job in the learned processing rate
+    private static final double LEARNING_RATE = 0.5;
+
+    private final long minIntervalMillis;
+
+    private Optional<Double> recordsPerSecond;
+
+    private Optional<Double> processingSeconds;
+
+    public ExportJobPollingStrategy(long minIntervalMillis, Optional<Double> recordsPerSecond, Optional<Double> processingSeconds)
+    {
+        this.minIntervalMillis = minIntervalMillis;
+        this.recordsPerSecond = recordsPerSecond;
+        this.processingSeconds = processingSeconds;
+    }
+
+    /**
+     * @param jobStatus last status of the job, null if the job hasn't been polled yet
+     * @param maxIntervalMillis maximum polling interval
+     * @param pollCount number of times the job has been polled
+     * @return milliseconds to wait before the next poll
+     */
+    public long nextPollingIntervalMillis(ObjectNode jobStatus, long maxIntervalMillis, int pollCount)
+    {
+        long minInterval = Math.min(minIntervalMillis, maxIntervalMillis);
+        Optional<Long> remainingMillis = estimateRemainingMillis(jobStatus);
+        long interval;
+        if (!remainingMillis.isPresent()) {
+            interval = minInterval << Math.min(pollCount, 20);
+        }
+        else if (remainingMillis.get() > minInterval) {
+            // Wake up just before the expected completion
+            interval = remainingMillis.get() - minInterval;
+        }
+        else {
+            // Around or past the expected completion, back off as the estimate is getting more wrong
+            interval = Math.max(minInterval, -remainingMillis.get() / 2);
+        }
+        return Math.max(minInterval, Math.min(maxIntervalMillis, interval));
+    }
+
+    private synchronized Optional<Long> estimateRemainingMillis(ObjectNode jobStatus)
+    {
+        // Only a job that has started processing and not finished yet can be estimated, a queued job waits for the others
+        Optional<Long> startedAt = getTime(jobStatus, "startedAt");
+        if (!startedAt.isPresent() || getTime(jobStatus, "finishedAt").isPresent()) {
+            return Optional.absent();
+        }
+        Double expectedSeconds = null;
+        long numberOfRecords = getNumberOfRecords(jobStatus);
+        if (numberOfRecords > 0 && recordsPerSecond.isPresent()) {
+            expectedSeconds = numberOfRecords / recordsPerSecond.get();
+        }
+        else if (processingSeconds.isPresent()) {
+            expectedSeconds = processingSeconds.get();
+        }
+        if (expectedSeconds == null) {
+            return Optional.absent();
+        }
+        return Optional.of(startedAt.get() + (long) (expectedSeconds * 1000) - System.currentTimeMillis());
+    }
+
+    /**
+     * Learn the processing rate from a completed job
+     */
+    public synchronized void recordCompletedJob(ObjectNode jobStatus)
+    {
+        Optional<Long> startedAt = getTime(jobStatus, "startedAt");
+        Optional<Long> finishedAt = getTime(jobStatus, "finishedAt");
+        if (!startedAt.isPresent() || !finishedAt.isPresent() || finishedAt.get() <= startedAt.get()) {
+            return;
+        }
+        double seconds = (finishedAt.get() - startedAt.get()) / 1000.0;
+        processingSeconds = Optional.of(learn(processingSeconds, seconds));
+        long numberOfRecords = getNumberOfRecords(jobStatus);
+        if (numberOfRecords > 0) {
+            recordsPerSecond = Optional.of(learn(recordsPerSecond, numberOfRecords / seconds));
+        }
+        LOGGER.debug("Export job processing rate is [{}] records/s, processing time is [{}] s", recordsPerSecond.orNull(), processingSeconds.orNull());
+    }
+
+    public synchronized Optional<Double> getRecordsPerSecond()
+    {
+        return recordsPerSecond;
+    }
+
+    public synchronized Optional<Double> getProcessingSeconds()
+    {
+        return processingSeconds;
+    }
+
+    private static double learn(Optional<Double> previous, double observed)
+    {
+        if (!previous.isPresent()) {
+            return observed;
+        }
+        return previous.get() * (1 - LEARNING_RATE) + observed * LEARNING_RATE;
+    }
+
+    private static long getNumberOfRecords(ObjectNode jobStatus)
+    {
+        JsonNode numberOfRecords = jobStatus != null ? jobStatus.get("numberOfRecords") : null;
+        return numberOfRecords != null ? numberOfRecords.asLong(0) : 0;
+    }
+
+    private static Optional<Long> getTime(ObjectNode jobStatus, String fieldName)
+    {
+        JsonNode time = jobStatus != null ? jobStatus.get(fieldName) : null;
+        if (time == null || !time.isTextual()) {
+            return Optional.absent();
+        }
+        try {
+            return Optional.of(ISO_DATETIME_FORMAT.parseMillis(time.asText()));
+        }
+        catch (IllegalArgumentException e) {
+            LOGGER.warn("Can't parse export job time [{}]: [{}]", fieldName, time.asText());
+            return Optional.absent();
+        }
+    }
+}
@@ -8,6 +8,7 @@ import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.client.api.ContentProvider;
 import org.eclipse.jetty.client.api.Request;
 import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
 import org.eclipse.jetty.client.util.StringContentProvider;
 import org.eclipse.jetty.http.HttpMethod;
 import org.embulk.input.marketo.exception.MarketoAPIException;
@@ -28,6 +29,8 @@ import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.fasterxml.jackson.core.JsonParser.Feature.ALLOW_UNQUOTED_CONTROL_CHARS;
 import static com.fasterxml.jackson.databind.DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES;
@@ -46,27 +49,55 @@ public class MarketoBaseRestClient implements AutoCloseable
 
     protected static final long READ_TIMEOUT_MILLIS = 30000;
 
+    // Marketo allow 100 calls per 20 seconds
+    private static final int DEFAULT_MARKETO_LIMIT_CALLS = 100;
+
+    // Marketo allow 10 concurrent calls
+    private static final int DEFAULT_MARKETO_MAX_CONCURRENT_CALLS = 10;
+
     private String identityEndPoint;
 
     private String clientId;
 
     private String clientSecret;
 
-    private String accessToken;
+    // Read by all the threads sharing the client without lock once it's set
+    private volatile String accessToken;
 
     private int marketoLimitIntervalMilis;
 
+    // null when calls are not paced
+    private MarketoRateLimiter rateLimiter;
+
+    // null when concurrent calls are not capped
+    private MarketoConcurrencyLimiter concurrencyLimiter;
+
     private Jetty92RetryHelper retryHelper;
 
     protected static final ObjectMapper OBJECT_MAPPER = new ObjectMapper().configure(FAIL_ON_UNKNOWN_PROPERTIES, false).configure(ALLOW_UNQUOTED_CONTROL_CHARS, false);
 
     MarketoBaseRestClient(String identityEndPoint, String clientId, String clientSecret, int marketoLimitIntervalMilis, Jetty92RetryHelper retryHelper)
+    {
+        this(identityEndPoint, clientId, clientSecret, marketoLimitIntervalMilis, DEFAULT_MARKETO_LIMIT_CALLS, DEFAULT_MARKETO_MAX_CONCURRENT_CALLS, retryHelper);
+    }
+
+    /**
+     * @param marketoLimitCalls number of calls paced per marketoLimitIntervalMilis, 0 to not pace calls
+     * @param marketoMaxConcurrentCalls maximum number of calls in flight, 0 to not cap them
+     */
+    MarketoBaseRestClient(String identityEndPoint, String clientId, String clientSecret, int marketoLimitIntervalMilis, int marketoLimitCalls, int marketoMaxConcurrentCalls, Jetty92RetryHelper retryHelper)
     {
         this.identityEndPoint = identityEndPoint;
         this.clientId = clientId;
         this.clientSecret = clientSecret;
         this.retryHelper = retryHelper;
         this.marketoLimitIntervalMilis = marketoLimitIntervalMilis;
+        if (marketoLimitCalls > 0) {
+            this.rateLimiter = MarketoRateLimiter.forInstance(identityEndPoint, marketoLimitCalls, marketoLimitIntervalMilis);
+        }
+        if (marketoMaxConcurrentCalls > 0) {
+            this.concurrencyLimiter = MarketoConcurrencyLimiter.forInstance(identityEndPoint, marketoMaxConcurrentCalls);
+        }
     }
 
     private void renewAccessToken()
@@ -149,12 +180,74 @@ public class MarketoBaseRestClient implements AutoCloseable
         return doRequest(target, HttpMethod.POST, headers, params, content, responseReader);
     }
 
+    /**
+     * Download a bulk extract file, its transfer doesn't give a latency sample to the concurrency limiter
+     */
+    protected <T> T doDownload(final String target, final Map<String, String> headers, Jetty92ResponseReader<T> responseReader)
+    {
+        return doRequest(target, HttpMethod.GET, headers, null, null, responseReader, false);
+    }
+
     protected <T> T doRequest(final String target, final HttpMethod method, final Map<String, String> headers, final Multimap<String, String> params, final ContentProvider contentProvider, Jetty92ResponseReader<T> responseReader)
     {
-        return retryHelper.requestWithRetry(responseReader, new Jetty92SingleRequester()
+        return doRequest(target, method, headers, params, contentProvider, responseReader, true);
+    }
+
+    /**
+     * Every attempt takes one of the concurrent calls allowed by the concurrency limiter once the rate limiter let it
+     * go, until its HTTP exchange completes. Only the exchange is timed, not the waits for the limiters or retries,
+     * and only the exchange of the attempt that succeeded gives a latency sample: Marketo errors like 615 come
+     * with a successful HTTP exchange.
+     * @param sampleLatency false if the duration of the exchange doesn't tell how loaded Marketo is
+     */
+    private <T> T doRequest(final String target, final HttpMethod method, final Map<String, String> headers, final Multimap<String, String> params, final ContentProvider contentProvider, Jetty92ResponseReader<T> responseReader, boolean sampleLatency)
+    {
+        // Duration of the exchange of the latest attempt, negative if it failed
+        final AtomicLong latencyNanos = new AtomicLong(-1);
+        T result = retryHelper.requestWithRetry(responseReader, new Jetty92SingleRequester()
         {
             @Override
             public void requestOnce(HttpClient client, Response.Listener responseListener)
+            {
+                // Retries are paced too
+                if (rateLimiter != null) {
+                    rateLimiter.acquire();
+                }
+                if (concurrencyLimiter == null) {
+                    newRequest(client).send(responseListener);
+                    return;
+                }
+                concurrencyLimiter.acquire();
+                latencyNanos.set(-1);
+                final AtomicBoolean released = new AtomicBoolean(false);
+                try {
+                    Request request = newRequest(client);
+                    final long startNanos = System.nanoTime();
+                    request.onComplete(new Response.CompleteListener()
+                    {
+                        @Override
+                        public void onComplete(Result result)
+                        {
+                            if (!released.compareAndSet(false, true)) {
+                                return;
+                            }
+                            if (!result.isFailed()) {
+                                latencyNanos.set(System.nanoTime() - startNanos);
+                            }
+                            concurrencyLimiter.release();
+                        }
+                    });
+                    request.send(responseListener);
+                }
+                catch (RuntimeException e) {
+                    if (released.compareAndSet(false, true)) {
+                        concurrencyLimiter.release();
+                    }
+                    throw e;
+                }
+            }
+
+            private Request newRequest(HttpClient client)
             {
                 Request request = client.newRequest(target).method(method);
                 if (headers != null) {
@@ -173,7 +266,7 @@ public class MarketoBaseRestClient implements AutoCloseable
                 if (contentProvider != null) {
                     request.content(contentProvider, APPLICATION_JSON);
                 }
-                request.send(responseListener);
+                return request;
             }
 
             @Override
@@ -205,6 +298,8 @@ public class MarketoBaseRestClient implements AutoCloseable
                             renewAccessToken();
                             return true;
                         case "606":
+                            // Only reached when other clients share the limit, calls of this JVM are paced
+                            onOverload();
                             try {
                                 Thread.sleep(marketoLimitIntervalMilis);
                             }
@@ -214,14 +309,31 @@ public class MarketoBaseRestClient implements AutoCloseable
                             }
                             return true;
                         case "615":
+                            onOverload();
                             return true;
                         default:
                             return false;
                     }
                 }
-                return exception instanceof TimeoutException || exception instanceof SocketTimeoutException || super.isExceptionToRetry(exception);
+                if (exception instanceof TimeoutException || exception instanceof SocketTimeoutException) {
+                    onOverload();
+                    return true;
+                }
+                return super.isExceptionToRetry(exception);
             }
         });
+        // A streamed response may still be transferring, then there is no latency yet
+        if (concurrencyLimiter != null && sampleLatency && latencyNanos.get() >= 0) {
+            concurrencyLimiter.onSuccess(latencyNanos.get());
+        }
+        return result;
+    }
+
+    private void onOverload()
+    {
+        if (concurrencyLimiter != null) {
+            concurrencyLimiter.onOverload();
+        }
     }
 
     @Override
@@ -0,0 +1,131 @@
+package org.embulk.input.marketo.rest;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import org.embulk.spi.DataException;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cap the REST calls of a Marketo instance in flight at the same time, the cap adapts AIMD style:
+ * it's halved when Marketo answers 615 (concurrent access limit) or 606 (rate limit) or a call times out, and it grows
+ * by about one call per window of successful calls as long as their latency stays within LATENCY_TOLERANCE times the
+ * smoothed latency. The cap never goes above maxLimit, the calls of an overloaded window only halve it once.
+ * Limiters are shared by all the clients of an instance in the JVM, so are the tasks and threads fetching from it.
+ */
+public class MarketoConcurrencyLimiter
+{
+    private static final Logger LOGGER = Exec.getLogger(MarketoConcurrencyLimiter.class);
+
+    private static final ConcurrentMap<String, MarketoConcurrencyLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+    private static final double DECREASE_FACTOR = 0.5;
+
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    // Weight of the latest call in the smoothed latency
+    private static final double LATENCY_SMOOTHING = 0.05;
+
+    private static final long MIN_DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Ticker ticker;
+
+    private final int maxLimit;
+
+    private double limit;
+
+    private int inFlight = 0;
+
+    // Negative until the first call succeeded
+    private double smoothedLatencyNanos = -1;
+
+    private long nextDecreaseNanos;
+
+    @VisibleForTesting
+    MarketoConcurrencyLimiter(int maxLimit, Ticker ticker)
+    {
+        this.ticker = ticker;
+        this.maxLimit = maxLimit;
+        this.limit = maxLimit;
+        this.nextDecreaseNanos = ticker.read();
+    }
+
+    /**
+     * @param instance identity end point of the Marketo instance
+     * @return limiter of the instance, created with the given maximum by the first client of the instance
+     */
+    public static MarketoConcurrencyLimiter forInstance(String instance, int maxLimit)
+    {
+        MarketoConcurrencyLimiter limiter = LIMITERS.get(instance);
+        if (limiter == null) {
+            MarketoConcurrencyLimiter newLimiter = new MarketoConcurrencyLimiter(maxLimit, Ticker.systemTicker());
+            limiter = LIMITERS.putIfAbsent(instance, newLimiter);
+            if (limiter == null) {
+                limiter = newLimiter;
+            }
+        }
+        return limiter;
+    }
+
+    /**
+     * Block until fewer calls than the limit are in flight
+     */
+    public synchronized void acquire()
+    {
+        while (inFlight >= (int) limit) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DataException("Interrupted when waiting for Marketo concurrency limit", e);
+            }
+        }
+        inFlight++;
+    }
+
+    public synchronized void release()
+    {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * A call succeeded, its latency tells how loaded Marketo is
+     * @param latencyNanos duration of the HTTP exchange
+     */
+    public synchronized void onSuccess(long latencyNanos)
+    {
+        boolean healthy = smoothedLatencyNanos < 0 || latencyNanos <= LATENCY_TOLERANCE * smoothedLatencyNanos;
+        smoothedLatencyNanos = smoothedLatencyNanos < 0 ? latencyNanos : smoothedLatencyNanos + LATENCY_SMOOTHING * (latencyNanos - smoothedLatencyNanos);
+        if (healthy && limit < maxLimit) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Marketo rejected a call for too many concurrent calls or calls per interval, or a call timed out
+     */
+    public synchronized void onOverload()
+    {
+        long now = ticker.read();
+        // Calls in flight when the limit was halved are likely rejected too
+        if (now - nextDecreaseNanos < 0) {
+            return;
+        }
+        nextDecreaseNanos = now + Math.max(MIN_DECREASE_INTERVAL_NANOS, (long) smoothedLatencyNanos);
+        limit = Math.max(1, limit * DECREASE_FACTOR);
+        LOGGER.info("Reduced the number of concurrent Marketo calls to [{}]", (int) limit);
+    }
+
+    @VisibleForTesting
+    synchronized int getLimit()
+    {
+        return (int) limit;
+    }
+}
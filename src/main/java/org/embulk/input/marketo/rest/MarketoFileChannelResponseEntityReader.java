@@ -0,0 +1,197 @@
+package org.embulk.input.marketo.rest;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.util.concurrent.SettableFuture;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.http.HttpHeader;
+import org.embulk.input.marketo.exception.MarketoAPIException;
+import org.embulk.input.marketo.model.BulkExtractRangeHeader;
+import org.embulk.input.marketo.model.MarketoResponse;
+import org.embulk.util.retryhelper.jetty92.Jetty92ResponseReader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Write a csv response straight from the content buffers of Jetty into a file channel at the position of the requested range.
+ * The buffers come from the pool of the http client and are written as they are received, without copying
+ * them into an input stream. Nothing is written past the end of the range.
+ * Anything that is not a csv content is kept in memory to be read as a Marketo error.
+ * A connection broken after the headers doesn't fail the request, the position reached is returned and the failure
+ * is kept so the caller can resume the download from there.
+ */
+public class MarketoFileChannelResponseEntityReader implements Jetty92ResponseReader<Long>
+{
+    private static final ObjectReader OBJECT_READER = new ObjectMapper().readerFor(new TypeReference<MarketoResponse<ObjectNode>>(){ });
+
+    private static final String TEXT_CSV = "text/csv";
+
+    public interface ContentListener
+    {
+        /**
+         * Called after every content buffer written to the file
+         * @param position position of the file channel after the buffer
+         */
+        void onContent(long position) throws IOException;
+    }
+
+    private final long timeout;
+
+    private final FileChannel fileChannel;
+
+    private final long startPosition;
+
+    // Position after the last byte of the range
+    private final long endPosition;
+
+    private final ContentListener contentListener;
+
+    private FileChannelResponseListener listener;
+
+    public MarketoFileChannelResponseEntityReader(long timeout, FileChannel fileChannel, BulkExtractRangeHeader bulkExtractRangeHeader, ContentListener contentListener)
+    {
+        this.timeout = timeout;
+        this.fileChannel = fileChannel;
+        this.startPosition = bulkExtractRangeHeader.getStart();
+        this.endPosition = bulkExtractRangeHeader.getEnd() != null ? bulkExtractRangeHeader.getEnd() + 1 : Long.MAX_VALUE;
+        this.contentListener = contentListener;
+    }
+
+    @Override
+    public Response.Listener getListener()
+    {
+        // A retried request writes the same bytes again from the start position
+        this.listener = new FileChannelResponseListener(startPosition);
+        return this.listener;
+    }
+
+    @Override
+    public Response getResponse() throws Exception
+    {
+        return this.listener.headers.get(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wait until the whole content is written
+     * @return position of the file channel after the last written byte
+     */
+    @Override
+    public Long readResponseContent() throws Exception
+    {
+        if (!listener.writeToFile) {
+            MarketoResponse<ObjectNode> errorResponse = OBJECT_READER.readValue(readResponseContentInString());
+            if (!errorResponse.isSuccess()) {
+                throw new MarketoAPIException(errorResponse.getErrors());
+            }
+            return startPosition;
+        }
+        Result result = null;
+        long lastPosition = listener.position;
+        while (result == null) {
+            try {
+                result = listener.complete.get(timeout, TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException e) {
+                // The timeout is applied to idle connections only, a large file can take far longer than that
+                if (listener.position == lastPosition) {
+                    listener.response.abort(new TimeoutException("No bulk extract content received for " + timeout + " milliseconds"));
+                }
+                lastPosition = listener.position;
+            }
+        }
+        return listener.position;
+    }
+
+    @Override
+    public String readResponseContentInString() throws Exception
+    {
+        listener.complete.get(timeout, TimeUnit.MILLISECONDS);
+        return new String(listener.errorContent.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return exception that broke the content of the last response, null if the content was completely received
+     */
+    public Throwable getContentFailure()
+    {
+        return listener != null ? listener.contentFailure : null;
+    }
+
+    private class FileChannelResponseListener extends Response.Listener.Adapter
+    {
+        private final SettableFuture<Response> headers = SettableFuture.create();
+
+        private final SettableFuture<Result> complete = SettableFuture.create();
+
+        private final ByteArrayOutputStream errorContent = new ByteArrayOutputStream();
+
+        private volatile Response response;
+
+        private volatile boolean writeToFile;
+
+        private volatile long position;
+
+        private volatile Throwable contentFailure;
+
+        private FileChannelResponseListener(long position)
+        {
+            this.position = position;
+        }
+
+        @Override
+        public void onHeaders(Response response)
+        {
+            this.response = response;
+            String contentType = response.getHeaders().get(HttpHeader.CONTENT_TYPE);
+            writeToFile = response.getStatus() / 100 == 2 && contentType != null && contentType.startsWith(TEXT_CSV);
+            headers.set(response);
+        }
+
+        @Override
+        public void onContent(Response response, ByteBuffer content)
+        {
+            if (!writeToFile) {
+                byte[] bytes = new byte[content.remaining()];
+                content.get(bytes);
+                errorContent.write(bytes, 0, bytes.length);
+                return;
+            }
+            try {
+                // The buffer is only valid during the callback, it's written before returning it to Jetty
+                long newPosition = position;
+                if (content.remaining() > endPosition - newPosition) {
+                    content.limit(content.position() + (int) Math.max(0, endPosition - newPosition));
+                }
+                while (content.hasRemaining()) {
+                    newPosition += fileChannel.write(content, newPosition);
+                }
+                position = newPosition;
+                contentListener.onContent(newPosition);
+            }
+            catch (IOException e) {
+                response.abort(e);
+            }
+        }
+
+        @Override
+        public void onComplete(Result result)
+        {
+            if (result.isFailed()) {
+                if (!headers.isDone()) {
+                    headers.setException(result.getFailure());
+                }
+                contentFailure = result.getFailure();
+            }
+            complete.set(result);
+        }
+    }
+}
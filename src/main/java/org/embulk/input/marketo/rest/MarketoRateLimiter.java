@@ -0,0 +1,96 @@
+package org.embulk.input.marketo.rest;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import org.embulk.spi.DataException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pace the REST calls of a Marketo instance under its limit of callsPerInterval calls per interval (100 per 20 seconds).
+ * It's a token bucket holding up to burst tokens, refilled at (callsPerInterval - burst) tokens per interval, so no
+ * interval ever sees more than callsPerInterval calls. Calls take their token in arrival order: a call finding the
+ * bucket empty reserves the next token and sleeps until it's refilled, outside of the lock.
+ * Limiters are shared by all the clients of an instance in the JVM, so are the tasks and threads fetching from it.
+ */
+public class MarketoRateLimiter
+{
+    // Part of the calls of an interval that can be made at once
+    private static final int BURST_DIVISOR = 10;
+
+    private static final ConcurrentMap<String, MarketoRateLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+    private final Ticker ticker;
+
+    private final double burst;
+
+    private final double tokensPerNano;
+
+    // Negative when calls are waiting for tokens
+    private double tokens;
+
+    private long lastRefillNanos;
+
+    @VisibleForTesting
+    MarketoRateLimiter(int callsPerInterval, long intervalMillis, Ticker ticker)
+    {
+        this.ticker = ticker;
+        this.burst = Math.max(1, callsPerInterval / BURST_DIVISOR);
+        this.tokensPerNano = Math.max(1, callsPerInterval - burst) / (double) TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.tokens = burst;
+        this.lastRefillNanos = ticker.read();
+    }
+
+    /**
+     * @param instance identity end point of the Marketo instance
+     * @return limiter of the instance, created with the given limit by the first client of the instance
+     */
+    public static MarketoRateLimiter forInstance(String instance, int callsPerInterval, long intervalMillis)
+    {
+        MarketoRateLimiter limiter = LIMITERS.get(instance);
+        if (limiter == null) {
+            MarketoRateLimiter newLimiter = new MarketoRateLimiter(callsPerInterval, intervalMillis, Ticker.systemTicker());
+            limiter = LIMITERS.putIfAbsent(instance, newLimiter);
+            if (limiter == null) {
+                limiter = newLimiter;
+            }
+        }
+        return limiter;
+    }
+
+    /**
+     * Block until the call is allowed
+     */
+    public void acquire()
+    {
+        long waitNanos = reserve();
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DataException("Interrupted when waiting for Marketo rate limit", e);
+            }
+        }
+    }
+
+    /**
+     * Take a token, even one that isn't refilled yet
+     * @return nanoseconds to wait before the taken token is refilled
+     */
+    @VisibleForTesting
+    synchronized long reserve()
+    {
+        long now = ticker.read();
+        tokens = Math.min(burst, tokens + (now - lastRefillNanos) * tokensPerNano);
+        lastRefillNanos = now;
+        tokens -= 1;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) Math.ceil(-tokens / tokensPerNano);
+    }
+}
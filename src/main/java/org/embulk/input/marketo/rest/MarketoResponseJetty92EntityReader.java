@@ -1,5 +1,7 @@
 package org.embulk.input.marketo.rest;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -8,6 +10,7 @@ import com.google.common.io.CharStreams;
 import org.eclipse.jetty.client.api.Response;
 import org.eclipse.jetty.client.util.InputStreamResponseListener;
 import org.embulk.input.marketo.exception.MarketoAPIException;
+import org.embulk.input.marketo.model.MarketoError;
 import org.embulk.input.marketo.model.MarketoResponse;
 import org.embulk.spi.DataException;
 import org.embulk.spi.Exec;
@@ -18,6 +21,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -32,19 +37,21 @@ public class MarketoResponseJetty92EntityReader<T> implements Jetty92ResponseRea
     private static final Logger LOGGER = Exec.getLogger(MarketoResponseJetty92EntityReader.class);
     private Long timeout;
 
-    private JavaType javaType;
+    private static final JavaType ERRORS_TYPE = OBJECT_MAPPER.getTypeFactory().constructCollectionType(List.class, MarketoError.class);
+
+    private JavaType resultType;
 
     public MarketoResponseJetty92EntityReader(long timeout)
     {
         this.timeout = timeout;
-        javaType = OBJECT_MAPPER.getTypeFactory().constructParametrizedType(MarketoResponse.class, MarketoResponse.class, ObjectNode.class);
+        resultType = OBJECT_MAPPER.getTypeFactory().constructType(ObjectNode.class);
     }
 
     public MarketoResponseJetty92EntityReader(long timeout, Class<T> resultClass)
     {
         this.listener = new InputStreamResponseListener();
         this.timeout = timeout;
-        this.javaType = OBJECT_MAPPER.getTypeFactory().constructParametrizedType(MarketoResponse.class, MarketoResponse.class, resultClass);
+        this.resultType = OBJECT_MAPPER.getTypeFactory().constructType(resultClass);
     }
 
     @Override
@@ -63,18 +70,79 @@ public class MarketoResponseJetty92EntityReader<T> implements Jetty92ResponseRea
     @Override
     public MarketoResponse<T> readResponseContent() throws Exception
     {
-        String response = readResponseContentInString();
-        try {
-            MarketoResponse<T> marketoResponse = OBJECT_MAPPER.readValue(response, javaType);
-            if (!marketoResponse.isSuccess()) {
-                throw new MarketoAPIException(marketoResponse.getErrors());
-            }
-            return marketoResponse;
+        MarketoResponse<T> marketoResponse;
+        try (InputStream inputStream = this.listener.getInputStream()) {
+            marketoResponse = readMarketoResponse(inputStream);
         }
         catch (IOException ex) {
             LOGGER.error("Can't parse json content", ex);
             throw new DataException("Exception when parse json content");
         }
+        if (!marketoResponse.isSuccess()) {
+            throw new MarketoAPIException(marketoResponse.getErrors());
+        }
+        return marketoResponse;
+    }
+
+    /**
+     * Parse the response while it's being received, records of the result are bound one at a time
+     * so the body is never held as a whole string or tree
+     */
+    MarketoResponse<T> readMarketoResponse(InputStream inputStream) throws IOException
+    {
+        MarketoResponse<T> marketoResponse = new MarketoResponse<>();
+        try (JsonParser parser = OBJECT_MAPPER.getFactory().createParser(inputStream)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a json object at " + parser.getTokenLocation());
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (token == JsonToken.VALUE_NULL) {
+                    continue;
+                }
+                switch (fieldName) {
+                    case "requestId":
+                        marketoResponse.setRequestId(parser.getValueAsString());
+                        break;
+                    case "success":
+                        marketoResponse.setSuccess(parser.getValueAsBoolean());
+                        break;
+                    case "nextPageToken":
+                        marketoResponse.setNextPageToken(parser.getValueAsString());
+                        break;
+                    case "moreResult":
+                        marketoResponse.setMoreResult(parser.getValueAsBoolean());
+                        break;
+                    case "errors":
+                        List<MarketoError> errors = OBJECT_MAPPER.readValue(parser, ERRORS_TYPE);
+                        marketoResponse.setErrors(errors);
+                        break;
+                    case "result":
+                        marketoResponse.setResult(readResult(parser));
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            if (parser.getCurrentToken() != JsonToken.END_OBJECT) {
+                throw new IOException("Unexpected end of json content at " + parser.getTokenLocation());
+            }
+        }
+        return marketoResponse;
+    }
+
+    private List<T> readResult(JsonParser parser) throws IOException
+    {
+        if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+            throw new IOException("Expected result array at " + parser.getTokenLocation());
+        }
+        List<T> result = new ArrayList<>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            T record = OBJECT_MAPPER.readValue(parser, resultType);
+            result.add(record);
+        }
+        return result;
     }
 
     @Override
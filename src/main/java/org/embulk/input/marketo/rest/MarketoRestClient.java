@@ -2,6 +2,7 @@ package org.embulk.input.marketo.rest;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Optional;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
@@ -12,6 +13,7 @@ import org.embulk.config.Config;
 import org.embulk.config.ConfigDefault;
 import org.embulk.config.Task;
 import org.embulk.input.marketo.MarketoUtils;
+import org.embulk.input.marketo.model.ActivityExtractFilter;
 import org.embulk.input.marketo.model.BulkExtractRangeHeader;
 import org.embulk.input.marketo.model.MarketoBulkExtractRequest;
 import org.embulk.input.marketo.model.MarketoError;
@@ -26,13 +28,16 @@ import org.embulk.spi.type.Types;
 import org.embulk.util.retryhelper.jetty92.Jetty92RetryHelper;
 import org.slf4j.Logger;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Created by tai.khuu on 8/22/17.
@@ -53,12 +58,21 @@ public class MarketoRestClient extends MarketoBaseRestClient
 
     private static final String RANGE_HEADER = "Range";
 
+    // Marketo allow 10 concurrent API calls per account
+    private static final int MAX_PREFETCH_THREADS = 10;
+
     private String endPoint;
 
     private Integer batchSize;
 
     private Integer maxReturn;
 
+    private ExportJobPollingStrategy exportJobPollingStrategy;
+
+    private int prefetchPages = 0;
+
+    private ExecutorService prefetchExecutor;
+
     private static final Logger LOGGER = Exec.getLogger(MarketoRestClient.class.getCanonicalName());
 
     private static final Map<String, Type> TYPE_MAPPING = new ImmutableMap.Builder<String, Type>()
@@ -95,6 +109,14 @@ public class MarketoRestClient extends MarketoBaseRestClient
         @ConfigDefault("20000")
         Integer getMarketoLimitIntervalMilis();
 
+        @Config("marketo_limit_calls")
+        @ConfigDefault("100")
+        Integer getMarketoLimitCalls();
+
+        @Config("marketo_max_concurrent_calls")
+        @ConfigDefault("10")
+        Integer getMarketoMaxConcurrentCalls();
+
         @Config("batch_size")
         @ConfigDefault("300")
         Integer getBatchSize();
@@ -104,19 +126,70 @@ public class MarketoRestClient extends MarketoBaseRestClient
         @ConfigDefault("200")
         Integer getMaxReturn();
         void setMaxReturn(Integer maxReturn);
+
+        @Config("min_polling_interval_second")
+        @ConfigDefault("5")
+        Integer getMinPollingIntervalSecond();
+
+        @Config("export_records_per_second")
+        @ConfigDefault("null")
+        Optional<Double> getExportRecordsPerSecond();
+
+        @Config("export_processing_second")
+        @ConfigDefault("null")
+        Optional<Double> getExportProcessingSecond();
+
+        @Config("prefetch_pages")
+        @ConfigDefault("0")
+        Integer getPrefetchPages();
     }
 
     public MarketoRestClient(PluginTask task, Jetty92RetryHelper retryHelper)
     {
-        this(MarketoUtils.getEndPoint(task.getAccountId()), MarketoUtils.getIdentityEndPoint(task.getAccountId()), task.getClientId(), task.getClientSecret(), task.getBatchSize(), task.getMaxReturn(), task.getMarketoLimitIntervalMilis(), retryHelper);
+        this(MarketoUtils.getEndPoint(task.getAccountId()), MarketoUtils.getIdentityEndPoint(task.getAccountId()), task.getClientId(), task.getClientSecret(), task.getBatchSize(), task.getMaxReturn(), task.getMarketoLimitIntervalMilis(), task.getMarketoLimitCalls(), task.getMarketoMaxConcurrentCalls(), retryHelper,
+                new ExportJobPollingStrategy(task.getMinPollingIntervalSecond() * 1000L, task.getExportRecordsPerSecond(), task.getExportProcessingSecond()));
+        this.prefetchPages = task.getPrefetchPages();
     }
 
-    public MarketoRestClient(String endPoint, String identityEndPoint, String clientId, String clientSecret, Integer batchSize, Integer maxReturn, int marketoLimitIntervalMilis, Jetty92RetryHelper retryHelper)
+    public MarketoRestClient(String endPoint, String identityEndPoint, String clientId, String clientSecret, Integer batchSize, Integer maxReturn, int marketoLimitIntervalMilis, int marketoLimitCalls, int marketoMaxConcurrentCalls, Jetty92RetryHelper retryHelper, ExportJobPollingStrategy exportJobPollingStrategy)
     {
-        super(identityEndPoint, clientId, clientSecret, marketoLimitIntervalMilis, retryHelper);
+        super(identityEndPoint, clientId, clientSecret, marketoLimitIntervalMilis, marketoLimitCalls, marketoMaxConcurrentCalls, retryHelper);
         this.endPoint = endPoint;
         this.batchSize = batchSize;
         this.maxReturn = maxReturn;
+        this.exportJobPollingStrategy = exportJobPollingStrategy;
+    }
+
+    public ExportJobPollingStrategy getExportJobPollingStrategy()
+    {
+        return exportJobPollingStrategy;
+    }
+
+    /**
+     * The executor is shared by all the paged results. Its threads only run page requests, they never wait for
+     * another request, so it's sized by the number of calls Marketo accepts at the same time
+     */
+    private synchronized ExecutorService getPrefetchExecutor(int prefetchPages)
+    {
+        if (prefetchPages <= 0) {
+            return null;
+        }
+        if (prefetchExecutor == null) {
+            prefetchExecutor = MarketoUtils.newDaemonThreadPool("marketo-page-prefetch-%d", MAX_PREFETCH_THREADS);
+        }
+        return prefetchExecutor;
+    }
+
+    @Override
+    public void close()
+    {
+        synchronized (this) {
+            if (prefetchExecutor != null) {
+                prefetchExecutor.shutdownNow();
+                prefetchExecutor = null;
+            }
+        }
+        super.close();
     }
 
     public List<MarketoField> describeLead()
@@ -164,9 +237,10 @@ public class MarketoRestClient extends MarketoBaseRestClient
         return marketoBulkExtractRequest;
     }
 
-    public String createActivityExtract(Date startTime, Date endTime)
+    public String createActivityExtract(Date startTime, Date endTime, ActivityExtractFilter activityExtractFilter)
     {
         MarketoBulkExtractRequest marketoBulkExtractRequest = getMarketoBulkExtractRequest(startTime, endTime, null, "createdAt");
+        activityExtractFilter.addTo(marketoBulkExtractRequest.getFilter());
         return sendCreateBulkExtractRequest(marketoBulkExtractRequest, MarketoRESTEndpoint.CREATE_ACTIVITY_EXTRACT);
     }
 
@@ -217,11 +291,12 @@ public class MarketoRestClient extends MarketoBaseRestClient
      * If job status is failed or cancel will also throw exception
      *
      * @param exportId
+     * @return status of the completed job
      * @throws InterruptedException
      */
-    public void waitLeadExportJobComplete(String exportId, int pollingInterval, int waitTimeout) throws InterruptedException
+    public ObjectNode waitLeadExportJobComplete(String exportId, int pollingInterval, int waitTimeout) throws InterruptedException
     {
-        waitExportJobComplete(MarketoRESTEndpoint.GET_LEAD_EXPORT_STATUS, exportId, pollingInterval, waitTimeout);
+        return waitExportJobComplete(MarketoRESTEndpoint.GET_LEAD_EXPORT_STATUS, exportId, pollingInterval, waitTimeout);
     }
 
     /**
@@ -231,39 +306,29 @@ public class MarketoRestClient extends MarketoBaseRestClient
      * If job status is failed or cancel will also throw exception
      *
      * @param exportId
+     * @return status of the completed job
      * @throws InterruptedException
      */
-    public void waitActitvityExportJobComplete(String exportId, int pollingInterval, int waitTimeout) throws InterruptedException
+    public ObjectNode waitActitvityExportJobComplete(String exportId, int pollingInterval, int waitTimeout) throws InterruptedException
     {
-        waitExportJobComplete(MarketoRESTEndpoint.GET_ACTIVITY_EXPORT_STATUS, exportId, pollingInterval, waitTimeout);
+        return waitExportJobComplete(MarketoRESTEndpoint.GET_ACTIVITY_EXPORT_STATUS, exportId, pollingInterval, waitTimeout);
     }
 
-    private void waitExportJobComplete(MarketoRESTEndpoint marketoRESTEndpoint, String exportId, int pollingInterval, int waitTimeout) throws InterruptedException
+    private ObjectNode waitExportJobComplete(MarketoRESTEndpoint marketoRESTEndpoint, String exportId, int pollingInterval, int waitTimeout) throws InterruptedException
     {
         long waitTime = 0;
         long waitTimeoutMs = waitTimeout * 1000;
         long now = System.currentTimeMillis();
+        int pollCount = 0;
         while (true) {
-            MarketoResponse<ObjectNode> marketoResponse = doGet(this.endPoint + marketoRESTEndpoint.getEndpoint(
-                    new ImmutableMap.Builder<String, String>().put("export_id", exportId).build()), null, null, new MarketoResponseJetty92EntityReader<ObjectNode>(READ_TIMEOUT_MILLIS));
-            if (marketoResponse.isSuccess()) {
-                ObjectNode objectNode = marketoResponse.getResult().get(0);
-                String status = objectNode.get("status").asText();
-                if (status == null) {
-                    throw new DataException("Can't get bulk extract status export job id: " + exportId);
-                }
-                LOGGER.info("Jobs [{}] status is [{}]", exportId, status);
-                switch (status) {
-                    case "Completed":
-                        LOGGER.info("Total wait time ms is [{}]", waitTime);
-                        return;
-                    case "Failed":
-                        throw new DataException("Bulk extract job failed exportId: " + exportId + " errorMessage: " + objectNode.get("errorMsg").asText());
-                    case "Cancel":
-                        throw new DataException("Bulk extract job canceled, exportId: " + exportId);
-                }
+            ObjectNode jobStatus = getExportJobStatus(marketoRESTEndpoint, exportId);
+            pollCount++;
+            if (isExportJobCompleted(exportId, jobStatus)) {
+                LOGGER.info("Total wait time ms is [{}]", waitTime);
+                exportJobPollingStrategy.recordCompletedJob(jobStatus);
+                return jobStatus;
             }
-            Thread.sleep(pollingInterval * 1000);
+            Thread.sleep(exportJobPollingStrategy.nextPollingIntervalMillis(jobStatus, pollingInterval * 1000L, pollCount));
             waitTime = waitTime + (System.currentTimeMillis() - now);
             if (waitTime >= waitTimeoutMs) {
                 throw new DataException("Job timeout exception, exportJob: " + exportId + ", run longer than " + waitTimeout + " seconds");
@@ -271,6 +336,65 @@ public class MarketoRestClient extends MarketoBaseRestClient
         }
     }
 
+    /**
+     * Check the status returned by the export job status endpoint
+     *
+     * @param exportId
+     * @param jobStatus
+     * @return true if job is completed, false if job is still queued or processing or its status is unknown
+     * @throws DataException if job status is failed or cancel
+     */
+    public static boolean isExportJobCompleted(String exportId, ObjectNode jobStatus)
+    {
+        if (jobStatus == null) {
+            return false;
+        }
+        String status = jobStatus.get("status").asText();
+        if (status == null) {
+            throw new DataException("Can't get bulk extract status export job id: " + exportId);
+        }
+        LOGGER.info("Jobs [{}] status is [{}]", exportId, status);
+        switch (status) {
+            case "Completed":
+                return true;
+            case "Failed":
+                throw new DataException("Bulk extract job failed exportId: " + exportId + " errorMessage: " + jobStatus.get("errorMsg").asText());
+            case "Cancel":
+                throw new DataException("Bulk extract job canceled, exportId: " + exportId);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return status of the job, null if Marketo answered with an error
+     */
+    public ObjectNode getLeadExportJobStatus(String exportId)
+    {
+        return getExportJobStatus(MarketoRESTEndpoint.GET_LEAD_EXPORT_STATUS, exportId);
+    }
+
+    /**
+     * @return status of the job, null if Marketo answered with an error
+     */
+    public ObjectNode getActivityExportJobStatus(String exportId)
+    {
+        return getExportJobStatus(MarketoRESTEndpoint.GET_ACTIVITY_EXPORT_STATUS, exportId);
+    }
+
+    private ObjectNode getExportJobStatus(MarketoRESTEndpoint marketoRESTEndpoint, String exportId)
+    {
+        MarketoResponse<ObjectNode> marketoResponse = doGet(this.endPoint + marketoRESTEndpoint.getEndpoint(
+                new ImmutableMap.Builder<String, String>().put("export_id", exportId).build()), null, null, new MarketoResponseJetty92EntityReader<ObjectNode>(READ_TIMEOUT_MILLIS));
+        if (!marketoResponse.isSuccess()) {
+            // The job is polled again until it completes or times out
+            MarketoError error = marketoResponse.getErrors().get(0);
+            LOGGER.warn("Can't get status of export Job id : {}, error code: {}, error message: {}", exportId, error.getCode(), error.getMessage());
+            return null;
+        }
+        return marketoResponse.getResult().get(0);
+    }
+
     public InputStream getLeadBulkExtractResult(String exportId, BulkExtractRangeHeader bulkExtractRangeHeader)
     {
         return getBulkExtractResult(MarketoRESTEndpoint.GET_LEAD_EXPORT_RESULT, exportId, bulkExtractRangeHeader);
@@ -284,12 +408,43 @@ public class MarketoRestClient extends MarketoBaseRestClient
     private InputStream getBulkExtractResult(MarketoRESTEndpoint endpoint, String exportId, BulkExtractRangeHeader bulkExtractRangeHeader)
     {
         LOGGER.info("Download bulk export job [{}]", exportId);
+        return doDownload(this.endPoint + endpoint.getEndpoint(new ImmutableMap.Builder().put("export_id", exportId).build()), getRangeHeaders(bulkExtractRangeHeader), new MarketoInputStreamResponseEntityReader(READ_TIMEOUT_MILLIS));
+    }
+
+    /**
+     * Write the range of the lead bulk extract file into the file channel at the position of the range start
+     * @return position of the file channel after the last written byte
+     * @throws IOException when the connection is broken after some content has been written
+     */
+    public long downloadLeadBulkExtract(String exportId, BulkExtractRangeHeader bulkExtractRangeHeader, FileChannel fileChannel, MarketoFileChannelResponseEntityReader.ContentListener contentListener) throws IOException
+    {
+        return downloadBulkExtract(MarketoRESTEndpoint.GET_LEAD_EXPORT_RESULT, exportId, bulkExtractRangeHeader, fileChannel, contentListener);
+    }
+
+    public long downloadActivitiesBulkExtract(String exportId, BulkExtractRangeHeader bulkExtractRangeHeader, FileChannel fileChannel, MarketoFileChannelResponseEntityReader.ContentListener contentListener) throws IOException
+    {
+        return downloadBulkExtract(MarketoRESTEndpoint.GET_ACTIVITY_EXPORT_RESULT, exportId, bulkExtractRangeHeader, fileChannel, contentListener);
+    }
+
+    private long downloadBulkExtract(MarketoRESTEndpoint endpoint, String exportId, BulkExtractRangeHeader bulkExtractRangeHeader, FileChannel fileChannel, MarketoFileChannelResponseEntityReader.ContentListener contentListener) throws IOException
+    {
+        LOGGER.info("Download bulk export job [{}]", exportId);
+        MarketoFileChannelResponseEntityReader responseReader = new MarketoFileChannelResponseEntityReader(READ_TIMEOUT_MILLIS, fileChannel, bulkExtractRangeHeader, contentListener);
+        long position = doDownload(this.endPoint + endpoint.getEndpoint(new ImmutableMap.Builder().put("export_id", exportId).build()), getRangeHeaders(bulkExtractRangeHeader), responseReader);
+        if (responseReader.getContentFailure() != null) {
+            throw new IOException("Bulk extract download broken at byte " + position, responseReader.getContentFailure());
+        }
+        return position;
+    }
+
+    private static Map<String, String> getRangeHeaders(BulkExtractRangeHeader bulkExtractRangeHeader)
+    {
         Map<String, String> headers = new HashMap<>();
         if (bulkExtractRangeHeader != null) {
             headers.put(RANGE_HEADER, bulkExtractRangeHeader.toRangeHeaderValue());
             LOGGER.info("Range header value [{}]", bulkExtractRangeHeader.toRangeHeaderValue());
         }
-        return doGet(this.endPoint + endpoint.getEndpoint(new ImmutableMap.Builder().put("export_id", exportId).build()), headers, null, new MarketoInputStreamResponseEntityReader(READ_TIMEOUT_MILLIS));
+        return headers;
     }
 
     public RecordPagingIterable<ObjectNode> getLists()
@@ -299,7 +454,15 @@ public class MarketoRestClient extends MarketoBaseRestClient
 
     public RecordPagingIterable<ObjectNode> getPrograms()
     {
-        return getRecordWithOffsetPagination(endPoint + MarketoRESTEndpoint.GET_PROGRAMS.getEndpoint(), new ImmutableListMultimap.Builder<String, String>().put(MAX_RETURN, DEFAULT_MAX_RETURN).build(), ObjectNode.class);
+        return getPrograms(prefetchPages);
+    }
+
+    /**
+     * @param prefetchPages number of program pages requested at the same time ahead of the page being consumed
+     */
+    public RecordPagingIterable<ObjectNode> getPrograms(int prefetchPages)
+    {
+        return getRecordWithOffsetPagination(endPoint + MarketoRESTEndpoint.GET_PROGRAMS.getEndpoint(), new ImmutableListMultimap.Builder<String, String>().put(MAX_RETURN, DEFAULT_MAX_RETURN).build(), ObjectNode.class, prefetchPages);
     }
 
     public RecordPagingIterable<ObjectNode> getLeadsByProgram(String programId, String fieldNames)
@@ -320,9 +483,9 @@ public class MarketoRestClient extends MarketoBaseRestClient
     {
         return getRecordWithTokenPagination(endPoint + MarketoRESTEndpoint.GET_CAMPAIGN.getEndpoint(), null, ObjectNode.class);
     }
-    private <T> RecordPagingIterable<T> getRecordWithOffsetPagination(final String endPoint, final Multimap<String, String> parameters, final Class<T> recordClass)
+    private <T> RecordPagingIterable<T> getRecordWithOffsetPagination(final String endPoint, final Multimap<String, String> parameters, final Class<T> recordClass, int prefetchPages)
     {
-        return new RecordPagingIterable<>(new RecordPagingIterable.PagingFunction<RecordPagingIterable.OffsetPage<T>>()
+        return new RecordPagingIterable<>(new RecordPagingIterable.IndexedPagingFunction<RecordPagingIterable.OffsetPage<T>>()
         {
             @Override
             public RecordPagingIterable.OffsetPage<T> getNextPage(RecordPagingIterable.OffsetPage<T> currentPage)
@@ -336,6 +499,12 @@ public class MarketoRestClient extends MarketoBaseRestClient
                 return getOffsetPage(0);
             }
 
+            @Override
+            public RecordPagingIterable.OffsetPage<T> getPage(int pageIndex)
+            {
+                return getOffsetPage(pageIndex * maxReturn);
+            }
+
             private RecordPagingIterable.OffsetPage<T> getOffsetPage(int offset)
             {
                 ImmutableListMultimap.Builder<String, String> params = new ImmutableListMultimap.Builder<>();
@@ -347,7 +516,7 @@ public class MarketoRestClient extends MarketoBaseRestClient
                 MarketoResponse<T> marketoResponse = doGet(endPoint, null, params.build(), new MarketoResponseJetty92EntityReader<>(READ_TIMEOUT_MILLIS, recordClass));
                 return new RecordPagingIterable.OffsetPage<>(marketoResponse.getResult(), offset + marketoResponse.getResult().size(), marketoResponse.getResult().size() == maxReturn);
             }
-        });
+        }, getPrefetchExecutor(prefetchPages), prefetchPages);
     }
     private <T> RecordPagingIterable<T> getRecordWithTokenPagination(final String endPoint, final Multimap<String, String> parameters, final Class<T> recordClass)
     {
@@ -388,6 +557,6 @@ public class MarketoRestClient extends MarketoBaseRestClient
                 MarketoResponse<T> marketoResponse = doPost(endPoint, null, params.build(), new MarketoResponseJetty92EntityReader<>(READ_TIMEOUT_MILLIS, recordClass), formContentProvider);
                 return new RecordPagingIterable.TokenPage<>(marketoResponse.getResult(), marketoResponse.getNextPageToken(), marketoResponse.getNextPageToken() != null);
             }
-        });
+        }, getPrefetchExecutor(prefetchPages), prefetchPages);
     }
 }
@@ -1,27 +1,61 @@
 package org.embulk.input.marketo.rest;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.embulk.input.marketo.MarketoUtils;
+import org.embulk.spi.Exec;
+import org.embulk.spi.ExecSession;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Record Iterable class that will go through Marketo Paging
  * Warning this iterator implementation do not cached page due to reduce memory usage. So iterate through a
  * RecordIterate multiple time is not recommended since it will sent query to Marketo on every call.
+ * With prefetchPages greater than 0 the next pages are requested in background as soon as the previous page
+ * arrives, only the pages in flight or not yet consumed are held, at most prefetchPages of them.
+ * The next page is submitted by the completion of the previous one, so no executor thread waits for another
+ * request and iterators sharing the executor don't block each other.
+ * Pages of an {@link IndexedPagingFunction} don't wait for the previous page, they are requested at the same time.
  * Created by tai.khuu on 9/5/17.
  */
 public class RecordPagingIterable<T> implements Iterable<T>
 {
     private PagingFunction<Page<T>> pagingFunction;
 
+    private ListeningExecutorService prefetchExecutor;
+
+    private int prefetchPages;
+
     public RecordPagingIterable(PagingFunction pagingFunction)
+    {
+        this(pagingFunction, null, 0);
+    }
+
+    public RecordPagingIterable(PagingFunction pagingFunction, ExecutorService prefetchExecutor, int prefetchPages)
     {
         this.pagingFunction = pagingFunction;
+        this.prefetchExecutor = prefetchExecutor != null ? MoreExecutors.listeningDecorator(prefetchExecutor) : null;
+        this.prefetchPages = prefetchPages;
     }
 
     @Override
     public Iterator<T> iterator()
     {
+        if (prefetchExecutor != null && prefetchPages > 0) {
+            return this.new PrefetchingRecordIterator();
+        }
         return this.new RecordIterator();
     }
 
@@ -69,6 +103,175 @@ public class RecordPagingIterable<T> implements Iterable<T>
         }
     }
 
+    /**
+     * Iterator that keeps up to prefetchPages pages requested ahead of the page being consumed.
+     * Unless pages are indexed, a page can only be requested once the previous one has arrived: the request is
+     * submitted by a listener of the previous page, its result is handed over through a SettableFuture.
+     */
+    private class PrefetchingRecordIterator implements Iterator<T>
+    {
+        private final ExecSession session = Exec.session();
+
+        private final Deque<ListenableFuture<Page<T>>> requestedPages = new ArrayDeque<>();
+
+        private ListenableFuture<Page<T>> lastRequestedPage;
+
+        private Iterator<T> currentIterator;
+
+        private boolean lastPageReached = false;
+
+        private int nextPageIndex = 0;
+
+        @Override
+        public boolean hasNext()
+        {
+            if (currentIterator == null) {
+                requestPages();
+                nextPage();
+            }
+            while (!currentIterator.hasNext()) {
+                if (lastPageReached) {
+                    return false;
+                }
+                nextPage();
+            }
+            return true;
+        }
+
+        private void nextPage()
+        {
+            Page<T> page = MarketoUtils.getFutureResult(requestedPages.poll());
+            if (page == null || !page.hasNext) {
+                lastPageReached = true;
+                // the remaining requests are past the last page
+                for (ListenableFuture<Page<T>> requestedPage : requestedPages) {
+                    requestedPage.cancel(false);
+                }
+                requestedPages.clear();
+            }
+            currentIterator = page != null ? page.getRecordsIter() : Collections.<T>emptyIterator();
+            if (!lastPageReached) {
+                requestPages();
+            }
+        }
+
+        private void requestPages()
+        {
+            while (requestedPages.size() < prefetchPages) {
+                lastRequestedPage = newPageRequest(lastRequestedPage, nextPageIndex++);
+                requestedPages.add(lastRequestedPage);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private ListenableFuture<Page<T>> newPageRequest(final ListenableFuture<Page<T>> previousPage, final int pageIndex)
+        {
+            if (pagingFunction instanceof IndexedPagingFunction) {
+                final IndexedPagingFunction<Page<T>> indexedPagingFunction = (IndexedPagingFunction<Page<T>>) pagingFunction;
+                return submit(new Callable<Page<T>>()
+                {
+                    @Override
+                    public Page<T> call()
+                    {
+                        return indexedPagingFunction.getPage(pageIndex);
+                    }
+                });
+            }
+            if (previousPage == null) {
+                return submit(new Callable<Page<T>>()
+                {
+                    @Override
+                    public Page<T> call()
+                    {
+                        return pagingFunction.getFirstPage();
+                    }
+                });
+            }
+            final SettableFuture<Page<T>> nextPage = SettableFuture.create();
+            previousPage.addListener(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    final Page<T> page;
+                    try {
+                        page = previousPage.get();
+                    }
+                    catch (ExecutionException e) {
+                        nextPage.setException(e.getCause());
+                        return;
+                    }
+                    catch (CancellationException | InterruptedException e) {
+                        nextPage.cancel(false);
+                        return;
+                    }
+                    if (page == null || !page.hasNext) {
+                        nextPage.set(null);
+                        return;
+                    }
+                    if (nextPage.isCancelled()) {
+                        return;
+                    }
+                    try {
+                        forward(submit(new Callable<Page<T>>()
+                        {
+                            @Override
+                            public Page<T> call()
+                            {
+                                return pagingFunction.getNextPage(page);
+                            }
+                        }), nextPage);
+                    }
+                    catch (RuntimeException e) {
+                        // executor shut down
+                        nextPage.setException(e);
+                    }
+                }
+            }, MoreExecutors.directExecutor());
+            return nextPage;
+        }
+
+        private ListenableFuture<Page<T>> submit(Callable<Page<T>> request)
+        {
+            return prefetchExecutor.submit(MarketoUtils.withExecSession(session, request));
+        }
+
+        private void forward(final ListenableFuture<Page<T>> request, final SettableFuture<Page<T>> page)
+        {
+            request.addListener(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        page.set(request.get());
+                    }
+                    catch (ExecutionException e) {
+                        page.setException(e.getCause());
+                    }
+                    catch (CancellationException | InterruptedException e) {
+                        page.cancel(false);
+                    }
+                }
+            }, MoreExecutors.directExecutor());
+        }
+
+        @Override
+        public T next()
+        {
+            if (!hasNext()) {
+                throw new NoSuchElementException("Call next on an empty iterator");
+            }
+            return currentIterator.next();
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException("RecordIterator not support remove");
+        }
+    }
+
     public interface PagingFunction<P extends Page>
     {
         P getNextPage(P currentPage);
@@ -79,6 +282,17 @@ public class RecordPagingIterable<T> implements Iterable<T>
         P getFirstPage();
     }
 
+    /**
+     * Paging function whose pages can be requested by index, without the previous page
+     */
+    public interface IndexedPagingFunction<P extends Page> extends PagingFunction<P>
+    {
+        /**
+         * @param pageIndex 0 for the first page
+         */
+        P getPage(int pageIndex);
+    }
+
     public static class Page<T>
     {
         private Iterable<T> records;
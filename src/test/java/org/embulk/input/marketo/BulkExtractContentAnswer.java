@@ -0,0 +1,56 @@
+package org.embulk.input.marketo;
+
+import org.embulk.input.marketo.model.BulkExtractRangeHeader;
+import org.embulk.input.marketo.rest.MarketoFileChannelResponseEntityReader;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Answer a mocked bulk extract download by writing the content into the file channel of the call,
+ * the way MarketoFileChannelResponseEntityReader does.
+ * Arguments are expected as (exportId, rangeHeader, fileChannel, contentListener).
+ */
+public class BulkExtractContentAnswer implements Answer<Long>
+{
+    private final InputStream content;
+
+    public BulkExtractContentAnswer(InputStream content)
+    {
+        this.content = content;
+    }
+
+    @Override
+    public Long answer(InvocationOnMock invocation) throws Throwable
+    {
+        return write(content, (BulkExtractRangeHeader) invocation.getArgument(1), (FileChannel) invocation.getArgument(2), (MarketoFileChannelResponseEntityReader.ContentListener) invocation.getArgument(3));
+    }
+
+    /**
+     * Write the content at the start of the range, an IOException of the content is thrown as a broken download
+     * @return position after the last written byte
+     */
+    public static long write(InputStream content, BulkExtractRangeHeader rangeHeader, FileChannel fileChannel, MarketoFileChannelResponseEntityReader.ContentListener contentListener) throws IOException
+    {
+        long position = rangeHeader.getStart();
+        byte[] buf = new byte[16];
+        try (InputStream inputStream = content) {
+            while (true) {
+                int r = inputStream.read(buf);
+                if (r == -1) {
+                    break;
+                }
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buf, 0, r);
+                while (byteBuffer.hasRemaining()) {
+                    position += fileChannel.write(byteBuffer, position);
+                }
+                contentListener.onContent(position);
+            }
+        }
+        return position;
+    }
+}
@@ -0,0 +1,184 @@
+package org.embulk.input.marketo;
+
+import com.google.common.base.Function;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.input.marketo.model.BulkExtractDownloadRange;
+import org.embulk.input.marketo.model.BulkExtractDownloadState;
+import org.embulk.input.marketo.model.BulkExtractRangeHeader;
+import org.embulk.input.marketo.rest.MarketoFileChannelResponseEntityReader;
+import org.embulk.spi.DataException;
+import org.embulk.spi.Exec;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class BulkExtractDownloaderTest
+{
+    @Rule
+    public EmbulkTestRuntime embulkTestRuntime = new EmbulkTestRuntime();
+
+    private static final byte[] CONTENT = "id,createdAt\n1,2017-10-01T00:00:00+0000\n2,2017-10-02T00:00:00+0000\n3,2017-10-03T00:00:00+0000\n".getBytes();
+
+    @Test
+    public void downloadRangesConcurrently() throws Exception
+    {
+        final List<String> requestedRanges = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        Function<BulkExtractRangeHeader, InputStream> getBulkExtractFunction = new Function<BulkExtractRangeHeader, InputStream>()
+        {
+            @Override
+            public InputStream apply(BulkExtractRangeHeader rangeHeader)
+            {
+                String rangeHeaderValue = rangeHeader.toRangeHeaderValue();
+                requestedRanges.add(rangeHeaderValue);
+                String[] range = rangeHeaderValue.substring("bytes=".length()).split("-");
+                int start = Integer.parseInt(range[0]);
+                int end = Integer.parseInt(range[1]);
+                if (start == 0 && failed.compareAndSet(false, true)) {
+                    // Break the connection of the first range after 5 bytes
+                    return new SequenceInputStream(new ByteArrayInputStream(CONTENT, 0, 5), new InputStream()
+                    {
+                        @Override
+                        public int read() throws IOException
+                        {
+                            throw new IOException("Connection reset");
+                        }
+                    });
+                }
+                return new ByteArrayInputStream(CONTENT, start, end - start + 1);
+            }
+        };
+        File file = Exec.getTempFileSpace().createTempFile("csv");
+        BulkExtractDownloadState state = new BulkExtractDownloadState("exportId");
+        state.setFileSize(CONTENT.length);
+        state.setFileChecksum("sha256:" + Hashing.sha256().hashBytes(CONTENT).toString());
+        new BulkExtractDownloader(transfer(getBulkExtractFunction), 3, 10).download(file, state, 4);
+        Assert.assertArrayEquals(CONTENT, Files.toByteArray(file));
+        Assert.assertEquals(5, requestedRanges.size());
+        Assert.assertTrue(requestedRanges.contains("bytes=0-23"));
+        Assert.assertTrue(requestedRanges.contains("bytes=5-23"));
+        Assert.assertTrue(requestedRanges.contains("bytes=72-93"));
+    }
+
+    @Test
+    public void downloadSingleStreamWhenFileSizeUnknown() throws Exception
+    {
+        final List<String> requestedRanges = new ArrayList<>();
+        Function<BulkExtractRangeHeader, InputStream> getBulkExtractFunction = new Function<BulkExtractRangeHeader, InputStream>()
+        {
+            @Override
+            public InputStream apply(BulkExtractRangeHeader rangeHeader)
+            {
+                requestedRanges.add(rangeHeader.toRangeHeaderValue());
+                return new ByteArrayInputStream(CONTENT);
+            }
+        };
+        File file = Exec.getTempFileSpace().createTempFile("csv");
+        new BulkExtractDownloader(transfer(getBulkExtractFunction), 3, 10).download(file, new BulkExtractDownloadState("exportId"), 4);
+        Assert.assertArrayEquals(CONTENT, Files.toByteArray(file));
+        Assert.assertEquals(Collections.singletonList("bytes=0-"), requestedRanges);
+    }
+
+    @Test
+    public void continueDownloadFromState() throws Exception
+    {
+        File file = Exec.getTempFileSpace().createTempFile("csv");
+        // Previous run has downloaded the first range and 10 bytes of the second one
+        Files.write(Arrays.copyOf(CONTENT, 57), file);
+        BulkExtractDownloadState state = new BulkExtractDownloadState("exportId");
+        state.setFileSize(CONTENT.length);
+        state.setRanges(Arrays.asList(new BulkExtractDownloadRange(0, 46), new BulkExtractDownloadRange(47, 93)));
+        state.getRanges().get(0).setPosition(47);
+        state.getRanges().get(1).setPosition(57);
+        final List<String> requestedRanges = new ArrayList<>();
+        Function<BulkExtractRangeHeader, InputStream> getBulkExtractFunction = new Function<BulkExtractRangeHeader, InputStream>()
+        {
+            @Override
+            public InputStream apply(BulkExtractRangeHeader rangeHeader)
+            {
+                requestedRanges.add(rangeHeader.toRangeHeaderValue());
+                return new ByteArrayInputStream(CONTENT, 57, CONTENT.length - 57);
+            }
+        };
+        final List<Boolean> reportedCompleted = new ArrayList<>();
+        new BulkExtractDownloader(transfer(getBulkExtractFunction), 3, 10).download(file, state, 2, new BulkExtractDownloader.ProgressListener()
+        {
+            @Override
+            public void onProgress(BulkExtractDownloadState state)
+            {
+                reportedCompleted.add(state.isCompleted());
+            }
+        });
+        Assert.assertArrayEquals(CONTENT, Files.toByteArray(file));
+        Assert.assertEquals(Collections.singletonList("bytes=57-93"), requestedRanges);
+        Assert.assertTrue(state.isCompleted());
+        Assert.assertTrue(reportedCompleted.get(reportedCompleted.size() - 1));
+    }
+
+    @Test
+    public void restartDownloadWhenFileLost() throws Exception
+    {
+        File file = Exec.getTempFileSpace().createTempFile("csv");
+        // The state says the first range is downloaded but the file was removed since
+        Assert.assertTrue(!file.exists() || file.delete());
+        BulkExtractDownloadState state = new BulkExtractDownloadState("exportId");
+        state.setFileSize(CONTENT.length);
+        state.setRanges(Arrays.asList(new BulkExtractDownloadRange(0, 46), new BulkExtractDownloadRange(47, 93)));
+        state.getRanges().get(0).setPosition(47);
+        final List<String> requestedRanges = new ArrayList<>();
+        Function<BulkExtractRangeHeader, InputStream> getBulkExtractFunction = new Function<BulkExtractRangeHeader, InputStream>()
+        {
+            @Override
+            public InputStream apply(BulkExtractRangeHeader rangeHeader)
+            {
+                requestedRanges.add(rangeHeader.toRangeHeaderValue());
+                return new ByteArrayInputStream(CONTENT);
+            }
+        };
+        new BulkExtractDownloader(transfer(getBulkExtractFunction), 3, 1000).download(file, state, 1);
+        Assert.assertArrayEquals(CONTENT, Files.toByteArray(file));
+        Assert.assertEquals(Collections.singletonList("bytes=0-"), requestedRanges);
+    }
+
+    @Test(expected = DataException.class)
+    public void checksumMismatch() throws Exception
+    {
+        Function<BulkExtractRangeHeader, InputStream> getBulkExtractFunction = new Function<BulkExtractRangeHeader, InputStream>()
+        {
+            @Override
+            public InputStream apply(BulkExtractRangeHeader rangeHeader)
+            {
+                return new ByteArrayInputStream(CONTENT);
+            }
+        };
+        BulkExtractDownloadState state = new BulkExtractDownloadState("exportId");
+        state.setFileChecksum("sha256:" + Hashing.sha256().hashBytes("other content".getBytes()).toString());
+        new BulkExtractDownloader(transfer(getBulkExtractFunction), 3, 10).download(Exec.getTempFileSpace().createTempFile("csv"), state, 1);
+    }
+
+    private static BulkExtractDownloader.Transfer transfer(final Function<BulkExtractRangeHeader, InputStream> getBulkExtractFunction)
+    {
+        return new BulkExtractDownloader.Transfer()
+        {
+            @Override
+            public long transfer(BulkExtractRangeHeader rangeHeader, FileChannel fileChannel, MarketoFileChannelResponseEntityReader.ContentListener contentListener) throws IOException
+            {
+                return BulkExtractContentAnswer.write(getBulkExtractFunction.apply(rangeHeader), rangeHeader, fileChannel, contentListener);
+            }
+        };
+    }
+}
@@ -0,0 +1,101 @@
+package org.embulk.input.marketo;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Optional;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.input.marketo.rest.ExportJobPollingStrategy;
+import org.embulk.spi.DataException;
+import org.joda.time.DateTime;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+
+public class BulkExtractJobSchedulerTest
+{
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @Rule
+    public EmbulkTestRuntime embulkTestRuntime = new EmbulkTestRuntime();
+
+    private BulkExtractJobScheduler.ExportJobHandler exportJobHandler;
+
+    private List<MarketoUtils.DateRange> dateRanges;
+
+    private ExportJobPollingStrategy pollingStrategy = new ExportJobPollingStrategy(1000, Optional.<Double>absent(), Optional.<Double>absent());
+
+    @Before
+    public void prepare()
+    {
+        exportJobHandler = Mockito.mock(BulkExtractJobScheduler.ExportJobHandler.class);
+        DateTime startDate = new DateTime(1507369760000L);
+        dateRanges = MarketoUtils.sliceRange(startDate, startDate.plusDays(90), 30);
+        Mockito.when(exportJobHandler.enqueueJob(any(MarketoUtils.DateRange.class))).thenReturn("exportId1").thenReturn("exportId2").thenReturn("exportId3");
+    }
+
+    private ObjectNode status(String status) throws Exception
+    {
+        return (ObjectNode) OBJECT_MAPPER.readTree("{\"status\":\"" + status + "\",\"errorMsg\":\"ErrorMessage\"}");
+    }
+
+    @Test
+    public void nextInRangeOrder() throws Exception
+    {
+        InputStream file1 = new ByteArrayInputStream("file1".getBytes());
+        InputStream file2 = new ByteArrayInputStream("file2".getBytes());
+        InputStream file3 = new ByteArrayInputStream("file3".getBytes());
+        Mockito.when(exportJobHandler.getJobStatus("exportId1")).thenReturn(status("Processing")).thenReturn(status("Completed"));
+        Mockito.when(exportJobHandler.getJobStatus("exportId2")).thenReturn(status("Completed"));
+        Mockito.when(exportJobHandler.getJobStatus("exportId3")).thenReturn(status("Completed"));
+        Mockito.when(exportJobHandler.open(Mockito.eq("exportId1"), any(ObjectNode.class))).thenReturn(file1);
+        Mockito.when(exportJobHandler.open(Mockito.eq("exportId2"), any(ObjectNode.class))).thenReturn(file2);
+        Mockito.when(exportJobHandler.open(Mockito.eq("exportId3"), any(ObjectNode.class))).thenReturn(file3);
+        try (BulkExtractJobScheduler scheduler = new BulkExtractJobScheduler(dateRanges, exportJobHandler, 2, pollingStrategy, 1, 10)) {
+            Assert.assertEquals(file1, scheduler.next());
+            Assert.assertEquals(file2, scheduler.next());
+            Assert.assertEquals(file3, scheduler.next());
+            Assert.assertFalse(scheduler.hasNext());
+        }
+        Mockito.verify(exportJobHandler, Mockito.times(3)).enqueueJob(any(MarketoUtils.DateRange.class));
+        Mockito.verify(exportJobHandler, Mockito.times(1)).enqueueJob(dateRanges.get(0));
+        Mockito.verify(exportJobHandler, Mockito.times(1)).enqueueJob(dateRanges.get(2));
+    }
+
+    @Test
+    public void unknownStatusPolledAgain() throws Exception
+    {
+        InputStream file1 = new ByteArrayInputStream("file1".getBytes());
+        Mockito.when(exportJobHandler.getJobStatus("exportId1")).thenReturn(null).thenReturn(status("Completed"));
+        Mockito.when(exportJobHandler.getJobStatus("exportId2")).thenReturn(status("Completed"));
+        Mockito.when(exportJobHandler.getJobStatus("exportId3")).thenReturn(status("Completed"));
+        Mockito.when(exportJobHandler.open(Mockito.eq("exportId1"), any(ObjectNode.class))).thenReturn(file1);
+        try (BulkExtractJobScheduler scheduler = new BulkExtractJobScheduler(dateRanges, exportJobHandler, 2, pollingStrategy, 1, 10)) {
+            Assert.assertEquals(file1, scheduler.next());
+        }
+        Mockito.verify(exportJobHandler, Mockito.times(2)).getJobStatus("exportId1");
+    }
+
+    @Test
+    public void failedJob() throws Exception
+    {
+        Mockito.when(exportJobHandler.getJobStatus("exportId1")).thenReturn(status("Failed"));
+        Mockito.when(exportJobHandler.getJobStatus("exportId2")).thenReturn(status("Processing"));
+        try (BulkExtractJobScheduler scheduler = new BulkExtractJobScheduler(dateRanges, exportJobHandler, 2, pollingStrategy, 1, 10)) {
+            scheduler.next();
+        }
+        catch (DataException e) {
+            Assert.assertTrue(e.getMessage().contains("ErrorMessage"));
+            Mockito.verify(exportJobHandler, Mockito.never()).open(Mockito.anyString(), any(ObjectNode.class));
+            return;
+        }
+        Assert.fail();
+    }
+}
@@ -0,0 +1,62 @@
+package org.embulk.input.marketo;
+
+import com.google.common.io.Files;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.input.marketo.model.BulkExtractDownloadState;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+public class BulkExtractStateStoreTest
+{
+    @Rule
+    public EmbulkTestRuntime embulkTestRuntime = new EmbulkTestRuntime();
+
+    @Test
+    public void removeExpiredDownloadTogether() throws Exception
+    {
+        File directory = java.nio.file.Files.createTempDirectory("marketo-state").toFile();
+        BulkExtractStateStore stateStore = new BulkExtractStateStore(directory, "accountId", "endPoint");
+        stateStore.save("expired", new BulkExtractDownloadState("exportId1"));
+        stateStore.save("active", new BulkExtractDownloadState("exportId2"));
+        Files.write("id\n", stateStore.getDataFile("expired"), StandardCharsets.UTF_8);
+        Files.write("id\n", stateStore.getDataFile("active"), StandardCharsets.UTF_8);
+        Files.write("id\n", stateStore.getDataFile("orphan"), StandardCharsets.UTF_8);
+        long eightDaysAgo = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(8);
+        // The state of the expired download is older than its data file, the active one has an old data file
+        Assert.assertTrue(new File(stateStore.getDataFile("expired").getParentFile(), "expired.json").setLastModified(eightDaysAgo));
+        Assert.assertTrue(stateStore.getDataFile("active").setLastModified(eightDaysAgo));
+        Assert.assertTrue(stateStore.getDataFile("orphan").setLastModified(eightDaysAgo));
+
+        stateStore = new BulkExtractStateStore(directory, "accountId", "endPoint");
+        Assert.assertFalse(stateStore.load("expired").isPresent());
+        Assert.assertFalse(stateStore.getDataFile("expired").exists());
+        Assert.assertTrue(stateStore.load("active").isPresent());
+        Assert.assertTrue(stateStore.getDataFile("active").exists());
+        Assert.assertFalse(stateStore.getDataFile("orphan").exists());
+    }
+
+    @Test
+    public void accountsSharingDirectory() throws Exception
+    {
+        File directory = java.nio.file.Files.createTempDirectory("marketo-state").toFile();
+        BulkExtractStateStore stateStore1 = new BulkExtractStateStore(directory, "account1", "https://account1.mktorest.com");
+        BulkExtractStateStore stateStore2 = new BulkExtractStateStore(directory, "account2", "https://account2.mktorest.com");
+        // The same request to two accounts has the same key
+        String key = BulkExtractStateStore.buildKey("lead", 1507223374000L, 1507655374000L);
+        BulkExtractDownloadState state = new BulkExtractDownloadState("exportId1");
+        state.setFileSize(3);
+        stateStore1.save(key, state);
+        Files.write("id\n", stateStore1.getDataFile(key), StandardCharsets.UTF_8);
+
+        Assert.assertFalse(stateStore2.load(key).isPresent());
+        Assert.assertFalse(stateStore2.getDataFile(key).exists());
+        stateStore2.remove(key);
+        Assert.assertEquals("exportId1", stateStore1.load(key).get().getExportId());
+        Assert.assertTrue(stateStore1.getDataFile(key).exists());
+    }
+}
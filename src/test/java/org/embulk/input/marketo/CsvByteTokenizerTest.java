@@ -0,0 +1,83 @@
+package org.embulk.input.marketo;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class CsvByteTokenizerTest
+{
+    private static final String CONTENT = "id,name,note\r\n1,\"a,b\",\r\n2,\"x\"\"y\",\"multi\nline\"\n\n3,\u00e9\u65e5\u672c,\"\\\"q\"";
+
+    @Test
+    public void tokenize()
+    {
+        // A tiny buffer makes every value cross buffer boundaries
+        for (int bufferSize : new int[] {1, 3, 1024}) {
+            List<List<String>> records = readAll(newTokenizer(CONTENT, 128, bufferSize));
+            Assert.assertEquals(4, records.size());
+            Assert.assertEquals(Arrays.asList("id", "name", "note"), records.get(0));
+            Assert.assertEquals(Arrays.asList("1", "a,b", null), records.get(1));
+            Assert.assertEquals(Arrays.asList("2", "x\"y", "multi\nline"), records.get(2));
+            Assert.assertEquals(Arrays.asList("3", "\u00e9\u65e5\u672c", "\"q"), records.get(3));
+        }
+    }
+
+    @Test
+    public void skipRemainingColumns()
+    {
+        for (int bufferSize : new int[] {1, 3, 1024}) {
+            CsvByteTokenizer tokenizer = newTokenizer(CONTENT, 128, bufferSize);
+            List<String> ids = new ArrayList<>();
+            while (tokenizer.nextRecord()) {
+                ids.add(tokenizer.nextColumn());
+                tokenizer.skipRemainingColumns();
+            }
+            Assert.assertEquals(Arrays.asList("id", "1", "2", "3"), ids);
+            Assert.assertEquals(6, tokenizer.getCurrentLineNumber());
+        }
+    }
+
+    @Test
+    public void lineNumber()
+    {
+        CsvByteTokenizer tokenizer = newTokenizer(CONTENT, 128, 16);
+        readAll(tokenizer);
+        Assert.assertEquals(6, tokenizer.getCurrentLineNumber());
+    }
+
+    @Test(expected = CsvTokenizer.QuotedSizeLimitExceededException.class)
+    public void quotedSizeLimit()
+    {
+        readAll(newTokenizer("id,note\n1,\"a very long quoted value\"\n", 10, 1024));
+    }
+
+    @Test(expected = CsvTokenizer.InvalidValueException.class)
+    public void unterminatedQuotedValue()
+    {
+        readAll(newTokenizer("id,note\n1,\"unterminated\n", 128, 1024));
+    }
+
+    private static CsvByteTokenizer newTokenizer(String content, long maxQuotedSizeLimit, int bufferSize)
+    {
+        return new CsvByteTokenizer(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8,
+                ',', '"', '\\', "\n", false, maxQuotedSizeLimit, null, null, bufferSize);
+    }
+
+    private static List<List<String>> readAll(CsvByteTokenizer tokenizer)
+    {
+        List<List<String>> records = new ArrayList<>();
+        while (tokenizer.nextRecord()) {
+            List<String> record = new ArrayList<>();
+            while (tokenizer.hasNextColumn()) {
+                record.add(tokenizer.nextColumnOrNull());
+            }
+            records.add(record);
+        }
+        return records;
+    }
+}
@@ -0,0 +1,32 @@
+package org.embulk.input.marketo;
+
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class MarketoDateTimeParserTest
+{
+    private static final DateTimeFormatter ISO_PARSER = ISODateTimeFormat.dateTimeParser().withZoneUTC();
+
+    @Test
+    public void parseMillis()
+    {
+        MarketoDateTimeParser parser = new MarketoDateTimeParser();
+        String[] values = {
+                "2017-09-21T00:00:00Z", "2017-09-21T00:00:00Z", "2017-09-21T13:45:59+0000", "2017-09-21T13:45:59-0700",
+                "2017-09-21T13:45:59+05:30", "2017-09-21T13:45:59+09", "2016-02-29T23:59:59Z", "2000-03-01T00:00:00Z",
+                "1969-12-31T23:59:59Z", "1900-01-01T00:00:00Z", "2017-09-21", "2017-09-21T13:45:59.123Z"
+        };
+        for (String value : values) {
+            assertEquals(value, ISO_PARSER.parseMillis(value), parser.parseMillis(value));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidDateTime()
+    {
+        new MarketoDateTimeParser().parseMillis("2017-02-30T00:00:00Z");
+    }
+}
@@ -0,0 +1,38 @@
+package org.embulk.input.marketo;
+
+import org.embulk.spi.json.JsonParseException;
+import org.embulk.spi.json.JsonParser;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class MarketoJsonValueParserTest
+{
+    @Test
+    public void parse()
+    {
+        MarketoJsonValueParser parser = new MarketoJsonValueParser();
+        JsonParser expectedParser = new JsonParser();
+        String[] values = {
+                "{\"Source Type\":\"List import\",\"List Name\":\"Bill Import Test\",\"Created Date\":\"2017-09-08\"}",
+                "{\"Source Type\":\"Web form\",\"Choice Number\":1,\"Step ID\":12345678901234567890,\"Score\":-1.5}",
+                "{\"nested\":{\"list\":[1,\"a\",null,true,false,[]],\"empty\":{}},\"escaped\":\"\\\"\\u00e9\\n\"}",
+                "[]", "\"text\"", "0", "null"
+        };
+        for (String value : values) {
+            assertEquals(value, expectedParser.parse(value), parser.parse(value));
+        }
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void invalidJson()
+    {
+        new MarketoJsonValueParser().parse("{\"Source Type\":");
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void trailingData()
+    {
+        new MarketoJsonValueParser().parse("{} {}");
+    }
+}
@@ -2,26 +2,39 @@ package org.embulk.input.marketo;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
 import com.google.common.io.ByteStreams;
 import org.embulk.EmbulkTestRuntime;
+import org.embulk.input.marketo.model.ActivityExtractFilter;
+import org.embulk.input.marketo.model.BulkExtractDownloadState;
 import org.embulk.input.marketo.model.BulkExtractRangeHeader;
 import org.embulk.input.marketo.model.MarketoField;
+import org.embulk.input.marketo.rest.MarketoFileChannelResponseEntityReader;
 import org.embulk.input.marketo.rest.MarketoRestClient;
 import org.embulk.input.marketo.rest.RecordPagingIterable;
+import org.joda.time.DateTime;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by tai.khuu on 10/9/17.
@@ -51,7 +64,7 @@ public class MarketoServiceImplTest
         String exportId = "exportId";
         Mockito.when(mockMarketoRestClient.createLeadBulkExtract(Mockito.eq(startDate), Mockito.eq(endDate), Mockito.eq(extractedFields), Mockito.eq(filerField))).thenReturn(exportId);
         ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream("Test File Content".getBytes());
-        Mockito.when(mockMarketoRestClient.getLeadBulkExtractResult(Mockito.eq(exportId), Mockito.any(BulkExtractRangeHeader.class))).thenReturn(byteArrayInputStream);
+        Mockito.when(mockMarketoRestClient.downloadLeadBulkExtract(Mockito.eq(exportId), Mockito.any(BulkExtractRangeHeader.class), Mockito.any(FileChannel.class), Mockito.any(MarketoFileChannelResponseEntityReader.ContentListener.class))).thenAnswer(new BulkExtractContentAnswer(byteArrayInputStream));
         File file = marketoService.extractLead(startDate, endDate, extractedFields, filerField, 1, 3);
         Assert.assertEquals("Test File Content", new String(ByteStreams.toByteArray(new FileInputStream(file))));
         Mockito.verify(mockMarketoRestClient, Mockito.times(1)).startLeadBulkExtract(Mockito.eq(exportId));
@@ -64,62 +77,170 @@ public class MarketoServiceImplTest
         Date startDate = new Date(1507223374000L);
         Date endDate = new Date(1507655374000L);
         String exportId = "exportId";
-        Mockito.when(mockMarketoRestClient.createActivityExtract(Mockito.eq(startDate), Mockito.eq(endDate))).thenReturn(exportId);
+        Mockito.when(mockMarketoRestClient.createActivityExtract(Mockito.eq(startDate), Mockito.eq(endDate), Mockito.eq(ActivityExtractFilter.NONE))).thenReturn(exportId);
         ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream("Test File Content".getBytes());
-        Mockito.when(mockMarketoRestClient.getActivitiesBulkExtractResult(Mockito.eq(exportId), Mockito.any(BulkExtractRangeHeader.class))).thenReturn(byteArrayInputStream);
-        File file = marketoService.extractAllActivity(startDate, endDate, 1, 3);
+        Mockito.when(mockMarketoRestClient.downloadActivitiesBulkExtract(Mockito.eq(exportId), Mockito.any(BulkExtractRangeHeader.class), Mockito.any(FileChannel.class), Mockito.any(MarketoFileChannelResponseEntityReader.ContentListener.class))).thenAnswer(new BulkExtractContentAnswer(byteArrayInputStream));
+        File file = marketoService.extractAllActivity(startDate, endDate, ActivityExtractFilter.NONE, 1, 3);
         Assert.assertEquals("Test File Content", new String(ByteStreams.toByteArray(new FileInputStream(file))));
         Mockito.verify(mockMarketoRestClient, Mockito.times(1)).startActitvityBulkExtract(Mockito.eq(exportId));
         Mockito.verify(mockMarketoRestClient, Mockito.times(1)).waitActitvityExportJobComplete(Mockito.eq(exportId), Mockito.eq(1), Mockito.eq(3));
     }
 
     @Test
-    public void getAllListLead() throws Exception
+    public void streamAllActivityResume() throws Exception
+    {
+        Date startDate = new Date(1507223374000L);
+        Date endDate = new Date(1507655374000L);
+        String exportId = "exportId";
+        Mockito.when(mockMarketoRestClient.createActivityExtract(Mockito.eq(startDate), Mockito.eq(endDate), Mockito.eq(ActivityExtractFilter.NONE))).thenReturn(exportId);
+        InputStream brokenStream = new SequenceInputStream(new ByteArrayInputStream("Test File".getBytes()), new InputStream()
+        {
+            @Override
+            public int read() throws IOException
+            {
+                throw new IOException("Connection reset");
+            }
+        });
+        Mockito.when(mockMarketoRestClient.getActivitiesBulkExtractResult(Mockito.eq(exportId), Mockito.any(BulkExtractRangeHeader.class))).thenReturn(brokenStream).thenReturn(new ByteArrayInputStream(" Content".getBytes()));
+        try (InputStream inputStream = marketoService.streamAllActivity(startDate, endDate, ActivityExtractFilter.NONE, 1, 3)) {
+            Assert.assertEquals("Test File Content", new String(ByteStreams.toByteArray(inputStream)));
+        }
+        ArgumentCaptor<BulkExtractRangeHeader> rangeHeaderCaptor = ArgumentCaptor.forClass(BulkExtractRangeHeader.class);
+        Mockito.verify(mockMarketoRestClient, Mockito.times(2)).getActivitiesBulkExtractResult(Mockito.eq(exportId), rangeHeaderCaptor.capture());
+        Assert.assertEquals("bytes=0-", rangeHeaderCaptor.getAllValues().get(0).toRangeHeaderValue());
+        Assert.assertEquals("bytes=9-", rangeHeaderCaptor.getAllValues().get(1).toRangeHeaderValue());
+        Mockito.verify(mockMarketoRestClient, Mockito.times(1)).waitActitvityExportJobComplete(Mockito.eq(exportId), Mockito.eq(1), Mockito.eq(3));
+    }
+
+    @Test
+    public void extractLeadReattachToRunningExport() throws Exception
+    {
+        Date startDate = new Date(1507223374000L);
+        Date endDate = new Date(1507655374000L);
+        List<String> extractedFields = Arrays.asList("field1", "field2");
+        String filerField = "field1";
+        String exportId = "exportId";
+        BulkExtractStateStore stateStore = new BulkExtractStateStore(Files.createTempDirectory("marketo-state").toFile(), "accountId", "endPoint");
+        String key = BulkExtractStateStore.buildKey("lead", startDate.getTime(), endDate.getTime(), extractedFields, filerField);
+        stateStore.save(key, new BulkExtractDownloadState(exportId));
+        marketoService = new MarketoServiceImpl(mockMarketoRestClient, 1, Optional.of(stateStore));
+        Mockito.when(mockMarketoRestClient.getLeadExportJobStatus(Mockito.eq(exportId))).thenReturn((ObjectNode) OBJECT_MAPPER.readTree("{\"exportId\":\"exportId\",\"status\":\"Processing\"}"));
+        Mockito.when(mockMarketoRestClient.downloadLeadBulkExtract(Mockito.eq(exportId), Mockito.any(BulkExtractRangeHeader.class), Mockito.any(FileChannel.class), Mockito.any(MarketoFileChannelResponseEntityReader.ContentListener.class))).thenAnswer(new BulkExtractContentAnswer(new ByteArrayInputStream("Test File Content".getBytes())));
+        File file = marketoService.extractLead(startDate, endDate, extractedFields, filerField, 1, 3);
+        Assert.assertEquals("Test File Content", new String(ByteStreams.toByteArray(new FileInputStream(file))));
+        Mockito.verify(mockMarketoRestClient, Mockito.never()).createLeadBulkExtract(Mockito.any(Date.class), Mockito.any(Date.class), Mockito.anyList(), Mockito.anyString());
+        Mockito.verify(mockMarketoRestClient, Mockito.never()).startLeadBulkExtract(Mockito.anyString());
+        Mockito.verify(mockMarketoRestClient, Mockito.times(1)).waitLeadExportJobComplete(Mockito.eq(exportId), Mockito.eq(1), Mockito.eq(3));
+    }
+
+    @Test
+    public void extractLeadExpiredPartialDownload() throws Exception
+    {
+        Date startDate = new Date(1507223374000L);
+        Date endDate = new Date(1507655374000L);
+        List<String> extractedFields = Arrays.asList("field1", "field2");
+        String filerField = "field1";
+        BulkExtractStateStore stateStore = new BulkExtractStateStore(Files.createTempDirectory("marketo-state").toFile(), "accountId", "endPoint");
+        String key = BulkExtractStateStore.buildKey("lead", startDate.getTime(), endDate.getTime(), extractedFields, filerField);
+        // A previous run downloaded part of an export whose file Marketo has removed since
+        BulkExtractDownloadState expiredState = new BulkExtractDownloadState("expiredExportId");
+        expiredState.setFileSize(17);
+        expiredState.setFinishedAt(new DateTime().minusDays(8).toString());
+        stateStore.save(key, expiredState);
+        marketoService = new MarketoServiceImpl(mockMarketoRestClient, 1, Optional.of(stateStore));
+        Mockito.when(mockMarketoRestClient.createLeadBulkExtract(Mockito.eq(startDate), Mockito.eq(endDate), Mockito.eq(extractedFields), Mockito.eq(filerField))).thenReturn("exportId");
+        Mockito.when(mockMarketoRestClient.downloadLeadBulkExtract(Mockito.eq("exportId"), Mockito.any(BulkExtractRangeHeader.class), Mockito.any(FileChannel.class), Mockito.any(MarketoFileChannelResponseEntityReader.ContentListener.class))).thenAnswer(new BulkExtractContentAnswer(new ByteArrayInputStream("Test File Content".getBytes())));
+        File file = marketoService.extractLead(startDate, endDate, extractedFields, filerField, 1, 3);
+        Assert.assertEquals("Test File Content", new String(ByteStreams.toByteArray(new FileInputStream(file))));
+        Mockito.verify(mockMarketoRestClient, Mockito.times(1)).startLeadBulkExtract(Mockito.eq("exportId"));
+        Mockito.verify(mockMarketoRestClient, Mockito.never()).downloadLeadBulkExtract(Mockito.eq("expiredExportId"), Mockito.any(BulkExtractRangeHeader.class), Mockito.any(FileChannel.class), Mockito.any(MarketoFileChannelResponseEntityReader.ContentListener.class));
+    }
+
+    @Test
+    public void extractLeadReattachToExpiredExport() throws Exception
+    {
+        Date startDate = new Date(1507223374000L);
+        Date endDate = new Date(1507655374000L);
+        List<String> extractedFields = Arrays.asList("field1", "field2");
+        String filerField = "field1";
+        BulkExtractStateStore stateStore = new BulkExtractStateStore(Files.createTempDirectory("marketo-state").toFile(), "accountId", "endPoint");
+        String key = BulkExtractStateStore.buildKey("lead", startDate.getTime(), endDate.getTime(), extractedFields, filerField);
+        stateStore.save(key, new BulkExtractDownloadState("expiredExportId"));
+        marketoService = new MarketoServiceImpl(mockMarketoRestClient, 1, Optional.of(stateStore));
+        Mockito.when(mockMarketoRestClient.getLeadExportJobStatus(Mockito.eq("expiredExportId"))).thenReturn((ObjectNode) OBJECT_MAPPER.readTree("{\"exportId\":\"expiredExportId\",\"status\":\"Completed\",\"finishedAt\":\"" + new DateTime().minusDays(8) + "\"}"));
+        Mockito.when(mockMarketoRestClient.createLeadBulkExtract(Mockito.eq(startDate), Mockito.eq(endDate), Mockito.eq(extractedFields), Mockito.eq(filerField))).thenReturn("exportId");
+        Mockito.when(mockMarketoRestClient.downloadLeadBulkExtract(Mockito.eq("exportId"), Mockito.any(BulkExtractRangeHeader.class), Mockito.any(FileChannel.class), Mockito.any(MarketoFileChannelResponseEntityReader.ContentListener.class))).thenAnswer(new BulkExtractContentAnswer(new ByteArrayInputStream("Test File Content".getBytes())));
+        File file = marketoService.extractLead(startDate, endDate, extractedFields, filerField, 1, 3);
+        Assert.assertEquals("Test File Content", new String(ByteStreams.toByteArray(new FileInputStream(file))));
+        Mockito.verify(mockMarketoRestClient, Mockito.times(1)).startLeadBulkExtract(Mockito.eq("exportId"));
+        Mockito.verify(mockMarketoRestClient, Mockito.never()).waitLeadExportJobComplete(Mockito.eq("expiredExportId"), Mockito.anyInt(), Mockito.anyInt());
+    }
+
+    @Test
+    public void getLeadsByLists() throws Exception
+    {
+        for (int id = 1; id <= 3; id++) {
+            RecordPagingIterable<ObjectNode> leads = Mockito.mock(RecordPagingIterable.class);
+            Mockito.when(leads.iterator()).thenReturn(Arrays.asList((ObjectNode) OBJECT_MAPPER.readTree("{\"id\":\"lead" + id + "\"}")).iterator());
+            Mockito.when(mockMarketoRestClient.getLeadsByList(Mockito.eq(String.valueOf(id)), Mockito.eq("field1,field2"))).thenReturn(leads);
+        }
+        Map<String, Long> listLeadCounts = new ConcurrentHashMap<>();
+        List<String> leadIds = new ArrayList<>();
+        // One worker fetches the lists in the given order
+        try (ConcurrentLeadIterator leads = marketoService.getLeadsByLists(Arrays.asList("3", "2", "1").iterator(), Arrays.asList("field1", "field2"), listLeadCounts, 1)) {
+            while (leads.hasNext()) {
+                ObjectNode lead = leads.next();
+                leadIds.add(lead.get("id").asText() + "/" + lead.get(MarketoUtils.LIST_ID_COLUMN_NAME).asText());
+            }
+        }
+        Assert.assertEquals(Arrays.asList("lead3/3", "lead2/2", "lead1/1"), leadIds);
+        Assert.assertEquals(3, listLeadCounts.size());
+        Assert.assertEquals(Long.valueOf(1), listLeadCounts.get("2"));
+        Mockito.verify(mockMarketoRestClient, Mockito.never()).getLists();
+    }
+
+    @Test(expected = OutOfMemoryError.class, timeout = 10000)
+    public void getLeadsByListsWorkerError() throws Exception
+    {
+        RecordPagingIterable<ObjectNode> leads = Mockito.mock(RecordPagingIterable.class);
+        Mockito.when(leads.iterator()).thenThrow(new OutOfMemoryError("Java heap space"));
+        Mockito.when(mockMarketoRestClient.getLeadsByList(Mockito.anyString(), Mockito.anyString())).thenReturn(leads);
+        // The error reaches the consumer instead of leaving it waiting for the worker
+        try (ConcurrentLeadIterator leadIterator = marketoService.getLeadsByLists(Arrays.asList("1", "2").iterator(), Arrays.asList("field1"), new ConcurrentHashMap<String, Long>(), 2)) {
+            while (leadIterator.hasNext()) {
+                leadIterator.next();
+            }
+        }
+    }
+
+    @Test
+    public void getListIds() throws Exception
     {
-        List<String> extractFields = Arrays.asList("field1", "field2");
         RecordPagingIterable<ObjectNode> listObjectNodes = Mockito.mock(RecordPagingIterable.class);
-        Iterator listIterator = Mockito.mock(Iterator.class);
-        Mockito.when(listIterator.hasNext()).thenReturn(true).thenReturn(true).thenReturn(false);
-        Mockito.when(listIterator.next()).thenReturn(OBJECT_MAPPER.readTree("{\"id\":1}")).thenReturn(OBJECT_MAPPER.readTree("{\"id\":2}"));
-        Mockito.when(listObjectNodes.iterator()).thenReturn(listIterator);
-        List<ObjectNode> leadList1 = new ArrayList<>();
-        leadList1.add((ObjectNode) OBJECT_MAPPER.readTree("{\"id\":\"lead1\"}"));
-        List<ObjectNode> leadList2 = new ArrayList<>();
-        leadList2.add((ObjectNode) OBJECT_MAPPER.readTree("{\"id\":\"lead2\"}"));
+        Mockito.when(listObjectNodes.iterator()).thenReturn(Arrays.asList((ObjectNode) OBJECT_MAPPER.readTree("{\"id\":1}"), (ObjectNode) OBJECT_MAPPER.readTree("{\"id\":2}")).iterator());
         Mockito.when(mockMarketoRestClient.getLists()).thenReturn(listObjectNodes);
-        RecordPagingIterable leadIterable1 = Mockito.mock(RecordPagingIterable.class);
-        RecordPagingIterable leadsIterable2 = Mockito.mock(RecordPagingIterable.class);
-        Mockito.when(leadIterable1.iterator()).thenReturn(leadList1.iterator());
-        Mockito.when(leadsIterable2.iterator()).thenReturn(leadList2.iterator());
-        Mockito.when(mockMarketoRestClient.getLeadsByList(Mockito.eq("1"), Mockito.eq("field1,field2"))).thenReturn(leadIterable1);
-        Mockito.when(mockMarketoRestClient.getLeadsByList(Mockito.eq("2"), Mockito.eq("field1,field2"))).thenReturn(leadsIterable2);
-        Iterable<ObjectNode> allListLead = marketoService.getAllListLead(extractFields);
-        Assert.assertEquals(leadList1.get(0), allListLead.iterator().next());
-        Assert.assertEquals(leadList2.get(0), allListLead.iterator().next());
+        Assert.assertEquals(Arrays.asList("1", "2"), Lists.newArrayList(marketoService.getListIds()));
     }
 
     @Test
-    public void getAllProgramLead() throws Exception
+    public void getLeadsByPrograms() throws Exception
     {
-        RecordPagingIterable<ObjectNode> listObjectNodes = Mockito.mock(RecordPagingIterable.class);
-        Iterator listIterator = Mockito.mock(Iterator.class);
-        Mockito.when(listIterator.hasNext()).thenReturn(true).thenReturn(true).thenReturn(false);
-        Mockito.when(listIterator.next()).thenReturn(OBJECT_MAPPER.readTree("{\"id\":1}")).thenReturn(OBJECT_MAPPER.readTree("{\"id\":2}"));
-        Mockito.when(listObjectNodes.iterator()).thenReturn(listIterator);
-        List<ObjectNode> leadList1 = new ArrayList<>();
-        leadList1.add((ObjectNode) OBJECT_MAPPER.readTree("{\"id\":\"lead1\"}"));
-        List<ObjectNode> leadList2 = new ArrayList<>();
-        leadList2.add((ObjectNode) OBJECT_MAPPER.readTree("{\"id\":\"lead2\"}"));
-        Mockito.when(mockMarketoRestClient.getPrograms()).thenReturn(listObjectNodes);
-        RecordPagingIterable leadIterable1 = Mockito.mock(RecordPagingIterable.class);
-        RecordPagingIterable leadsIterable2 = Mockito.mock(RecordPagingIterable.class);
-        Mockito.when(leadIterable1.iterator()).thenReturn(leadList1.iterator());
-        Mockito.when(leadsIterable2.iterator()).thenReturn(leadList2.iterator());
-        Mockito.when(mockMarketoRestClient.getLeadsByProgram(Mockito.eq("1"), Mockito.eq("field1,field2"))).thenReturn(leadIterable1);
-        Mockito.when(mockMarketoRestClient.getLeadsByProgram(Mockito.eq("2"), Mockito.eq("field1,field2"))).thenReturn(leadsIterable2);
-        Iterable<ObjectNode> allListLead = marketoService.getAllProgramLead(Arrays.asList("field1", "field2"));
-        Assert.assertEquals(leadList1.get(0), allListLead.iterator().next());
-        Assert.assertEquals(leadList2.get(0), allListLead.iterator().next());
+        for (int id = 1; id <= 2; id++) {
+            RecordPagingIterable<ObjectNode> leads = Mockito.mock(RecordPagingIterable.class);
+            Mockito.when(leads.iterator()).thenReturn(Arrays.asList((ObjectNode) OBJECT_MAPPER.readTree("{\"id\":\"lead" + id + "\"}")).iterator());
+            Mockito.when(mockMarketoRestClient.getLeadsByProgram(Mockito.eq(String.valueOf(id)), Mockito.eq("field1,field2"))).thenReturn(leads);
+        }
+        Map<String, Long> programLeadCounts = new ConcurrentHashMap<>();
+        List<String> leadIds = new ArrayList<>();
+        try (ConcurrentLeadIterator leads = marketoService.getLeadsByPrograms(Arrays.asList("1", "2").iterator(), Arrays.asList("field1", "field2"), programLeadCounts, 1)) {
+            while (leads.hasNext()) {
+                ObjectNode lead = leads.next();
+                leadIds.add(lead.get("id").asText() + "/" + lead.get(MarketoUtils.PROGRAM_ID_COLUMN_NAME).asText());
+            }
+        }
+        Assert.assertEquals(Arrays.asList("lead1/1", "lead2/2"), leadIds);
+        Assert.assertEquals(2, programLeadCounts.size());
+        Mockito.verify(mockMarketoRestClient, Mockito.never()).getPrograms();
     }
 
     @Test
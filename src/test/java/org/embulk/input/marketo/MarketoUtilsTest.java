@@ -1,5 +1,6 @@
 package org.embulk.input.marketo;
 
+import com.google.common.collect.Sets;
 import org.embulk.base.restclient.ServiceResponseMapper;
 import org.embulk.base.restclient.record.ValueLocator;
 import org.embulk.input.marketo.model.MarketoField;
@@ -9,6 +10,8 @@ import org.joda.time.DateTime;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
@@ -51,6 +54,21 @@ public class MarketoUtilsTest
         assertFalse(marketoFieldList.contains("marketoField2"));
     }
 
+    @Test
+    public void selectFields() throws Exception
+    {
+        List<MarketoField> marketoFields = new ArrayList<>();
+        marketoFields.add(new MarketoField("id", "integer"));
+        marketoFields.add(new MarketoField("email", "email"));
+        marketoFields.add(new MarketoField("leadScore", "integer"));
+        marketoFields.add(new MarketoField("urgencyScore", "integer"));
+        marketoFields.add(new MarketoField("createdAt", "datetime"));
+        List<MarketoField> selectedFields = MarketoUtils.selectFields(marketoFields, Arrays.asList("*Score", "e?ail"), Arrays.asList("urgency*"), Sets.newHashSet("createdAt"));
+        assertEquals(Arrays.asList("email", "leadScore", "createdAt"), MarketoUtils.getFieldNameFromMarketoFields(selectedFields));
+        selectedFields = MarketoUtils.selectFields(marketoFields, new ArrayList<String>(), Arrays.asList("*Score"), new HashSet<String>());
+        assertEquals(Arrays.asList("id", "email", "createdAt"), MarketoUtils.getFieldNameFromMarketoFields(selectedFields));
+    }
+
     @Test
     public void buildColumnName() throws Exception
     {
@@ -0,0 +1,98 @@
+package org.embulk.input.marketo;
+
+import com.google.common.base.Function;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ParallelCsvReaderTest
+{
+    private static final String CONTENT = "id,name,note\r\n1,\"a,b\",\r\n2,\"x\"\"y\",\"multi\nline\"\n\n3,\"\\\"q\",\"\r\n\"\n4,\u00e9\u65e5\u672c,\"x\\\\\"\r5,,\n";
+
+    private ExecutorService executor;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        executor = Executors.newFixedThreadPool(4);
+        file = File.createTempFile("parallel_csv_reader", ".csv");
+        Files.write(file.toPath(), CONTENT.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @After
+    public void tearDown()
+    {
+        executor.shutdownNow();
+        file.delete();
+    }
+
+    @Test
+    public void readInFileOrder() throws IOException
+    {
+        List<List<String>> expected = readAll(newTokenizer(new ByteArrayInputStream(CONTENT.getBytes(StandardCharsets.UTF_8))));
+        Assert.assertEquals(6, expected.size());
+        // Small chunks make every record, including the multi-line quoted ones, a candidate to be cut
+        for (long chunkSize = 1; chunkSize <= file.length(); chunkSize++) {
+            try (ParallelCsvReader reader = newReader(chunkSize)) {
+                Assert.assertEquals("chunk size " + chunkSize, expected, readAll(reader));
+            }
+        }
+    }
+
+    @Test
+    public void lineNumber() throws IOException
+    {
+        CsvByteTokenizer tokenizer = newTokenizer(new ByteArrayInputStream(CONTENT.getBytes(StandardCharsets.UTF_8)));
+        readAll(tokenizer);
+        try (ParallelCsvReader reader = newReader(8)) {
+            readAll(reader);
+            Assert.assertEquals(tokenizer.getCurrentLineNumber(), reader.getCurrentLineNumber());
+        }
+    }
+
+    private ParallelCsvReader newReader(long chunkSize) throws IOException
+    {
+        return new ParallelCsvReader(FileChannel.open(file.toPath(), StandardOpenOption.READ), executor, chunkSize, 3, ',', '"', '\\', false, new Function<InputStream, CsvByteTokenizer>()
+        {
+            @Override
+            public CsvByteTokenizer apply(InputStream input)
+            {
+                return newTokenizer(input);
+            }
+        });
+    }
+
+    private static CsvByteTokenizer newTokenizer(InputStream input)
+    {
+        return new CsvByteTokenizer(input, StandardCharsets.UTF_8, ',', '"', '\\', "\n", false, 128, null, null, 16);
+    }
+
+    private static List<List<String>> readAll(CsvColumnReader reader)
+    {
+        List<List<String>> records = new ArrayList<>();
+        while (reader.nextRecord()) {
+            List<String> record = new ArrayList<>();
+            while (reader.hasNextColumn()) {
+                record.add(records.isEmpty() ? reader.nextColumn() : reader.nextColumnOrNull());
+            }
+            records.add(record);
+        }
+        return records;
+    }
+}
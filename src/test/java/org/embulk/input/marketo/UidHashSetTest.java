@@ -0,0 +1,50 @@
+package org.embulk.input.marketo;
+
+import org.embulk.config.ConfigException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UidHashSetTest
+{
+    @Test
+    public void addAndContains()
+    {
+        UidHashSet uidHashSet = new UidHashSet();
+        for (int i = 0; i < 1000; i++) {
+            uidHashSet.add("uid" + i);
+        }
+        uidHashSet.add("uid1");
+        uidHashSet.add(null);
+        assertEquals(1001, uidHashSet.size());
+        assertTrue(uidHashSet.contains("uid999"));
+        assertTrue(uidHashSet.contains(null));
+        assertFalse(uidHashSet.contains("uid1000"));
+        uidHashSet.clear();
+        assertTrue(uidHashSet.isEmpty());
+        assertFalse(uidHashSet.contains("uid1"));
+    }
+
+    @Test
+    public void encodeAndDecode()
+    {
+        UidHashSet uidHashSet = new UidHashSet();
+        uidHashSet.add("558681");
+        uidHashSet.add("558682");
+        UidHashSet decoded = UidHashSet.decode(uidHashSet.encode());
+        assertEquals(2, decoded.size());
+        assertTrue(decoded.contains("558681"));
+        assertTrue(decoded.contains("558682"));
+        assertEquals(uidHashSet.encode(), decoded.encode());
+        assertTrue(UidHashSet.decode(null).isEmpty());
+        assertTrue(UidHashSet.decode(new UidHashSet().encode()).isEmpty());
+    }
+
+    @Test(expected = ConfigException.class)
+    public void decodeInvalid()
+    {
+        UidHashSet.decode("AAAA");
+    }
+}
@@ -8,9 +8,12 @@ import org.embulk.base.restclient.record.ValueLocator;
 import org.embulk.config.ConfigLoader;
 import org.embulk.config.ConfigSource;
 import org.embulk.config.TaskReport;
+import org.embulk.input.marketo.BulkExtractContentAnswer;
 import org.embulk.input.marketo.MarketoUtils;
+import org.embulk.input.marketo.UidHashSet;
 import org.embulk.input.marketo.model.BulkExtractRangeHeader;
 import org.embulk.input.marketo.model.MarketoField;
+import org.embulk.input.marketo.rest.MarketoFileChannelResponseEntityReader;
 import org.embulk.input.marketo.rest.MarketoRestClient;
 import org.embulk.spi.Column;
 import org.embulk.spi.PageBuilder;
@@ -23,9 +26,9 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.util.Date;
 import java.util.List;
-import java.util.Set;
 
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
@@ -69,9 +72,10 @@ public class LeadBulkExtractInputPluginTest
         List<String> fieldNameFromMarketoFields = MarketoUtils.getFieldNameFromMarketoFields(marketoFields);
         Mockito.when(mockMarketoRestclient.describeLead()).thenReturn(marketoFields);
         Mockito.when(mockMarketoRestclient.createLeadBulkExtract(any(Date.class), any(Date.class), any(List.class), any(String.class))).thenReturn(exportId1).thenReturn(exportId2).thenReturn(null);
-        Mockito.when(mockMarketoRestclient.getLeadBulkExtractResult(eq(exportId1), any(BulkExtractRangeHeader.class))).thenReturn(this.getClass().getResourceAsStream("/fixtures/lead_extract1.csv"));
-        Mockito.when(mockMarketoRestclient.getLeadBulkExtractResult(eq(exportId2), any(BulkExtractRangeHeader.class))).thenReturn(this.getClass().getResourceAsStream("/fixtures/leads_extract2.csv"));
+        Mockito.when(mockMarketoRestclient.downloadLeadBulkExtract(eq(exportId1), any(BulkExtractRangeHeader.class), any(FileChannel.class), any(MarketoFileChannelResponseEntityReader.ContentListener.class))).thenAnswer(new BulkExtractContentAnswer(this.getClass().getResourceAsStream("/fixtures/lead_extract1.csv")));
+        Mockito.when(mockMarketoRestclient.downloadLeadBulkExtract(eq(exportId2), any(BulkExtractRangeHeader.class), any(FileChannel.class), any(MarketoFileChannelResponseEntityReader.ContentListener.class))).thenAnswer(new BulkExtractContentAnswer(this.getClass().getResourceAsStream("/fixtures/leads_extract2.csv")));
         ServiceResponseMapper<? extends ValueLocator> mapper = bulkExtractInputPlugin.buildServiceResponseMapper(task);
+        Mockito.when(pageBuilder.getSchema()).thenReturn(mapper.getEmbulkSchema());
         bulkExtractInputPlugin.validateInputTask(task);
         TaskReport taskReport = bulkExtractInputPlugin.ingestServiceData(task, mapper.createRecordImporter(), 1, pageBuilder);
         ArgumentCaptor<Long> argumentCaptor = ArgumentCaptor.forClass(Long.class);
@@ -88,7 +92,7 @@ public class LeadBulkExtractInputPluginTest
         List<Long> leadIds = argumentCaptor.getAllValues();
         Assert.assertEquals(19, leadIds.size());
         long latestFetchTime = taskReport.get(Long.class, "latest_fetch_time");
-        Assert.assertTrue(taskReport.get(Set.class, "latest_uids").isEmpty());
+        Assert.assertTrue(UidHashSet.decode(taskReport.get(String.class, "latest_uid_hashes")).isEmpty());
         Assert.assertEquals(1504888753000L, latestFetchTime);
         Assert.assertArrayEquals(new Long[]{102488L, 102456L, 102445L, 102439L, 102471L, 102503L, 102424L, 102473L, 102505L, 102492L, 102495L, 102452L, 102435L, 102467L, 102420L, 102496L, 102448L, 102499L, 102431L}, leadIds.toArray());
     }
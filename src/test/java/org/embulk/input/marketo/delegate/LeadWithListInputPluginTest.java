@@ -8,8 +8,10 @@ import org.embulk.EmbulkTestRuntime;
 import org.embulk.base.restclient.ServiceResponseMapper;
 import org.embulk.base.restclient.record.RecordImporter;
 import org.embulk.base.restclient.record.ValueLocator;
+import org.embulk.config.ConfigDiff;
 import org.embulk.config.ConfigLoader;
 import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
 import org.embulk.input.marketo.MarketoUtils;
 import org.embulk.input.marketo.model.MarketoField;
 import org.embulk.input.marketo.rest.MarketoRestClient;
@@ -24,9 +26,13 @@ import org.mockito.Mockito;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 
@@ -98,4 +104,77 @@ public class LeadWithListInputPluginTest
         long actualValue = allValues.get(0);
         assertEquals(103280L, actualValue);
     }
+
+    @Test
+    public void testSplitAcrossTasks() throws IOException
+    {
+        RecordPagingIterable<ObjectNode> mockLeadRecordPagingIterable = Mockito.mock(RecordPagingIterable.class);
+        RecordPagingIterable<ObjectNode> mockLeadEmptyRecordPagingIterable = Mockito.mock(RecordPagingIterable.class);
+        RecordPagingIterable<ObjectNode> mocklistRecords = Mockito.mock(RecordPagingIterable.class);
+
+        Mockito.when(mockLeadEmptyRecordPagingIterable.iterator()).thenReturn(new ArrayList<ObjectNode>().iterator());
+        JavaType objectNodeListType = OBJECT_MAPPER.getTypeFactory().constructParametrizedType(List.class, List.class, ObjectNode.class);
+        JavaType marketoFieldsType = OBJECT_MAPPER.getTypeFactory().constructParametrizedType(List.class, List.class, MarketoField.class);
+        List<ObjectNode> leads = OBJECT_MAPPER.readValue(this.getClass().getResourceAsStream("/fixtures/lead_response_full.json"), objectNodeListType);
+        List<ObjectNode> lists = OBJECT_MAPPER.readValue(this.getClass().getResourceAsStream("/fixtures/list_reponse_full.json"), objectNodeListType);
+        Mockito.when(mocklistRecords.iterator()).thenReturn(lists.iterator());
+        List<MarketoField> marketoFields = OBJECT_MAPPER.readValue(this.getClass().getResourceAsStream("/fixtures/lead_describe_marketo_fields_full.json"), marketoFieldsType);
+        Mockito.when(mockLeadRecordPagingIterable.iterator()).thenReturn(leads.iterator());
+        Mockito.when(mockMarketoRestClient.describeLead()).thenReturn(marketoFields);
+        Mockito.when(mockMarketoRestClient.getLists()).thenReturn(mocklistRecords);
+        String fieldNameString = StringUtils.join(MarketoUtils.getFieldNameFromMarketoFields(marketoFields), ",");
+        Mockito.when(mockMarketoRestClient.getLeadsByList(Mockito.anyString(), eq(fieldNameString))).thenReturn(mockLeadEmptyRecordPagingIterable);
+        Mockito.when(mockMarketoRestClient.getLeadsByList("1009", fieldNameString)).thenReturn(mockLeadRecordPagingIterable);
+
+        Map<String, Long> listLeadCounts = new HashMap<>();
+        listLeadCounts.put("1009", 300L);
+        listLeadCounts.put("1007", 2L);
+        configSource.set("max_task_count", 3);
+        configSource.set("list_lead_counts", listLeadCounts);
+        LeadWithListInputPlugin.PluginTask task = configSource.loadConfig(LeadWithListInputPlugin.PluginTask.class);
+        ServiceResponseMapper<? extends ValueLocator> mapper = leadWithListInputPlugin.buildServiceResponseMapper(task);
+
+        // Lists are listed once at transaction time, the largest one goes first to the first task
+        assertEquals(3, leadWithListInputPlugin.buildServiceDataSplitter(task).numberToSplitWithHintingInTask(task));
+        assertEquals(3, task.getTaskGroupIds().size());
+        assertEquals("1009", task.getTaskGroupIds().get(0).get(0));
+
+        RecordImporter recordImporter = mapper.createRecordImporter();
+        PageBuilder mockPageBuilder = Mockito.mock(PageBuilder.class);
+        List<TaskReport> taskReports = new ArrayList<>();
+        for (int taskIndex = 0; taskIndex < 3; taskIndex++) {
+            taskReports.add(leadWithListInputPlugin.ingestServiceData(task, recordImporter, taskIndex, mockPageBuilder));
+        }
+        Mockito.verify(mockMarketoRestClient, Mockito.times(1)).getLists();
+        Mockito.verify(mockMarketoRestClient, Mockito.times(24)).getLeadsByList(Mockito.anyString(), eq(fieldNameString));
+        Schema embulkSchema = mapper.getEmbulkSchema();
+        Mockito.verify(mockPageBuilder, Mockito.times(300)).setString(eq(embulkSchema.lookupColumn("mk_listId")), eq("1009"));
+
+        ConfigDiff configDiff = leadWithListInputPlugin.buildConfigDiff(task, embulkSchema, 3, taskReports);
+        assertEquals(24, configDiff.getNested("list_lead_counts").getAttributeNames().size());
+        assertEquals(Long.valueOf(0), configDiff.getNested("list_lead_counts").get(Long.class, "1007"));
+    }
+
+    @Test
+    public void partitionGroups()
+    {
+        Map<String, Long> groupLeadCounts = new HashMap<>();
+        groupLeadCounts.put("a", 10L);
+        groupLeadCounts.put("b", 6L);
+        groupLeadCounts.put("c", 5L);
+        groupLeadCounts.put("d", 1L);
+        List<List<String>> partitions = MarketoBaseLeadGroupInputPlugin.partitionGroups(Arrays.asList("d", "c", "b", "a"), groupLeadCounts, 2);
+        assertEquals(Arrays.asList(Arrays.asList("a", "d"), Arrays.asList("b", "c")), partitions);
+
+        // e weights the average count of the known groups
+        partitions = MarketoBaseLeadGroupInputPlugin.partitionGroups(Arrays.asList("a", "b", "c", "d", "e"), groupLeadCounts, 2);
+        assertEquals(Arrays.asList(Arrays.asList("a", "e"), Arrays.asList("b", "c", "d")), partitions);
+
+        partitions = MarketoBaseLeadGroupInputPlugin.partitionGroups(Arrays.asList("d", "a"), groupLeadCounts, 5);
+        assertEquals(Arrays.asList(Arrays.asList("a"), Arrays.asList("d")), partitions);
+
+        partitions = MarketoBaseLeadGroupInputPlugin.partitionGroups(Arrays.asList("x", "d", "a"), groupLeadCounts, 1);
+        assertEquals(Arrays.asList(Arrays.asList("x", "a", "d")), partitions);
+        assertTrue(MarketoBaseLeadGroupInputPlugin.partitionGroups(new ArrayList<String>(), groupLeadCounts, 3).isEmpty());
+    }
 }
@@ -73,7 +73,7 @@ public class LeadWithProgramInputPluginTest
         List<MarketoField> marketoFields = OBJECT_MAPPER.readValue(this.getClass().getResourceAsStream("/fixtures/lead_describe_marketo_fields_full.json"), marketoFieldsType);
         Mockito.when(mockLeadRecordPagingIterable.iterator()).thenReturn(leads.iterator());
         Mockito.when(mockMarketoRestClient.describeLead()).thenReturn(marketoFields);
-        Mockito.when(mockMarketoRestClient.getPrograms()).thenReturn(mockProgramRecords);
+        Mockito.when(mockMarketoRestClient.getPrograms(1)).thenReturn(mockProgramRecords);
         List<String> fieldNameFromMarketoFields = MarketoUtils.getFieldNameFromMarketoFields(marketoFields);
         String fieldNameString = StringUtils.join(fieldNameFromMarketoFields, ",");
         Mockito.when(mockMarketoRestClient.getLeadsByProgram(anyString(), eq(fieldNameString))).thenReturn(mockLeadEmptyRecordPagingIterable);
@@ -86,7 +86,7 @@ public class LeadWithProgramInputPluginTest
         PageBuilder mockPageBuilder = Mockito.mock(PageBuilder.class);
 
         leadWithProgramInputPlugin.ingestServiceData(task, recordImporter, 1, mockPageBuilder);
-        Mockito.verify(mockMarketoRestClient, Mockito.times(1)).getPrograms();
+        Mockito.verify(mockMarketoRestClient, Mockito.times(1)).getPrograms(1);
         Mockito.verify(mockMarketoRestClient, Mockito.times(3)).getLeadsByProgram(anyString(), eq(fieldNameString));
         Mockito.verify(mockMarketoRestClient, Mockito.times(1)).describeLead();
 
@@ -1,13 +1,13 @@
 package org.embulk.input.marketo.delegate;
 
 import com.google.common.base.Optional;
-import com.google.common.collect.Sets;
 import org.embulk.EmbulkTestRuntime;
 import org.embulk.config.ConfigDiff;
 import org.embulk.config.ConfigException;
 import org.embulk.config.TaskReport;
 import org.embulk.input.marketo.MarketoInputPluginDelegate;
 import org.embulk.input.marketo.MarketoUtils;
+import org.embulk.input.marketo.UidHashSet;
 import org.embulk.spi.Schema;
 import org.joda.time.DateTime;
 import org.junit.Before;
@@ -20,9 +20,12 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -58,6 +61,7 @@ public class MarketoBaseBulkExtractInputPluginTest
         Mockito.when(pluginTask.getFromDate()).thenReturn(fromDate);
         Mockito.when(pluginTask.getJobStartTime()).thenReturn(jobStartTime);
         Mockito.when(pluginTask.getFetchDays()).thenReturn(7);
+        Mockito.when(pluginTask.getMaxConcurrentExportJobs()).thenReturn(1);
         baseBulkExtractInputPlugin.validateInputTask(pluginTask);
         ArgumentCaptor<Optional<Date>> argumentCaptor = ArgumentCaptor.forClass(Optional.class);
         Mockito.verify(pluginTask, Mockito.times(1)).setToDate(argumentCaptor.capture());
@@ -82,6 +86,16 @@ public class MarketoBaseBulkExtractInputPluginTest
         fail();
     }
 
+    @Test(expected = ConfigException.class)
+    public void validateInputTaskMaxConcurrentExportJobs()
+    {
+        MarketoBaseBulkExtractInputPlugin.PluginTask pluginTask = Mockito.mock(MarketoBaseBulkExtractInputPlugin.PluginTask.class);
+        Mockito.when(pluginTask.getFromDate()).thenReturn(new Date(1504224000000L));
+        Mockito.when(pluginTask.getJobStartTime()).thenReturn(new DateTime(1506842144000L));
+        Mockito.when(pluginTask.getMaxConcurrentExportJobs()).thenReturn(11);
+        baseBulkExtractInputPlugin.validateInputTask(pluginTask);
+    }
+
     @Test()
     public void validateInputTaskToDateMoreThanJobStartTime()
     {
@@ -90,6 +104,7 @@ public class MarketoBaseBulkExtractInputPluginTest
         MarketoBaseBulkExtractInputPlugin.PluginTask pluginTask = Mockito.mock(MarketoBaseBulkExtractInputPlugin.PluginTask.class);
         Mockito.when(pluginTask.getFromDate()).thenReturn(fromDate);
         Mockito.when(pluginTask.getFetchDays()).thenReturn(7);
+        Mockito.when(pluginTask.getMaxConcurrentExportJobs()).thenReturn(1);
         Mockito.when(pluginTask.getJobStartTime()).thenReturn(jobStartTime);
         baseBulkExtractInputPlugin.validateInputTask(pluginTask);
         ArgumentCaptor<Optional<Date>> toDateArgumentCaptor = ArgumentCaptor.forClass(Optional.class);
@@ -115,8 +130,8 @@ public class MarketoBaseBulkExtractInputPluginTest
     {
         TaskReport taskReport1 = Mockito.mock(TaskReport.class);
         TaskReport taskReport2 = Mockito.mock(TaskReport.class);
-        Mockito.when(taskReport1.get(Set.class, "latest_uids")).thenReturn(Sets.newHashSet("id1", "id2"));
-        Mockito.when(taskReport2.get(Set.class, "latest_uids")).thenReturn(Sets.newHashSet("id3", "id4"));
+        Mockito.when(taskReport1.get(String.class, "latest_uid_hashes")).thenReturn(uidHashes("id1", "id2"));
+        Mockito.when(taskReport2.get(String.class, "latest_uid_hashes")).thenReturn(uidHashes("id3", "id4"));
         Mockito.when(taskReport1.get(Long.class, "latest_fetch_time")).thenReturn(1507539328000L);
         Mockito.when(taskReport2.get(Long.class, "latest_fetch_time")).thenReturn(1507625728000L);
         MarketoInputPluginDelegate.PluginTask task = Mockito.mock(MarketoInputPluginDelegate.PluginTask.class);
@@ -127,8 +142,48 @@ public class MarketoBaseBulkExtractInputPluginTest
         ConfigDiff configDiff = baseBulkExtractInputPlugin.buildConfigDiff(task, Mockito.mock(Schema.class), 1, Arrays.asList(taskReport1, taskReport2));
         long latestFetchTime = configDiff.get(Long.class, "latest_fetch_time");
         assertEquals(1507625728000L, latestFetchTime);
-        assertEquals(Sets.newHashSet("id3", "id4"), configDiff.get(Set.class, "latest_uids"));
+        UidHashSet latestUids = UidHashSet.decode(configDiff.get(String.class, "latest_uid_hashes"));
+        assertEquals(2, latestUids.size());
+        assertTrue(latestUids.contains("id3"));
+        assertTrue(latestUids.contains("id4"));
+        assertFalse(latestUids.contains("id1"));
+        assertTrue(configDiff.get(Set.class, "latest_uids").isEmpty());
         DateFormat df = new SimpleDateFormat(MarketoUtils.MARKETO_DATE_SIMPLE_DATE_FORMAT);
         assertEquals(df.format(toDate), configDiff.get(String.class, "from_date"));
     }
+
+    private static String uidHashes(String... uids)
+    {
+        UidHashSet uidHashSet = new UidHashSet();
+        for (String uid : uids) {
+            uidHashSet.add(uid);
+        }
+        return uidHashSet.encode();
+    }
+
+    @Test
+    public void getTaskDateRanges() throws Exception
+    {
+        DateTime fromDate = new DateTime(1504224000000L);
+        DateTime toDate = fromDate.plusDays(90);
+        MarketoBaseBulkExtractInputPlugin.PluginTask pluginTask = Mockito.mock(MarketoBaseBulkExtractInputPlugin.PluginTask.class);
+        Mockito.when(pluginTask.getFromDate()).thenReturn(fromDate.toDate());
+        Mockito.when(pluginTask.getToDate()).thenReturn(Optional.of(toDate.toDate()));
+        Mockito.when(pluginTask.getMaxTaskCount()).thenReturn(1);
+        assertEquals(1, baseBulkExtractInputPlugin.buildServiceDataSplitter(pluginTask).numberToSplitWithHintingInTask(pluginTask));
+        assertEquals(3, baseBulkExtractInputPlugin.getTaskDateRanges(pluginTask, 0).size());
+
+        Mockito.when(pluginTask.getMaxTaskCount()).thenReturn(2);
+        assertEquals(2, baseBulkExtractInputPlugin.buildServiceDataSplitter(pluginTask).numberToSplitWithHintingInTask(pluginTask));
+        List<MarketoUtils.DateRange> task1Ranges = baseBulkExtractInputPlugin.getTaskDateRanges(pluginTask, 0);
+        List<MarketoUtils.DateRange> task2Ranges = baseBulkExtractInputPlugin.getTaskDateRanges(pluginTask, 1);
+        assertEquals(2, task1Ranges.size());
+        assertEquals(1, task2Ranges.size());
+        assertEquals(fromDate, task1Ranges.get(0).fromDate);
+        assertEquals(toDate, task1Ranges.get(1).toDate);
+        assertEquals(fromDate.plusDays(30).plusSeconds(1), task2Ranges.get(0).fromDate);
+
+        Mockito.when(pluginTask.getMaxTaskCount()).thenReturn(10);
+        assertEquals(3, baseBulkExtractInputPlugin.buildServiceDataSplitter(pluginTask).numberToSplitWithHintingInTask(pluginTask));
+    }
 }
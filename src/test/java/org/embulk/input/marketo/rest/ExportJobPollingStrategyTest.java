@@ -0,0 +1,72 @@
+package org.embulk.input.marketo.rest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Optional;
+import org.embulk.EmbulkTestRuntime;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class ExportJobPollingStrategyTest
+{
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @Rule
+    public EmbulkTestRuntime embulkTestRuntime = new EmbulkTestRuntime();
+
+    private ObjectNode status(String status, DateTime startedAt, DateTime finishedAt, long numberOfRecords)
+    {
+        ObjectNode jobStatus = OBJECT_MAPPER.createObjectNode();
+        jobStatus.put("status", status);
+        if (startedAt != null) {
+            jobStatus.put("startedAt", startedAt.withZone(DateTimeZone.UTC).toString());
+        }
+        if (finishedAt != null) {
+            jobStatus.put("finishedAt", finishedAt.withZone(DateTimeZone.UTC).toString());
+        }
+        jobStatus.put("numberOfRecords", numberOfRecords);
+        return jobStatus;
+    }
+
+    @Test
+    public void backOffWithoutEstimate()
+    {
+        ExportJobPollingStrategy pollingStrategy = new ExportJobPollingStrategy(5000, Optional.<Double>absent(), Optional.<Double>absent());
+        ObjectNode queued = status("Queued", null, null, 0);
+        Assert.assertEquals(5000, pollingStrategy.nextPollingIntervalMillis(null, 60000, 0));
+        Assert.assertEquals(10000, pollingStrategy.nextPollingIntervalMillis(queued, 60000, 1));
+        Assert.assertEquals(40000, pollingStrategy.nextPollingIntervalMillis(queued, 60000, 3));
+        Assert.assertEquals(60000, pollingStrategy.nextPollingIntervalMillis(queued, 60000, 10));
+        // Minimum can't be larger than the maximum
+        Assert.assertEquals(1000, pollingStrategy.nextPollingIntervalMillis(queued, 1000, 0));
+    }
+
+    @Test
+    public void pollNearEstimatedCompletion()
+    {
+        ExportJobPollingStrategy pollingStrategy = new ExportJobPollingStrategy(5000, Optional.of(100.0), Optional.<Double>absent());
+        // 4000 records at 100 records/s, processing started 10 seconds ago: 30 seconds remaining
+        ObjectNode processing = status("Processing", DateTime.now().minusSeconds(10), null, 4000);
+        long interval = pollingStrategy.nextPollingIntervalMillis(processing, 60000, 1);
+        Assert.assertTrue(interval > 20000 && interval <= 25000);
+        // Estimated completion is reached, poll densely
+        ObjectNode almostDone = status("Processing", DateTime.now().minusSeconds(40), null, 4000);
+        Assert.assertEquals(5000, pollingStrategy.nextPollingIntervalMillis(almostDone, 60000, 5));
+    }
+
+    @Test
+    public void learnFromCompletedJob()
+    {
+        ExportJobPollingStrategy pollingStrategy = new ExportJobPollingStrategy(5000, Optional.<Double>absent(), Optional.<Double>absent());
+        DateTime startedAt = new DateTime(1507369760000L);
+        pollingStrategy.recordCompletedJob(status("Completed", startedAt, startedAt.plusSeconds(40), 2000));
+        Assert.assertEquals(50.0, pollingStrategy.getRecordsPerSecond().get(), 0.001);
+        Assert.assertEquals(40.0, pollingStrategy.getProcessingSeconds().get(), 0.001);
+        pollingStrategy.recordCompletedJob(status("Completed", startedAt, startedAt.plusSeconds(20), 3000));
+        Assert.assertEquals(100.0, pollingStrategy.getRecordsPerSecond().get(), 0.001);
+        Assert.assertEquals(30.0, pollingStrategy.getProcessingSeconds().get(), 0.001);
+    }
+}
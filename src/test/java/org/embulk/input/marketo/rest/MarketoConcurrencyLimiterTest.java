@@ -0,0 +1,128 @@
+package org.embulk.input.marketo.rest;
+
+import com.google.common.base.Ticker;
+import org.embulk.EmbulkTestRuntime;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class MarketoConcurrencyLimiterTest
+{
+    private static final long LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private FakeTicker ticker;
+
+    private MarketoConcurrencyLimiter concurrencyLimiter;
+
+    @Before
+    public void prepare()
+    {
+        ticker = new FakeTicker();
+        concurrencyLimiter = new MarketoConcurrencyLimiter(10, ticker);
+    }
+
+    @Test
+    public void testAcquireBlockAtLimit() throws Exception
+    {
+        concurrencyLimiter = new MarketoConcurrencyLimiter(2, ticker);
+        concurrencyLimiter.acquire();
+        concurrencyLimiter.acquire();
+        Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                concurrencyLimiter.acquire();
+            }
+        });
+        thread.start();
+        thread.join(200);
+        Assert.assertTrue(thread.isAlive());
+        concurrencyLimiter.release();
+        thread.join(10000);
+        Assert.assertFalse(thread.isAlive());
+    }
+
+    @Test
+    public void testDecreaseOncePerInterval()
+    {
+        Assert.assertEquals(10, concurrencyLimiter.getLimit());
+        concurrencyLimiter.onOverload();
+        Assert.assertEquals(5, concurrencyLimiter.getLimit());
+        // Other calls of the same window are rejected too
+        concurrencyLimiter.onOverload();
+        Assert.assertEquals(5, concurrencyLimiter.getLimit());
+        for (int i = 0; i < 5; i++) {
+            ticker.advance(TimeUnit.SECONDS.toNanos(1));
+            concurrencyLimiter.onOverload();
+        }
+        Assert.assertEquals(1, concurrencyLimiter.getLimit());
+    }
+
+    @Test
+    public void testIncreaseWhileLatencyHealthy()
+    {
+        concurrencyLimiter.onOverload();
+        Assert.assertEquals(5, concurrencyLimiter.getLimit());
+        // A slow call doesn't grow the limit
+        callAndRelease(LATENCY_NANOS);
+        callAndRelease(LATENCY_NANOS * 3);
+        Assert.assertEquals(5, concurrencyLimiter.getLimit());
+        // About one more call per window of healthy calls
+        for (int i = 0; i < 5; i++) {
+            callAndRelease(LATENCY_NANOS);
+        }
+        Assert.assertEquals(6, concurrencyLimiter.getLimit());
+        for (int i = 0; i < 1000; i++) {
+            callAndRelease(LATENCY_NANOS);
+        }
+        Assert.assertEquals(10, concurrencyLimiter.getLimit());
+    }
+
+    @Test
+    public void testReleaseWithoutLatency()
+    {
+        concurrencyLimiter.onOverload();
+        for (int i = 0; i < 100; i++) {
+            concurrencyLimiter.acquire();
+            concurrencyLimiter.release();
+        }
+        Assert.assertEquals(5, concurrencyLimiter.getLimit());
+    }
+
+    @Test
+    public void testSharedByInstance()
+    {
+        Assert.assertSame(MarketoConcurrencyLimiter.forInstance("instance1", 10), MarketoConcurrencyLimiter.forInstance("instance1", 10));
+        Assert.assertNotSame(MarketoConcurrencyLimiter.forInstance("instance1", 10), MarketoConcurrencyLimiter.forInstance("instance2", 10));
+    }
+
+    private void callAndRelease(long latencyNanos)
+    {
+        concurrencyLimiter.acquire();
+        concurrencyLimiter.release();
+        concurrencyLimiter.onSuccess(latencyNanos);
+    }
+
+    private static class FakeTicker extends Ticker
+    {
+        private long nanos = 0;
+
+        @Override
+        public long read()
+        {
+            return nanos;
+        }
+
+        private void advance(long nanos)
+        {
+            this.nanos += nanos;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.embulk.input.marketo.rest;
+
+import com.google.common.base.Ticker;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class MarketoRateLimiterTest
+{
+    private static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(20);
+
+    private FakeTicker ticker;
+
+    private MarketoRateLimiter rateLimiter;
+
+    @Before
+    public void prepare()
+    {
+        ticker = new FakeTicker();
+        rateLimiter = new MarketoRateLimiter(100, 20000, ticker);
+    }
+
+    @Test
+    public void testBurstThenPaced()
+    {
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(0, rateLimiter.reserve());
+        }
+        // 90 tokens per 20 seconds are refilled after the burst
+        Assert.assertEquals(INTERVAL_NANOS / 90, rateLimiter.reserve(), 1);
+        Assert.assertEquals(2 * INTERVAL_NANOS / 90, rateLimiter.reserve(), 1);
+        ticker.advance(INTERVAL_NANOS);
+        // The bucket doesn't hold more than the burst however long it was idle
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(0, rateLimiter.reserve());
+        }
+        Assert.assertTrue(rateLimiter.reserve() > 0);
+    }
+
+    @Test
+    public void testNeverExceedLimitInAnInterval()
+    {
+        List<Long> callTimes = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            // Callers arrive every 50ms, faster than the limit
+            ticker.advance(TimeUnit.MILLISECONDS.toNanos(50));
+            callTimes.add(ticker.read() + rateLimiter.reserve());
+        }
+        int first = 0;
+        for (int last = 0; last < callTimes.size(); last++) {
+            while (callTimes.get(last) - callTimes.get(first) >= INTERVAL_NANOS) {
+                first++;
+            }
+            Assert.assertTrue(last - first + 1 <= 100);
+        }
+        // Calls keep going at about the limit
+        long elapsed = callTimes.get(callTimes.size() - 1) - callTimes.get(0);
+        Assert.assertTrue(elapsed > 10 * INTERVAL_NANOS && elapsed < 12 * INTERVAL_NANOS);
+    }
+
+    @Test
+    public void testSharedByInstance()
+    {
+        Assert.assertSame(MarketoRateLimiter.forInstance("instance1", 100, 20000), MarketoRateLimiter.forInstance("instance1", 100, 20000));
+        Assert.assertNotSame(MarketoRateLimiter.forInstance("instance1", 100, 20000), MarketoRateLimiter.forInstance("instance2", 100, 20000));
+    }
+
+    private static class FakeTicker extends Ticker
+    {
+        private long nanos = 0;
+
+        @Override
+        public long read()
+        {
+            return nanos;
+        }
+
+        private void advance(long nanos)
+        {
+            this.nanos += nanos;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.embulk.input.marketo.rest;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.embulk.input.marketo.model.MarketoResponse;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+public class MarketoResponseJetty92EntityReaderTest
+{
+    @Test
+    public void readMarketoResponse() throws IOException
+    {
+        String content = "{\"requestId\":\"2\",\"result\":[{\"id\":103280,\"email\":\"JohnDoe_10093@tdtest.combo\",\"tags\":[1,2]},{\"id\":103281,\"email\":null}]," +
+                "\"warnings\":[{\"code\":\"1003\"}],\"success\":true,\"nextPageToken\":\"z4MgsIiC5C======\",\"moreResult\":true}";
+        MarketoResponse<ObjectNode> marketoResponse = new MarketoResponseJetty92EntityReader<>(10, ObjectNode.class).readMarketoResponse(toStream(content));
+        Assert.assertEquals("2", marketoResponse.getRequestId());
+        Assert.assertTrue(marketoResponse.isSuccess());
+        Assert.assertTrue(marketoResponse.isMoreResult());
+        Assert.assertEquals("z4MgsIiC5C======", marketoResponse.getNextPageToken());
+        Assert.assertEquals(2, marketoResponse.getResult().size());
+        Assert.assertEquals(103280L, marketoResponse.getResult().get(0).get("id").asLong());
+        Assert.assertEquals(2, marketoResponse.getResult().get(0).get("tags").size());
+        Assert.assertTrue(marketoResponse.getResult().get(1).get("email").isNull());
+    }
+
+    @Test
+    public void readErrorResponse() throws IOException
+    {
+        String content = "{\"requestId\":\"e42b#14272d07d78\",\"success\":false,\"errors\":[{\"code\":\"601\",\"message\":\"Unauthorized\"}]}";
+        MarketoResponse<ObjectNode> marketoResponse = new MarketoResponseJetty92EntityReader<ObjectNode>(10).readMarketoResponse(toStream(content));
+        Assert.assertFalse(marketoResponse.isSuccess());
+        Assert.assertEquals(1, marketoResponse.getErrors().size());
+        Assert.assertEquals("601", marketoResponse.getErrors().get(0).getCode());
+        Assert.assertTrue(marketoResponse.getResult().isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void readTruncatedResponse() throws IOException
+    {
+        new MarketoResponseJetty92EntityReader<>(10, ObjectNode.class).readMarketoResponse(toStream("{\"requestId\":\"2\",\"result\":[{\"id\":103280}"));
+    }
+
+    private static InputStream toStream(String content)
+    {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
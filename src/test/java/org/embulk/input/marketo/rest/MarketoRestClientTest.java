@@ -15,6 +15,8 @@ import org.eclipse.jetty.client.util.FormContentProvider;
 import org.embulk.EmbulkTestRuntime;
 import org.embulk.config.ConfigSource;
 import org.embulk.input.marketo.MarketoUtils;
+import org.embulk.input.marketo.model.ActivityExtractFilter;
+import org.embulk.input.marketo.model.BulkExtractRangeHeader;
 import org.embulk.input.marketo.model.MarketoError;
 import org.embulk.input.marketo.model.MarketoField;
 import org.embulk.input.marketo.model.MarketoResponse;
@@ -31,8 +33,10 @@ import org.mockito.Mockito;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -151,12 +155,16 @@ public class MarketoRestClientTest
         marketoResponse.setResult(Arrays.asList(bulkExtractResult));
         ArgumentCaptor<String> argumentCaptor = ArgumentCaptor.forClass(String.class);
         Mockito.doReturn(marketoResponse).when(marketoRestClient).doPost(Mockito.eq(END_POINT + MarketoRESTEndpoint.CREATE_ACTIVITY_EXTRACT.getEndpoint()), Mockito.isNull(Map.class), Mockito.isNull(ImmutableListMultimap.class), argumentCaptor.capture(), Mockito.any(MarketoResponseJetty92EntityReader.class));
-        String bulkExtractId = marketoRestClient.createActivityExtract(startDate, endDate);
+        ActivityExtractFilter activityExtractFilter = new ActivityExtractFilter(Arrays.asList(1, 6), Collections.<Integer>emptyList(), Arrays.asList("Email Program"));
+        String bulkExtractId = marketoRestClient.createActivityExtract(startDate, endDate, activityExtractFilter);
         Assert.assertEquals("bulkExtractId", bulkExtractId);
         String postContent = argumentCaptor.getValue();
         ObjectNode marketoBulkExtractRequest = (ObjectNode) OBJECT_MAPPER.readTree(postContent);
         ObjectNode filter = (ObjectNode) marketoBulkExtractRequest.get("filter");
         Assert.assertTrue(filter.has("createdAt"));
+        Assert.assertEquals("[1,6]", filter.get("activityTypeIds").toString());
+        Assert.assertEquals("[\"Email Program\"]", filter.get("primaryAttributeValues").toString());
+        Assert.assertFalse(filter.has("primaryAttributeValueIds"));
     }
 
     @Test
@@ -224,6 +232,27 @@ public class MarketoRestClientTest
         Mockito.verify(marketoRestClient, Mockito.times(3)).doGet(Mockito.eq(END_POINT + MarketoRESTEndpoint.GET_LEAD_EXPORT_STATUS.getEndpoint(pathParams)), Mockito.isNull(Map.class), Mockito.isNull(ImmutableListMultimap.class), Mockito.any(MarketoResponseJetty92EntityReader.class));
     }
 
+    @Test
+    public void waitLeadExportJobUnsuccessfulStatus() throws Exception
+    {
+        String bulkExportId = "bulkExportId";
+        Map<String, String> pathParams = new HashMap<>();
+        pathParams.put("export_id", bulkExportId);
+        MarketoResponse<ObjectNode> marketoResponse = Mockito.mock(MarketoResponse.class);
+        Mockito.when(marketoResponse.isSuccess()).thenReturn(false).thenReturn(true);
+        MarketoError marketoError = new MarketoError();
+        marketoError.setCode("611");
+        marketoError.setMessage("System error");
+        Mockito.when(marketoResponse.getErrors()).thenReturn(Arrays.asList(marketoError));
+        ObjectNode result = Mockito.mock(ObjectNode.class);
+        Mockito.when(marketoResponse.getResult()).thenReturn(Arrays.asList(result));
+        Mockito.when(result.get("status")).thenReturn(new TextNode("Completed"));
+        Mockito.doReturn(marketoResponse).when(marketoRestClient).doGet(Mockito.eq(END_POINT + MarketoRESTEndpoint.GET_LEAD_EXPORT_STATUS.getEndpoint(pathParams)), Mockito.isNull(Map.class), Mockito.isNull(ImmutableListMultimap.class), Mockito.any(MarketoResponseJetty92EntityReader.class));
+        // An error answer doesn't fail the job, its status is polled again
+        marketoRestClient.waitLeadExportJobComplete(bulkExportId, 1, 4);
+        Mockito.verify(marketoRestClient, Mockito.times(2)).doGet(Mockito.eq(END_POINT + MarketoRESTEndpoint.GET_LEAD_EXPORT_STATUS.getEndpoint(pathParams)), Mockito.isNull(Map.class), Mockito.isNull(ImmutableListMultimap.class), Mockito.any(MarketoResponseJetty92EntityReader.class));
+    }
+
     @Test
     public void waitLeadExportJobTimeOut() throws Exception
     {
@@ -294,9 +323,23 @@ public class MarketoRestClientTest
         String exportId = "exportId";
         Map<String, String> pathParamMap = new HashMap<>();
         pathParamMap.put("export_id", exportId);
-        Mockito.doReturn(Mockito.mock(InputStream.class)).when(marketoRestClient).doGet(Mockito.eq(END_POINT + MarketoRESTEndpoint.GET_LEAD_EXPORT_RESULT.getEndpoint(pathParamMap)), Mockito.any(Map.class), Mockito.isNull(ImmutableListMultimap.class), Mockito.any(MarketoInputStreamResponseEntityReader.class));
+        Mockito.doReturn(Mockito.mock(InputStream.class)).when(marketoRestClient).doDownload(Mockito.eq(END_POINT + MarketoRESTEndpoint.GET_LEAD_EXPORT_RESULT.getEndpoint(pathParamMap)), Mockito.any(Map.class), Mockito.any(MarketoInputStreamResponseEntityReader.class));
         marketoRestClient.getLeadBulkExtractResult(exportId, null);
-        Mockito.verify(marketoRestClient, Mockito.times(1)).doGet(Mockito.eq(END_POINT + MarketoRESTEndpoint.GET_LEAD_EXPORT_RESULT.getEndpoint(pathParamMap)), Mockito.any(Map.class), Mockito.isNull(ImmutableListMultimap.class), Mockito.any(MarketoInputStreamResponseEntityReader.class));
+        Mockito.verify(marketoRestClient, Mockito.times(1)).doDownload(Mockito.eq(END_POINT + MarketoRESTEndpoint.GET_LEAD_EXPORT_RESULT.getEndpoint(pathParamMap)), Mockito.any(Map.class), Mockito.any(MarketoInputStreamResponseEntityReader.class));
+    }
+
+    @Test
+    public void downloadLeadBulkExtract() throws Exception
+    {
+        String exportId = "exportId";
+        Map<String, String> pathParamMap = new HashMap<>();
+        pathParamMap.put("export_id", exportId);
+        Mockito.doReturn(100L).when(marketoRestClient).doDownload(Mockito.eq(END_POINT + MarketoRESTEndpoint.GET_LEAD_EXPORT_RESULT.getEndpoint(pathParamMap)), Mockito.any(Map.class), Mockito.any(MarketoFileChannelResponseEntityReader.class));
+        long position = marketoRestClient.downloadLeadBulkExtract(exportId, new BulkExtractRangeHeader(10, 99), Mockito.mock(FileChannel.class), Mockito.mock(MarketoFileChannelResponseEntityReader.ContentListener.class));
+        Assert.assertEquals(100L, position);
+        ArgumentCaptor<Map> headersCaptor = ArgumentCaptor.forClass(Map.class);
+        Mockito.verify(marketoRestClient, Mockito.times(1)).doDownload(Mockito.eq(END_POINT + MarketoRESTEndpoint.GET_LEAD_EXPORT_RESULT.getEndpoint(pathParamMap)), headersCaptor.capture(), Mockito.any(MarketoFileChannelResponseEntityReader.class));
+        Assert.assertEquals("bytes=10-99", headersCaptor.getValue().get("Range"));
     }
 
     @Test
@@ -305,9 +348,9 @@ public class MarketoRestClientTest
         String exportId = "exportId";
         Map<String, String> pathParamMap = new HashMap<>();
         pathParamMap.put("export_id", exportId);
-        Mockito.doReturn(Mockito.mock(InputStream.class)).when(marketoRestClient).doGet(Mockito.eq(END_POINT + MarketoRESTEndpoint.GET_ACTIVITY_EXPORT_RESULT.getEndpoint(pathParamMap)), Mockito.any(Map.class), Mockito.isNull(ImmutableListMultimap.class), Mockito.any(MarketoInputStreamResponseEntityReader.class));
+        Mockito.doReturn(Mockito.mock(InputStream.class)).when(marketoRestClient).doDownload(Mockito.eq(END_POINT + MarketoRESTEndpoint.GET_ACTIVITY_EXPORT_RESULT.getEndpoint(pathParamMap)), Mockito.any(Map.class), Mockito.any(MarketoInputStreamResponseEntityReader.class));
         marketoRestClient.getActivitiesBulkExtractResult(exportId, null);
-        Mockito.verify(marketoRestClient, Mockito.times(1)).doGet(Mockito.eq(END_POINT + MarketoRESTEndpoint.GET_ACTIVITY_EXPORT_RESULT.getEndpoint(pathParamMap)), Mockito.any(Map.class), Mockito.isNull(ImmutableListMultimap.class), Mockito.any(MarketoInputStreamResponseEntityReader.class));
+        Mockito.verify(marketoRestClient, Mockito.times(1)).doDownload(Mockito.eq(END_POINT + MarketoRESTEndpoint.GET_ACTIVITY_EXPORT_RESULT.getEndpoint(pathParamMap)), Mockito.any(Map.class), Mockito.any(MarketoInputStreamResponseEntityReader.class));
     }
 
     @Test
@@ -0,0 +1,187 @@
+package org.embulk.input.marketo.rest;
+
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.input.marketo.MarketoUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RecordPagingIterableTest
+{
+    private static final int PAGE_SIZE = 3;
+
+    private static final int RECORD_COUNT = 20;
+
+    @Rule
+    public EmbulkTestRuntime embulkTestRuntime = new EmbulkTestRuntime();
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp()
+    {
+        executor = MarketoUtils.newDaemonThreadPool("test-prefetch-%d", 2);
+    }
+
+    @After
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void iterate()
+    {
+        CountingPagingFunction pagingFunction = new CountingPagingFunction();
+        Assert.assertEquals(expectedRecords(), readAll(new RecordPagingIterable<Integer>(pagingFunction)));
+        Assert.assertEquals(7, pagingFunction.requestedPages.get());
+    }
+
+    @Test
+    public void iteratePrefetch()
+    {
+        for (int prefetchPages = 1; prefetchPages <= 3; prefetchPages++) {
+            CountingPagingFunction pagingFunction = new CountingPagingFunction();
+            Assert.assertEquals(expectedRecords(), readAll(new RecordPagingIterable<Integer>(pagingFunction, executor, prefetchPages)));
+            // No page is requested after the last one
+            Assert.assertEquals(7, pagingFunction.requestedPages.get());
+        }
+    }
+
+    @Test
+    public void iterateIndexedPrefetch()
+    {
+        for (int prefetchPages = 1; prefetchPages <= 3; prefetchPages++) {
+            Assert.assertEquals(expectedRecords(), readAll(new RecordPagingIterable<Integer>(new IndexedCountingPagingFunction(), executor, prefetchPages)));
+        }
+    }
+
+    @Test
+    public void prefetchIsBounded()
+    {
+        CountingPagingFunction pagingFunction = new CountingPagingFunction();
+        Iterator<Integer> iterator = new RecordPagingIterable<Integer>(pagingFunction, executor, 2).iterator();
+        Assert.assertEquals(Integer.valueOf(0), iterator.next());
+        // wait for the prefetched pages, more are not requested until the first page is consumed
+        for (int i = 0; i < 100 && pagingFunction.requestedPages.get() < 3; i++) {
+            sleep();
+        }
+        sleep();
+        Assert.assertEquals(3, pagingFunction.requestedPages.get());
+    }
+
+    @Test
+    public void iteratorsShareExecutor()
+    {
+        // No thread waits for a previous page, a single thread serves the pages of all the iterators
+        ExecutorService singleThread = MarketoUtils.newDaemonThreadPool("test-shared-prefetch-%d", 1);
+        try {
+            List<Iterator<Integer>> iterators = new ArrayList<>();
+            List<List<Integer>> records = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                iterators.add(new RecordPagingIterable<Integer>(new CountingPagingFunction(), singleThread, 3).iterator());
+                records.add(new ArrayList<Integer>());
+            }
+            boolean remaining = true;
+            while (remaining) {
+                remaining = false;
+                for (int i = 0; i < iterators.size(); i++) {
+                    if (iterators.get(i).hasNext()) {
+                        records.get(i).add(iterators.get(i).next());
+                        remaining = true;
+                    }
+                }
+            }
+            for (List<Integer> iteratorRecords : records) {
+                Assert.assertEquals(expectedRecords(), iteratorRecords);
+            }
+        }
+        finally {
+            singleThread.shutdownNow();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void prefetchError()
+    {
+        CountingPagingFunction pagingFunction = new CountingPagingFunction();
+        pagingFunction.failingPage = 2;
+        readAll(new RecordPagingIterable<Integer>(pagingFunction, executor, 2));
+    }
+
+    private static List<Integer> expectedRecords()
+    {
+        List<Integer> records = new ArrayList<>();
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            records.add(i);
+        }
+        return records;
+    }
+
+    private static List<Integer> readAll(Iterable<Integer> iterable)
+    {
+        List<Integer> records = new ArrayList<>();
+        for (Integer record : iterable) {
+            records.add(record);
+        }
+        return records;
+    }
+
+    private static void sleep()
+    {
+        try {
+            Thread.sleep(10);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class CountingPagingFunction implements RecordPagingIterable.PagingFunction<RecordPagingIterable.OffsetPage<Integer>>
+    {
+        private final AtomicInteger requestedPages = new AtomicInteger();
+
+        private volatile int failingPage = -1;
+
+        @Override
+        public RecordPagingIterable.OffsetPage<Integer> getNextPage(RecordPagingIterable.OffsetPage<Integer> currentPage)
+        {
+            return getOffsetPage(currentPage.getNextOffSet());
+        }
+
+        @Override
+        public RecordPagingIterable.OffsetPage<Integer> getFirstPage()
+        {
+            return getOffsetPage(0);
+        }
+
+        protected RecordPagingIterable.OffsetPage<Integer> getOffsetPage(int offset)
+        {
+            if (requestedPages.incrementAndGet() == failingPage) {
+                throw new IllegalStateException("page " + failingPage);
+            }
+            List<Integer> records = new ArrayList<>();
+            for (int i = offset; i < Math.min(offset + PAGE_SIZE, RECORD_COUNT); i++) {
+                records.add(i);
+            }
+            return new RecordPagingIterable.OffsetPage<>(records, offset + records.size(), offset + records.size() < RECORD_COUNT);
+        }
+    }
+
+    private static class IndexedCountingPagingFunction extends CountingPagingFunction implements RecordPagingIterable.IndexedPagingFunction<RecordPagingIterable.OffsetPage<Integer>>
+    {
+        @Override
+        public RecordPagingIterable.OffsetPage<Integer> getPage(int pageIndex)
+        {
+            return getOffsetPage(pageIndex * PAGE_SIZE);
+        }
+    }
+}